@@ -0,0 +1,375 @@
+package edu.ucsd.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.ucsd.util.FileIOUtils;
+
+/**
+ * Persistent cache of the spectrum count, checksum and hash of files, so
+ * that analyzing an unchanged file again costs only a stat.  Each entry
+ * is keyed by the file's name, size, modification time and file key (its
+ * device and inode, on Unix), so a file that has been changed, replaced or
+ * moved in any way is simply computed again.
+ *
+ * The cache is only used if the "ccms.metadata.cache" system property
+ * names its root directory (see {@link FileIOUtils#getCacheRoot()}).  The
+ * entries of each directory's files are kept in one small journal file,
+ * named by a hash of the directory's path, under the cache root.  Keeping
+ * the journals outside of the directories themselves leaves datasets
+ * untouched, so that tools listing their contents never see them.  New
+ * entries are appended to a journal, with the last entry for a file taking
+ * precedence, and a journal holding mostly superseded entries is compacted
+ * when next loaded.  Only the most recently used directories' entries are
+ * kept in memory.  Any failure to read or write the cache is ignored,
+ * leaving the metadata to be computed as usual.
+ */
+public class FileMetadataCache
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	public static final String CACHE_ROOT_PROPERTY =
+		FileIOUtils.CACHE_ROOT_PROPERTY;
+	private static final String[] JOURNAL_FIELDS = new String[]{
+		"Name", "Size", "Modified", "FileKey", "Spectra", "Checksum", "Hash"
+	};
+	private static final String JOURNAL_EXTENSION = ".tsv";
+	// compact a journal once it has this many superseded entries, and
+	// more of them than current ones
+	private static final int MINIMUM_SUPERSEDED = 64;
+	// number of directories whose entries are kept in memory
+	private static final int MAXIMUM_LOADED_DIRECTORIES = 64;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	// loaded entries of the most recently used directories, by file name
+	@SuppressWarnings("serial")
+	private static final Map<File, Map<String, Entry>> directories =
+		new LinkedHashMap<File, Map<String, Entry>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<File, Map<String, FileMetadataCache.Entry>> eldest
+			) {
+				return size() > MAXIMUM_LOADED_DIRECTORIES;
+			}
+		};
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Returns the cache entry for the given file as it is now, whose
+	 * metadata are those cached for it if it is unchanged since they were
+	 * cached, and are otherwise all null; or returns null if the file's
+	 * attributes could not be read, or the cache is disabled.
+	 */
+	public static Entry lookup(File file) {
+		if (file == null || FileIOUtils.getCacheRoot() == null)
+			return null;
+		Entry current = null;
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(
+				file.toPath(), BasicFileAttributes.class);
+			if (attributes.isRegularFile() == false)
+				return null;
+			Object fileKey = attributes.fileKey();
+			current = new Entry(attributes.size(),
+				attributes.lastModifiedTime().toMillis(),
+				fileKey == null ? "" : fileKey.toString());
+		} catch (Throwable error) {
+			return null;
+		}
+		String name = getName(file);
+		if (name == null)
+			return current;
+		synchronized (directories) {
+			Entry cached = load(file.getAbsoluteFile().getParentFile())
+				.get(name);
+			if (cached != null && cached.matches(current))
+				current.copy(cached);
+		}
+		return current;
+	}
+	
+	/**
+	 * Saves the metadata of the given entry, as returned by
+	 * {@link #lookup(File)} for the given file and then filled in.
+	 */
+	public static void store(File file, Entry entry) {
+		String name = getName(file);
+		if (name == null || entry == null ||
+			FileIOUtils.getCacheRoot() == null)
+			return;
+		File directory = file.getAbsoluteFile().getParentFile();
+		synchronized (directories) {
+			Map<String, Entry> entries = load(directory);
+			Entry cached = entries.get(name);
+			if (cached != null && cached.matches(entry) &&
+				cached.hasMetadataOf(entry))
+				return;
+			entries.put(name, entry.duplicate());
+			try {
+				append(getJournal(directory), directory, format(name, entry));
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Metadata of one file, along with the state of the file they belong to.
+	 */
+	public static class Entry {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private long    size;
+		private long    modified;
+		private String  fileKey;
+		private Integer spectra;
+		private Long    checksum;
+		private String  hash;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		private Entry(long size, long modified, String fileKey) {
+			this.size = size;
+			this.modified = modified;
+			this.fileKey = fileKey;
+		}
+		
+		/*====================================================================
+		 * Property accessor methods
+		 *====================================================================*/
+		public Integer getSpectra() {
+			return spectra;
+		}
+		
+		public void setSpectra(Integer spectra) {
+			this.spectra = spectra;
+		}
+		
+		public Long getChecksum() {
+			return checksum;
+		}
+		
+		public void setChecksum(Long checksum) {
+			this.checksum = checksum;
+		}
+		
+		public String getHash() {
+			return hash;
+		}
+		
+		public void setHash(String hash) {
+			this.hash = hash;
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		/**
+		 * Determines whether this entry describes the same state of a
+		 * file as the given entry.
+		 */
+		private boolean matches(Entry entry) {
+			return size == entry.size && modified == entry.modified &&
+				fileKey.equals(entry.fileKey);
+		}
+		
+		/**
+		 * Determines whether this entry's metadata are all
+		 * the same as those of the given entry.
+		 */
+		private boolean hasMetadataOf(Entry entry) {
+			return equal(spectra, entry.spectra) &&
+				equal(checksum, entry.checksum) && equal(hash, entry.hash);
+		}
+		
+		private void copy(Entry entry) {
+			spectra = entry.spectra;
+			checksum = entry.checksum;
+			hash = entry.hash;
+		}
+		
+		private Entry duplicate() {
+			Entry duplicate = new Entry(size, modified, fileKey);
+			duplicate.copy(this);
+			return duplicate;
+		}
+		
+		private static boolean equal(Object first, Object second) {
+			if (first == null)
+				return second == null;
+			else return first.equals(second);
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private static File getJournal(File directory)
+	throws IOException {
+		File journal =
+			FileIOUtils.getCacheFile(directory.getPath(), JOURNAL_EXTENSION);
+		if (journal == null)
+			throw new IOException("The metadata cache is disabled.");
+		return journal;
+	}
+	
+	/**
+	 * Returns the cached entries of the given directory's files, reading
+	 * them from its journal if they have not yet been loaded.
+	 */
+	private static Map<String, Entry> load(File directory) {
+		Map<String, Entry> entries = directories.get(directory);
+		if (entries != null)
+			return entries;
+		entries = new HashMap<String, Entry>();
+		directories.put(directory, entries);
+		File journal = null;
+		int lines = 0;
+		BufferedReader reader = null;
+		try {
+			journal = getJournal(directory);
+			if (journal.isFile() == false)
+				return entries;
+			reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(journal), StandardCharsets.UTF_8));
+			// the journal starts with the path of its directory, in case
+			// another directory's path has the same hash
+			if (directory.getPath().equals(reader.readLine()) == false ||
+				join(JOURNAL_FIELDS).equals(reader.readLine()) == false)
+				return entries;
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				lines++;
+				String[] fields = line.split("\t", -1);
+				if (fields.length != JOURNAL_FIELDS.length)
+					continue;
+				try {
+					Entry entry = new Entry(Long.parseLong(fields[1]),
+						Long.parseLong(fields[2]), fields[3]);
+					if (fields[4].isEmpty() == false)
+						entry.spectra = Integer.parseInt(fields[4]);
+					if (fields[5].isEmpty() == false)
+						entry.checksum = Long.parseLong(fields[5]);
+					if (fields[6].isEmpty() == false)
+						entry.hash = fields[6];
+					entries.put(fields[0], entry);
+				} catch (NumberFormatException error) {}
+			}
+		} catch (Throwable error) {
+			return entries;
+		} finally {
+			try { reader.close(); } catch (Throwable error) {}
+		}
+		int superseded = lines - entries.size();
+		if (superseded >= MINIMUM_SUPERSEDED && superseded > entries.size())
+			compact(journal, directory, entries);
+		return entries;
+	}
+	
+	/**
+	 * Rewrites the given journal with just the current entry of each file
+	 * still in the directory, replacing it only once it is complete.
+	 */
+	private static void compact(
+		File journal, File directory, Map<String, Entry> entries
+	) {
+		File temporary = new File(journal.getPath() + ".tmp");
+		try {
+			StringBuilder content = new StringBuilder();
+			content.append(directory.getPath()).append("\n");
+			content.append(join(JOURNAL_FIELDS)).append("\n");
+			for (Map.Entry<String, Entry> entry : entries.entrySet())
+				if (new File(directory, entry.getKey()).isFile())
+					content.append(format(entry.getKey(), entry.getValue()));
+			write(temporary, content.toString(), false);
+			if (temporary.renameTo(journal) == false) {
+				journal.delete();
+				if (temporary.renameTo(journal) == false)
+					temporary.delete();
+			}
+		} catch (Throwable error) {
+			temporary.delete();
+		}
+	}
+	
+	private static void append(File journal, File directory, String line)
+	throws IOException {
+		if (journal.isFile() == false) {
+			File root = journal.getParentFile();
+			if (root.isDirectory() == false && root.mkdirs() == false)
+				return;
+			line = directory.getPath() + "\n" + join(JOURNAL_FIELDS) + "\n" +
+				line;
+		}
+		write(journal, line, true);
+	}
+	
+	/**
+	 * Writes the given text in a single write, so that lines appended
+	 * by separate processes are not interleaved.
+	 */
+	private static void write(File file, String text, boolean append)
+	throws IOException {
+		OutputStream output = null;
+		try {
+			output = new FileOutputStream(file, append);
+			output.write(text.getBytes(StandardCharsets.UTF_8));
+		} finally {
+			if (output != null)
+				output.close();
+		}
+	}
+	
+	private static String format(String name, Entry entry) {
+		return join(new String[]{
+			name, Long.toString(entry.size), Long.toString(entry.modified),
+			entry.fileKey,
+			entry.spectra == null ? "" : entry.spectra.toString(),
+			entry.checksum == null ? "" : entry.checksum.toString(),
+			entry.hash == null ? "" : entry.hash
+		}) + "\n";
+	}
+	
+	private static String join(String[] fields) {
+		StringBuilder line = new StringBuilder();
+		for (String field : fields) {
+			if (line.length() > 0)
+				line.append("\t");
+			line.append(field);
+		}
+		return line.toString();
+	}
+	
+	/**
+	 * Returns the name of the given file, or null if it cannot be
+	 * written to a journal.
+	 */
+	private static String getName(File file) {
+		if (file == null)
+			return null;
+		String name = file.getName();
+		if (name.isEmpty() || name.indexOf('\t') >= 0 ||
+			name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0)
+			return null;
+		else return name;
+	}
+}
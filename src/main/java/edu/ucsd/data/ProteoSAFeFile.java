@@ -3,9 +3,7 @@ package edu.ucsd.data;
 import java.io.File;
 import java.net.URI;
 
-import org.apache.commons.io.FileUtils;
-
-import edu.ucsd.util.FileIOUtils;
+import edu.ucsd.util.SpectrumFileProfile;
 import edu.ucsd.util.SpectrumFileUtils;
 
 @SuppressWarnings("serial")
@@ -15,9 +13,13 @@ extends File
 	/*========================================================================
 	 * Properties
 	 *========================================================================*/
-	private Integer spectra;
-	private Long    checksum;
-	private String  hash;
+	private Integer             spectra;
+	private Long                checksum;
+	private String              hash;
+	private SpectrumFileProfile profile;
+	// persistently cached metadata, looked up on first use
+	private FileMetadataCache.Entry metadata;
+	private boolean                 metadataLoaded;
 	
 	/*========================================================================
 	 * Constructors
@@ -51,9 +53,14 @@ extends File
 			spectra = null;
 			return spectra;
 		}
-		// if spectrum count is not known, count them up
+		// if spectrum count is not known, check the metadata cache
+		if (spectra == null && getMetadata() != null)
+			spectra = metadata.getSpectra();
+		// otherwise count them up; an indexed file's
+		// count needs only its index, not a profiling pass
 		if (spectra == null) try {
 			spectra = SpectrumFileUtils.countMS2Spectra(this);
+			storeMetadata();
 		} catch (Throwable error) {}
 		return spectra;
 	}
@@ -64,10 +71,12 @@ extends File
 			checksum = null;
 			return checksum;
 		}
-		// if checksum is not known, compute it
-		if (checksum == null) try {
-			checksum = FileUtils.checksumCRC32(this);
-		} catch (Throwable error) {}
+		// if checksum is not known, check the metadata cache,
+		// or else compute it along with everything else in one pass
+		if (checksum == null && getMetadata() != null)
+			checksum = metadata.getChecksum();
+		if (checksum == null)
+			getProfile();
 		return checksum;
 	}
 	
@@ -77,10 +86,71 @@ extends File
 			hash = null;
 			return hash;
 		}
-		// if hash is not known, compute it
-		if (hash == null) try {
-			hash = FileIOUtils.getMD5Hash(this);
-		} catch (Throwable error) {}
+		// if hash is not known, check the metadata cache,
+		// or else compute it along with everything else in one pass
+		if (hash == null && getMetadata() != null)
+			hash = metadata.getHash();
+		if (hash == null)
+			getProfile();
 		return hash;
 	}
+	
+	/**
+	 * Returns the statistics of this file gathered in a single pass over
+	 * its content, which also supply its checksum, hash and (if it is a
+	 * spectrum file) spectrum count, or null if it could not be read.
+	 */
+	public SpectrumFileProfile getProfile() {
+		// can only profile a readable file
+		if (isFile() == false || canRead() == false) {
+			profile = null;
+			return profile;
+		}
+		// if profile is not known, read it
+		if (profile == null) try {
+			profile = SpectrumFileProfile.profile(this);
+			checksum = profile.getChecksum();
+			hash = profile.getHash();
+			// files of any other type have no spectra to count, while a
+			// spectrum file that could not be scanned has no known count
+			if (profile.getType() == null)
+				spectra = 0;
+			else if (profile.hasSpectrumStatistics())
+				spectra = profile.getMS2SpectrumCount();
+			storeMetadata();
+		} catch (Throwable error) {}
+		return profile;
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	/**
+	 * Returns this file's entry in the persistent metadata cache, as of
+	 * the first time it was needed, or null if the cache is unavailable.
+	 */
+	private FileMetadataCache.Entry getMetadata() {
+		if (metadataLoaded == false) {
+			metadata = FileMetadataCache.lookup(this);
+			metadataLoaded = true;
+		}
+		return metadata;
+	}
+	
+	/**
+	 * Saves this file's known metadata to the persistent cache, for the
+	 * file as it was when its cache entry was first looked up, so that
+	 * metadata computed from a file changed since then are never reused.
+	 */
+	private void storeMetadata() {
+		if (getMetadata() == null)
+			return;
+		if (spectra != null)
+			metadata.setSpectra(spectra);
+		if (checksum != null)
+			metadata.setChecksum(checksum);
+		if (hash != null)
+			metadata.setHash(hash);
+		FileMetadataCache.store(this, metadata);
+	}
 }
@@ -0,0 +1,564 @@
+package edu.ucsd.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Index of the records in a FASTA file, in the same tab-separated format
+ * as the ".fai" files written by "samtools faidx".  Each record is
+ * identified by its name (the first word of its header line, which for
+ * most protein databases is its accession), and its entry gives the
+ * sequence length, the byte offset of the first sequence line, and the
+ * number of residues and bytes per sequence line.  This is enough to
+ * locate any part of any sequence without reading the rest of the file.
+ *
+ * Since protein databases can have many millions of records, entries are
+ * kept in flat arrays, with record names stored as UTF-8 bytes and found
+ * through an open-addressing hash table, rather than as separate objects.
+ *
+ * As with {@link SpectrumIndex}, an index loaded for a FASTA file is only
+ * saved if a persistent cache root is set (see
+ * {@link FileIOUtils#getCacheRoot()}), under that root rather than next to
+ * the FASTA file, so that datasets are left untouched.
+ */
+public class FASTAIndex
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	public static final String INDEX_EXTENSION = ".fai";
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private int    size;
+	// name i occupies names[nameOffsets[i], nameOffsets[i + 1])
+	private byte[] names;
+	private int[]  nameOffsets;
+	private long[] lengths;
+	private long[] offsets;
+	private int[]  lineBases;
+	private int[]  lineBytes;
+	// hash table of record numbers plus one, with 0 marking empty slots
+	private int[]  table;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	public FASTAIndex() {
+		size = 0;
+		names = new byte[INITIAL_CAPACITY * 16];
+		nameOffsets = new int[INITIAL_CAPACITY + 1];
+		lengths = new long[INITIAL_CAPACITY];
+		offsets = new long[INITIAL_CAPACITY];
+		lineBases = new int[INITIAL_CAPACITY];
+		lineBytes = new int[INITIAL_CAPACITY];
+		table = new int[INITIAL_CAPACITY * 2];
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Adds a record to this index.  As with samtools, only the first
+	 * record with any given name is kept.
+	 */
+	public boolean add(
+		String name, long length, long offset, int lineBases, int lineBytes
+	) {
+		if (name == null)
+			throw new NullPointerException("Record name cannot be null.");
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		return add(bytes, 0, bytes.length,
+			length, offset, lineBases, lineBytes);
+	}
+	
+	/**
+	 * Adds all the records of another index to this one, shifting their
+	 * offsets by the given number of bytes, e.g. when the other index
+	 * describes records written to a buffer that was later appended to
+	 * the file described by this index.
+	 */
+	public void addAll(FASTAIndex index, long shift) {
+		if (index == null)
+			return;
+		for (int i=0; i<index.size; i++)
+			add(index.names, index.nameOffsets[i], index.nameOffsets[i + 1],
+				index.lengths[i], index.offsets[i] + shift,
+				index.lineBases[i], index.lineBytes[i]);
+	}
+	
+	public Entry get(String name) {
+		if (name == null)
+			return null;
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int record = find(bytes, 0, bytes.length);
+		if (record < 0)
+			return null;
+		else return getEntry(record);
+	}
+	
+	public boolean contains(String name) {
+		return get(name) != null;
+	}
+	
+	/**
+	 * Returns the entry of the record with the given
+	 * number, in the order the records were added.
+	 */
+	public Entry getEntry(int record) {
+		if (record < 0 || record >= size)
+			throw new IndexOutOfBoundsException(String.format(
+				"Record %d is not within the %d records of this index.",
+				record, size));
+		return new Entry(new String(names, nameOffsets[record],
+				nameOffsets[record + 1] - nameOffsets[record],
+				StandardCharsets.UTF_8),
+			lengths[record], offsets[record],
+			lineBases[record], lineBytes[record]);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void write(File indexFile)
+	throws IOException {
+		if (indexFile == null)
+			throw new NullPointerException("Index file cannot be null.");
+		OutputStream output = null;
+		try {
+			output = new BufferedOutputStream(
+				new FileOutputStream(indexFile), 1 << 16);
+			byte[] number = new byte[20];
+			for (int i=0; i<size; i++) {
+				output.write(names, nameOffsets[i],
+					nameOffsets[i + 1] - nameOffsets[i]);
+				output.write('\t');
+				writeNumber(output, lengths[i], number);
+				output.write('\t');
+				writeNumber(output, offsets[i], number);
+				output.write('\t');
+				writeNumber(output, lineBases[i], number);
+				output.write('\t');
+				writeNumber(output, lineBytes[i], number);
+				output.write('\n');
+			}
+		} finally {
+			if (output != null)
+				output.close();
+		}
+	}
+	
+	public static FASTAIndex read(File indexFile)
+	throws IOException {
+		if (indexFile == null)
+			throw new NullPointerException("Index file cannot be null.");
+		FASTAIndex index = new FASTAIndex();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(indexFile);
+			LineScanner lines = new LineScanner(input);
+			long[] fields = new long[4];
+			int lineNumber = 0;
+			while (lines.next()) {
+				lineNumber++;
+				byte[] line = lines.getBuffer();
+				int start = lines.getStart();
+				int end = lines.getEnd();
+				if (start == end)
+					continue;
+				// name, then four numeric fields, each preceded by a tab;
+				// like samtools, ignore any further fields
+				int nameEnd = start;
+				while (nameEnd < end && line[nameEnd] != '\t')
+					nameEnd++;
+				int position = nameEnd;
+				for (int i=0; i<fields.length; i++) {
+					fields[i] = -1;
+					if (position >= end || line[position] != '\t')
+						break;
+					position++;
+					long value = 0;
+					int digits = position;
+					while (position < end &&
+						line[position] >= '0' && line[position] <= '9')
+						value = value * 10 + (line[position++] - '0');
+					if (position > digits &&
+						(position == end || line[position] == '\t'))
+						fields[i] = value;
+					else break;
+				}
+				if (fields[3] < 0 || fields[2] > Integer.MAX_VALUE ||
+					fields[3] > Integer.MAX_VALUE)
+					throw new IllegalArgumentException(String.format(
+						"Line %d [%s] of FASTA index file [%s] is not a " +
+						"valid index entry.", lineNumber,
+						new String(line, start, end - start,
+							StandardCharsets.UTF_8),
+						indexFile.getAbsolutePath()));
+				index.add(line, start, nameEnd, fields[0], fields[1],
+					(int)fields[2], (int)fields[3]);
+			}
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+		return index;
+	}
+	
+	public static FASTAIndex build(File fastaFile)
+	throws IOException {
+		if (fastaFile == null)
+			throw new NullPointerException("FASTA file cannot be null.");
+		Builder builder = new Builder();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(fastaFile);
+			LineScanner lines = new LineScanner(input);
+			while (lines.next())
+				builder.addLine(lines.getBuffer(), lines.getStart(),
+					lines.getEnd(), lines.getOffset(),
+					lines.getTerminatorLength());
+		} catch (IllegalArgumentException error) {
+			throw new IllegalArgumentException(String.format(
+				"FASTA file [%s] cannot be indexed: %s",
+				fastaFile.getAbsolutePath(), error.getMessage()));
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+		return builder.finish();
+	}
+	
+	/**
+	 * Returns the index of the given FASTA file, reading it from the
+	 * file's cached index file if that is at least as new as the FASTA
+	 * file.  Otherwise the index is built from the FASTA file, and saved
+	 * as its index file if caching is on and the file can be written.
+	 */
+	public static FASTAIndex load(File fastaFile)
+	throws IOException {
+		File indexFile = getIndexFile(fastaFile);
+		if (indexFile == null)
+			return build(fastaFile);
+		else if (indexFile.isFile() && indexFile.canRead() &&
+			indexFile.lastModified() >= fastaFile.lastModified())
+			return read(indexFile);
+		FASTAIndex index = build(fastaFile);
+		// write to a temporary file first, so that readers never
+		// see a partially written index
+		File temporary = new File(indexFile.getPath() + ".tmp");
+		try {
+			File root = indexFile.getParentFile();
+			if (root.isDirectory() == false && root.mkdirs() == false &&
+				root.isDirectory() == false)
+				return index;
+			index.write(temporary);
+			if (temporary.renameTo(indexFile) == false) {
+				indexFile.delete();
+				if (temporary.renameTo(indexFile) == false)
+					temporary.delete();
+			}
+		} catch (Throwable error) {
+			temporary.delete();
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns the file under the cache root in which the given FASTA
+	 * file's index is saved, or null if caching is off.
+	 */
+	public static File getIndexFile(File fastaFile) {
+		if (fastaFile == null)
+			return null;
+		else return FileIOUtils.getCacheFile(
+			fastaFile.getAbsolutePath(), INDEX_EXTENSION);
+	}
+	
+	/**
+	 * Returns the record name from a FASTA header, i.e. its first word,
+	 * where the header spans header[start, end) and may or may not
+	 * include its leading '>'.
+	 */
+	public static String getName(byte[] header, int start, int end) {
+		if (header == null)
+			return null;
+		if (start < end && header[start] == '>')
+			start++;
+		while (start < end && isWhitespace(header[start]))
+			start++;
+		int nameEnd = start;
+		while (nameEnd < end && isWhitespace(header[nameEnd]) == false)
+			nameEnd++;
+		return new String(
+			header, start, nameEnd - start, StandardCharsets.UTF_8);
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Struct to hold the location of a single FASTA record.
+	 */
+	public static class Entry {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private String name;
+		private long   length;
+		private long   offset;
+		private int    lineBases;
+		private int    lineBytes;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Entry(
+			String name, long length, long offset,
+			int lineBases, int lineBytes
+		) {
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineBytes = lineBytes;
+		}
+		
+		/*====================================================================
+		 * Property accessor methods
+		 *====================================================================*/
+		public String getName() {
+			return name;
+		}
+		
+		public long getLength() {
+			return length;
+		}
+		
+		public long getOffset() {
+			return offset;
+		}
+		
+		public int getLineBases() {
+			return lineBases;
+		}
+		
+		public int getLineBytes() {
+			return lineBytes;
+		}
+		
+		/**
+		 * Returns the byte offset, in the FASTA file,
+		 * of the residue at the given position.
+		 */
+		public long getResidueOffset(long position) {
+			if (lineBases <= 0)
+				return offset;
+			return offset + position / lineBases * lineBytes +
+				position % lineBases;
+		}
+	}
+	
+	/**
+	 * Incremental index builder, that is fed the lines of a FASTA file
+	 * in order, each with its byte offset and terminator length.  Every
+	 * sequence line of a record must have the same length and terminator,
+	 * except for the last one, which may be shorter; whitespace-only lines
+	 * may only appear at the end of a record.
+	 */
+	public static class Builder {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private FASTAIndex index;
+		private String     name;
+		private long       length;
+		private long       offset;
+		private int        lineBases;
+		private int        lineBytes;
+		// whether the record's last (short) sequence line has been seen,
+		// or a blank line has ended it
+		private boolean    ended;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Builder() {
+			index = new FASTAIndex();
+			name = null;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public void addLine(
+			byte[] line, int start, int end, long lineOffset,
+			int terminatorLength
+		) {
+			// a header line starts a new record
+			if (end > start && line[start] == '>') {
+				addRecord();
+				name = getName(line, start, end);
+				length = 0;
+				offset = lineOffset + (end - start) + terminatorLength;
+				lineBases = 0;
+				lineBytes = 0;
+				ended = false;
+				return;
+			}
+			boolean blank = true;
+			for (int i=start; i<end && blank; i++)
+				blank = isWhitespace(line[i]);
+			if (blank) {
+				if (name != null && length > 0)
+					ended = true;
+				else if (name != null)
+					offset = lineOffset + (end - start) + terminatorLength;
+				return;
+			} else if (name == null)
+				throw new IllegalArgumentException(
+					"sequence text encountered before a valid header line");
+			int bases = end - start;
+			if (ended)
+				throw new IllegalArgumentException(String.format(
+					"record \"%s\" has sequence lines of differing lengths",
+					name));
+			if (length == 0) {
+				offset = lineOffset;
+				lineBases = bases;
+				lineBytes = bases + terminatorLength;
+			} else if (bases > lineBases ||
+				(bases == lineBases &&
+					bases + terminatorLength != lineBytes))
+				throw new IllegalArgumentException(String.format(
+					"record \"%s\" has sequence lines of differing lengths",
+					name));
+			if (bases < lineBases)
+				ended = true;
+			length += bases;
+		}
+		
+		public FASTAIndex finish() {
+			addRecord();
+			name = null;
+			return index;
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private void addRecord() {
+			if (name == null)
+				return;
+			if (length == 0)
+				lineBases = lineBytes = 0;
+			index.add(name, length, offset, lineBases, lineBytes);
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private boolean add(
+		byte[] name, int start, int end, long length, long offset,
+		int lineBases, int lineBytes
+	) {
+		if (find(name, start, end) >= 0)
+			return false;
+		// grow record arrays and name storage as needed
+		if (size >= lengths.length) {
+			int capacity = lengths.length * 2;
+			nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+			lengths = Arrays.copyOf(lengths, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			this.lineBases = Arrays.copyOf(this.lineBases, capacity);
+			this.lineBytes = Arrays.copyOf(this.lineBytes, capacity);
+		}
+		int nameStart = nameOffsets[size];
+		if (nameStart + (end - start) > names.length)
+			names = Arrays.copyOf(names,
+				Math.max(names.length * 2, nameStart + (end - start)));
+		System.arraycopy(name, start, names, nameStart, end - start);
+		nameOffsets[size + 1] = nameStart + (end - start);
+		lengths[size] = length;
+		offsets[size] = offset;
+		this.lineBases[size] = lineBases;
+		this.lineBytes[size] = lineBytes;
+		size++;
+		// keep the hash table at most half full
+		if (size * 2 > table.length) {
+			table = new int[table.length * 2];
+			for (int i=0; i<size; i++)
+				insert(i);
+		} else insert(size - 1);
+		return true;
+	}
+	
+	private int find(byte[] name, int start, int end) {
+		int mask = table.length - 1;
+		for (int slot=hash(name, start, end) & mask; ;
+			slot=(slot + 1) & mask) {
+			int record = table[slot] - 1;
+			if (record < 0)
+				return -1;
+			int nameStart = nameOffsets[record];
+			int nameLength = nameOffsets[record + 1] - nameStart;
+			if (nameLength != end - start)
+				continue;
+			boolean same = true;
+			for (int i=0; i<nameLength && same; i++)
+				same = names[nameStart + i] == name[start + i];
+			if (same)
+				return record;
+		}
+	}
+	
+	private void insert(int record) {
+		int mask = table.length - 1;
+		int slot = hash(names, nameOffsets[record],
+			nameOffsets[record + 1]) & mask;
+		while (table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = record + 1;
+	}
+	
+	private static int hash(byte[] bytes, int start, int end) {
+		// FNV-1a, with a final mix so that the low bits used
+		// to select a slot depend on every byte of the name
+		int hash = 0x811c9dc5;
+		for (int i=start; i<end; i++) {
+			hash ^= bytes[i] & 0xFF;
+			hash *= 0x01000193;
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		return hash ^ (hash >>> 13);
+	}
+	
+	private static void writeNumber(
+		OutputStream output, long value, byte[] digits
+	) throws IOException {
+		int position = digits.length;
+		do {
+			digits[--position] = (byte)('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		output.write(digits, position, digits.length - position);
+	}
+	
+	private static boolean isWhitespace(byte character) {
+		return (character & 0xFF) <= ' ';
+	}
+}
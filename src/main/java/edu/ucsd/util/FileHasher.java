@@ -0,0 +1,242 @@
+package edu.ucsd.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Computer of any number of digests and checksums of a file in a single
+ * pass over its content, which is read through a {@link FileChannel} into
+ * one large direct buffer, so that every algorithm hashes the same bytes
+ * straight from the buffer the kernel filled.
+ *
+ * Algorithms are named as for {@link MessageDigest} (e.g. "MD5",
+ * "SHA-256"), or "CRC32" or "CRC32C" for checksums, whose values are given
+ * as eight hex digits, most significant first.  CRC32C is only available
+ * on Java 9 and later runtimes.  Instances are not safe to share between
+ * threads, but the static {@link #hash(File, String)} reuses one buffer
+ * per thread, since direct memory is only released by garbage collection.
+ */
+public class FileHasher
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	public static final int DEFAULT_BUFFER_SIZE = 4 << 20;
+	public static final int MINIMUM_BUFFER_SIZE = 1 << 16;
+	public static final String CRC32_ALGORITHM = "CRC32";
+	public static final String CRC32C_ALGORITHM = "CRC32C";
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	// CRC32C and its update(ByteBuffer) method, if the runtime has them
+	private static final Class<?> CRC32C_CLASS;
+	private static final Method CRC32C_UPDATE;
+	static {
+		Class<?> crc32c = null;
+		Method update = null;
+		try {
+			crc32c = Class.forName("java.util.zip.CRC32C");
+			update = crc32c.getMethod("update", ByteBuffer.class);
+		} catch (Throwable error) {
+			crc32c = null;
+		}
+		CRC32C_CLASS = crc32c;
+		CRC32C_UPDATE = update;
+	}
+	// buffer of each thread's calls to hash(File, String)
+	private static final ThreadLocal<ByteBuffer> THREAD_BUFFERS =
+		new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+			}
+		};
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private String[]        algorithms;
+	private ByteBuffer      buffer;
+	// state for each algorithm, of which only one is set
+	private MessageDigest[] digests;
+	private Checksum[]      checksums;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	public FileHasher(String... algorithms) {
+		this(DEFAULT_BUFFER_SIZE, algorithms);
+	}
+	
+	public FileHasher(int bufferSize, String... algorithms) {
+		this(allocateBuffer(bufferSize), algorithms);
+	}
+	
+	private FileHasher(ByteBuffer buffer, String... algorithms) {
+		this.buffer = buffer;
+		// validate and set up algorithms
+		if (algorithms == null || algorithms.length < 1)
+			throw new IllegalArgumentException(
+				"At least one hashing algorithm must be specified.");
+		this.algorithms = algorithms.clone();
+		digests = new MessageDigest[algorithms.length];
+		checksums = new Checksum[algorithms.length];
+		for (int i=0; i<algorithms.length; i++) {
+			String algorithm = algorithms[i];
+			if (algorithm == null)
+				throw new NullPointerException(
+					"Hashing algorithm cannot be null.");
+			else if (algorithm.equalsIgnoreCase(CRC32_ALGORITHM))
+				checksums[i] = new CRC32();
+			else if (algorithm.equalsIgnoreCase(CRC32C_ALGORITHM)) {
+				if (CRC32C_CLASS == null)
+					throw new IllegalArgumentException(String.format(
+						"Hashing algorithm \"%s\" requires Java 9 or later.",
+						algorithm));
+				try {
+					checksums[i] =
+						(Checksum)CRC32C_CLASS.getConstructor().newInstance();
+				} catch (Throwable error) {
+					throw new IllegalStateException(error);
+				}
+			} else try {
+				digests[i] = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException error) {
+				throw new IllegalArgumentException(String.format(
+					"Hashing algorithm \"%s\" is not supported.", algorithm));
+			}
+		}
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Returns the lowercase hex value of each of this hasher's algorithms
+	 * over the whole content of the given file, by algorithm name, in the
+	 * order the algorithms were given.
+	 */
+	public Map<String, String> hash(File file)
+	throws IOException {
+		if (file == null)
+			throw new NullPointerException("File to hash cannot be null.");
+		for (MessageDigest digest : digests)
+			if (digest != null)
+				digest.reset();
+		for (Checksum checksum : checksums)
+			if (checksum != null)
+				checksum.reset();
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(file);
+			FileChannel channel = input.getChannel();
+			while (true) {
+				buffer.clear();
+				if (channel.read(buffer) < 0)
+					break;
+				buffer.flip();
+				// each algorithm consumes the same bytes in turn
+				for (int i=0; i<algorithms.length; i++) {
+					buffer.position(0);
+					update(i);
+				}
+			}
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+		Map<String, String> values =
+			new LinkedHashMap<String, String>(algorithms.length * 2);
+		for (int i=0; i<algorithms.length; i++) {
+			if (digests[i] != null)
+				values.put(algorithms[i], toHexString(digests[i].digest()));
+			else values.put(algorithms[i],
+				toHexString((int)checksums[i].getValue()));
+		}
+		return values;
+	}
+	
+	/**
+	 * Returns the lowercase hex value of the given algorithm over the
+	 * whole content of the given file, read through the calling thread's
+	 * buffer.
+	 */
+	public static String hash(File file, String algorithm)
+	throws IOException {
+		return new FileHasher(THREAD_BUFFERS.get(), algorithm).hash(file)
+			.get(algorithm);
+	}
+	
+	/**
+	 * Converts bytes to a lowercase hex string, two digits per byte.
+	 */
+	public static String toHexString(byte[] bytes) {
+		if (bytes == null)
+			return null;
+		char[] hex = new char[bytes.length * 2];
+		for (int i=0; i<bytes.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+	
+	/**
+	 * Converts a 32-bit value to eight lowercase hex digits.
+	 */
+	public static String toHexString(int value) {
+		char[] hex = new char[8];
+		for (int i=7; i>=0; i--) {
+			hex[i] = HEX_DIGITS[value & 0xF];
+			value >>>= 4;
+		}
+		return new String(hex);
+	}
+	
+	/*========================================================================
+	 * Property accessor methods
+	 *========================================================================*/
+	public String[] getAlgorithms() {
+		return algorithms.clone();
+	}
+	
+	public int getBufferSize() {
+		return buffer.capacity();
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private static ByteBuffer allocateBuffer(int bufferSize) {
+		if (bufferSize < MINIMUM_BUFFER_SIZE)
+			throw new IllegalArgumentException(String.format(
+				"Buffer size %d must be at least %d bytes.",
+				bufferSize, MINIMUM_BUFFER_SIZE));
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+	
+	private void update(int algorithm)
+	throws IOException {
+		if (digests[algorithm] != null)
+			digests[algorithm].update(buffer);
+		else if (checksums[algorithm] instanceof CRC32)
+			((CRC32)checksums[algorithm]).update(buffer);
+		else try {
+			CRC32C_UPDATE.invoke(checksums[algorithm], buffer);
+		} catch (InvocationTargetException error) {
+			throw new IOException(error.getCause());
+		} catch (IllegalAccessException error) {
+			throw new IllegalStateException(error);
+		}
+	}
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.zip.GZIPInputStream;
@@ -47,6 +48,8 @@ public class FileIOUtils
 	 *========================================================================*/
 	private static final Logger logger =
 		LoggerFactory.getLogger(FileIOUtils.class);
+	// directory of persistent caches, which are only kept if it is set
+	public static final String CACHE_ROOT_PROPERTY = "ccms.metadata.cache";
 	
 	/*========================================================================
 	 * Public interface methods
@@ -154,30 +157,44 @@ public class FileIOUtils
 	throws IOException {
 		if (file == null || file.canRead() == false)
 			return null;
-		FileInputStream input = null;
+		else return FileHasher.hash(file, "MD5");
+	}
+	
+	/**
+	 * Converts digest bytes to lowercase hex string format.
+	 */
+	public static final String toHexString(byte[] bytes) {
+		return FileHasher.toHexString(bytes);
+	}
+	
+	/**
+	 * Returns the root directory of persistent caches, as named by the
+	 * "ccms.metadata.cache" system property, or null if the property is not
+	 * set or is empty.  Caching is off by default, so that workflow jobs
+	 * never write outside of their own directories unless asked to.
+	 */
+	public static final File getCacheRoot() {
+		String root = System.getProperty(CACHE_ROOT_PROPERTY);
+		if (root == null || root.trim().isEmpty())
+			return null;
+		else return new File(root);
+	}
+	
+	/**
+	 * Returns the file under the cache root that caches something about the
+	 * given path, named by the path's MD5 hash and the given extension, or
+	 * null if caching is off.
+	 */
+	public static final File getCacheFile(String path, String extension) {
+		File root = getCacheRoot();
+		if (root == null || path == null)
+			return null;
 		try {
-			// read file, compute MD5 digest bytes
-			input = new FileInputStream(file);
 			MessageDigest digest = MessageDigest.getInstance("MD5");
-			byte[] data = new byte[1024];
-			int bytesRead = 0;
-			while ((bytesRead = input.read(data)) != -1)
-				digest.update(data, 0, bytesRead);
-			byte[] digestData = digest.digest();
-			// convert digest bytes to hex string format
-			StringBuffer result = new StringBuffer();
-			for (int i=0; i<digestData.length; i++) {
-				String hex = Integer.toHexString(0xff & digestData[i]);
-	    		if (hex.length() == 1)
-	   	     		result.append("0");
-	   	     	result.append(hex);
-	   	     }
-			return result.toString();
+			return new File(root, toHexString(digest.digest(
+				path.getBytes(StandardCharsets.UTF_8))) + extension);
 		} catch (NoSuchAlgorithmException error) {
-			return null;
-		} finally {
-			try { input.close(); }
-			catch (Throwable error) {}
+			throw new IllegalStateException(error);
 		}
 	}
 	
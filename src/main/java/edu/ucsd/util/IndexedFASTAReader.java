@@ -0,0 +1,189 @@
+package edu.ucsd.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Random-access reader of protein sequences from a FASTA file, which is
+ * memory-mapped and located through its {@link FASTAIndex}, so that each
+ * lookup by record name takes constant time regardless of the size of the
+ * database.  Instances are safe to share between threads.
+ */
+public class IndexedFASTAReader
+implements Closeable
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	// a single mapping cannot exceed 2 GB, so larger files
+	// are mapped as a series of consecutive segments
+	private static final long SEGMENT_SIZE = 1L << 30;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private File               fastaFile;
+	private FASTAIndex         index;
+	private long               fileLength;
+	private MappedByteBuffer[] segments;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	public IndexedFASTAReader(File fastaFile)
+	throws IOException {
+		this(fastaFile, null);
+	}
+	
+	public IndexedFASTAReader(File fastaFile, FASTAIndex index)
+	throws IOException {
+		// validate FASTA file
+		if (fastaFile == null)
+			throw new NullPointerException("FASTA file cannot be null.");
+		else if (fastaFile.isFile() == false)
+			throw new IllegalArgumentException(String.format(
+				"FASTA file [%s] must be a regular file.",
+				fastaFile.getAbsolutePath()));
+		else if (fastaFile.canRead() == false)
+			throw new IllegalArgumentException(String.format(
+				"FASTA file [%s] must be readable.",
+				fastaFile.getAbsolutePath()));
+		this.fastaFile = fastaFile;
+		// read or build index, if not provided
+		if (index == null)
+			index = FASTAIndex.load(fastaFile);
+		this.index = index;
+		// map file; the mappings remain valid after the channel is closed
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(fastaFile, "r");
+			FileChannel channel = file.getChannel();
+			fileLength = channel.size();
+			int count = (int)Math.max(1,
+				(fileLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			segments = new MappedByteBuffer[count];
+			for (int i=0; i<count; i++) {
+				long start = i * SEGMENT_SIZE;
+				long size = Math.min(SEGMENT_SIZE, fileLength - start);
+				segments[i] = channel.map(
+					FileChannel.MapMode.READ_ONLY, start, Math.max(0, size));
+			}
+		} finally {
+			if (file != null) try {
+				file.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/*========================================================================
+	 * Property accessor methods
+	 *========================================================================*/
+	public File getFASTAFile() {
+		return fastaFile;
+	}
+	
+	public FASTAIndex getIndex() {
+		return index;
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	public boolean contains(String name) {
+		return index.contains(name);
+	}
+	
+	/**
+	 * Returns the length of the named record's sequence,
+	 * or -1 if there is no such record.
+	 */
+	public long getLength(String name) {
+		FASTAIndex.Entry entry = index.get(name);
+		if (entry == null)
+			return -1;
+		else return entry.getLength();
+	}
+	
+	/**
+	 * Returns the complete sequence of the named record,
+	 * or null if there is no such record.
+	 */
+	public String getSequence(String name) {
+		FASTAIndex.Entry entry = index.get(name);
+		if (entry == null)
+			return null;
+		else return getSequence(entry, 0, entry.getLength());
+	}
+	
+	/**
+	 * Returns residues [start, end) of the named record's sequence
+	 * (zero-based), or null if there is no such record.
+	 */
+	public String getSequence(String name, long start, long end) {
+		FASTAIndex.Entry entry = index.get(name);
+		if (entry == null)
+			return null;
+		else return getSequence(entry, start, end);
+	}
+	
+	public String getSequence(FASTAIndex.Entry entry, long start, long end) {
+		if (entry == null)
+			return null;
+		else if (start < 0 || end > entry.getLength() || start > end)
+			throw new IndexOutOfBoundsException(String.format(
+				"Range [%d, %d) is not within the %d residues of " +
+				"FASTA record \"%s\".", start, end, entry.getLength(),
+				entry.getName()));
+		else if (end - start > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(String.format(
+				"Range [%d, %d) is too long to return as a single string.",
+				start, end));
+		else if (end > start &&
+			entry.getResidueOffset(end - 1) >= fileLength)
+			throw new IllegalStateException(String.format(
+				"FASTA record \"%s\" extends beyond the end of file [%s]; " +
+				"the index may be out of date.", entry.getName(),
+				fastaFile.getAbsolutePath()));
+		byte[] residues = new byte[(int)(end - start)];
+		int copied = 0;
+		int lineBases = entry.getLineBases();
+		// copy the requested residues from each sequence line in turn
+		for (long position=start; position<end; ) {
+			int count = (int)Math.min(
+				end - position, lineBases - position % lineBases);
+			read(entry.getResidueOffset(position), residues, copied, count);
+			copied += count;
+			position += count;
+		}
+		return new String(residues, StandardCharsets.UTF_8);
+	}
+	
+	public void close() {
+		// mapped buffers are released once they are no longer referenced
+		segments = new MappedByteBuffer[0];
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private void read(long offset, byte[] destination, int start, int count) {
+		while (count > 0) {
+			int segment = (int)(offset / SEGMENT_SIZE);
+			// a duplicate has its own position, for thread safety
+			ByteBuffer buffer = segments[segment].duplicate();
+			int position = (int)(offset - segment * SEGMENT_SIZE);
+			int available = Math.min(count, buffer.limit() - position);
+			buffer.position(position);
+			buffer.get(destination, start, available);
+			offset += available;
+			start += available;
+			count -= available;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package edu.ucsd.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Random-access reader of individual spectra from an uncompressed MGF,
+ * mzXML or mzML file, located by scan number through its
+ * {@link SpectrumIndex}, so that fetching a spectrum reads only that
+ * spectrum's bytes regardless of the size of the file.  Reads are
+ * positional, so instances are safe to share between threads.
+ */
+public class IndexedSpectrumReader
+implements Closeable
+{
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private File             spectrumFile;
+	private SpectrumIndex    index;
+	private RandomAccessFile file;
+	private FileChannel      channel;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	public IndexedSpectrumReader(File spectrumFile)
+	throws IOException {
+		this(spectrumFile, null);
+	}
+	
+	public IndexedSpectrumReader(File spectrumFile, SpectrumIndex index)
+	throws IOException {
+		// validate spectrum file
+		if (spectrumFile == null)
+			throw new NullPointerException("Spectrum file cannot be null.");
+		else if (spectrumFile.isFile() == false)
+			throw new IllegalArgumentException(String.format(
+				"Spectrum file [%s] must be a regular file.",
+				spectrumFile.getAbsolutePath()));
+		else if (spectrumFile.canRead() == false)
+			throw new IllegalArgumentException(String.format(
+				"Spectrum file [%s] must be readable.",
+				spectrumFile.getAbsolutePath()));
+		this.spectrumFile = spectrumFile;
+		// read or build index, if not provided
+		if (index == null)
+			index = SpectrumIndex.load(spectrumFile);
+		this.index = index;
+		file = new RandomAccessFile(spectrumFile, "r");
+		channel = file.getChannel();
+	}
+	
+	/*========================================================================
+	 * Property accessor methods
+	 *========================================================================*/
+	public File getSpectrumFile() {
+		return spectrumFile;
+	}
+	
+	public SpectrumIndex getIndex() {
+		return index;
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	public boolean contains(int scan) {
+		return index.contains(scan);
+	}
+	
+	/**
+	 * Returns a stream over the bytes of the spectrum with the given scan
+	 * number, exactly as they appear in the file, or null if there is no
+	 * such spectrum.  The stream needs no closing, and is independent of
+	 * any other stream from this reader.
+	 */
+	public InputStream seek(int scan)
+	throws IOException {
+		int spectrum = index.find(scan);
+		if (spectrum < 0)
+			return null;
+		else return seekSpectrum(spectrum);
+	}
+	
+	/**
+	 * Returns a stream over the bytes of the spectrum at the given position
+	 * in the index, as for {@link #seek(int)}; this also reaches spectra
+	 * without a scan number of their own.
+	 */
+	public InputStream seekSpectrum(int spectrum)
+	throws IOException {
+		long offset = index.getOffset(spectrum);
+		long end = offset + index.getLength(spectrum);
+		checkExtent(spectrum, end);
+		return new SpectrumInputStream(offset, end);
+	}
+	
+	/**
+	 * Returns the complete text of the spectrum with the given scan
+	 * number, or null if there is no such spectrum.
+	 */
+	public String getSpectrum(int scan)
+	throws IOException {
+		int spectrum = index.find(scan);
+		if (spectrum < 0)
+			return null;
+		long offset = index.getOffset(spectrum);
+		int length = index.getLength(spectrum);
+		checkExtent(spectrum, offset + length);
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		read(buffer, offset);
+		return new String(buffer.array(), 0, buffer.position(),
+			StandardCharsets.UTF_8);
+	}
+	
+	public void close()
+	throws IOException {
+		file.close();
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Stream over one spectrum's byte range of the file.
+	 */
+	private class SpectrumInputStream
+	extends InputStream {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private long position;
+		private long end;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public SpectrumInputStream(long position, long end) {
+			this.position = position;
+			this.end = end;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public int read()
+		throws IOException {
+			byte[] single = new byte[1];
+			if (read(single, 0, 1) < 1)
+				return -1;
+			else return single[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] destination, int start, int count)
+		throws IOException {
+			if (count == 0)
+				return 0;
+			else if (position >= end)
+				return -1;
+			ByteBuffer buffer = ByteBuffer.wrap(destination, start,
+				(int)Math.min(count, end - position));
+			int read = IndexedSpectrumReader.this.read(buffer, position);
+			if (read <= 0)
+				return -1;
+			position += read;
+			return read;
+		}
+		
+		@Override
+		public long skip(long count) {
+			long skipped = Math.max(0, Math.min(count, end - position));
+			position += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() {
+			return (int)Math.min(end - position, Integer.MAX_VALUE);
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	/**
+	 * Fills the given buffer from the given file offset, without moving
+	 * the channel's own position, and returns the number of bytes read.
+	 */
+	private int read(ByteBuffer buffer, long offset)
+	throws IOException {
+		int read = 0;
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, offset + read);
+			if (count < 0)
+				break;
+			read += count;
+		}
+		return read;
+	}
+	
+	private void checkExtent(int spectrum, long end)
+	throws IOException {
+		if (end > channel.size())
+			throw new IllegalStateException(String.format(
+				"Spectrum %d (scan number %d) extends beyond the end of " +
+				"file [%s]; the index may be out of date.", spectrum,
+				index.getScan(spectrum), spectrumFile.getAbsolutePath()));
+	}
+}
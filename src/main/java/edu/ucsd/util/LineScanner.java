@@ -0,0 +1,156 @@
+package edu.ucsd.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reader that splits an input stream into lines directly in its own byte
+ * buffer, without decoding them to strings, and recognizing the same line
+ * terminators as {@link java.io.BufferedReader#readLine()}.  After each
+ * call to {@link #next()}, the current line occupies the range
+ * [{@link #getStart()}, {@link #getEnd()}) of {@link #getBuffer()}, which
+ * is only valid until the next call.
+ */
+public class LineScanner
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private InputStream input;
+	private byte[]      buffer;
+	private int         start;
+	private int         end;
+	private int         position;
+	private int         limit;
+	// number of bytes already discarded from the front of the buffer
+	private long        discarded;
+	private boolean     finished;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	public LineScanner(InputStream input) {
+		this(input, DEFAULT_BUFFER_SIZE);
+	}
+	
+	public LineScanner(InputStream input, int bufferSize) {
+		if (input == null)
+			throw new NullPointerException("Input stream cannot be null.");
+		else if (bufferSize <= 0)
+			throw new IllegalArgumentException(String.format(
+				"Buffer size (%d) must be positive.", bufferSize));
+		this.input = input;
+		buffer = new byte[bufferSize];
+		start = end = position = limit = 0;
+		discarded = 0;
+		finished = false;
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	public boolean next()
+	throws IOException {
+		int scan = position;
+		while (true) {
+			for (; scan<limit; scan++) {
+				byte character = buffer[scan];
+				if (character != '\n' && character != '\r')
+					continue;
+				// a carriage return may be followed by a line feed
+				// that has not been read into the buffer yet
+				else if (character == '\r' && scan + 1 >= limit &&
+					finished == false)
+					break;
+				start = position;
+				end = scan;
+				position = scan + 1;
+				if (character == '\r' && position < limit &&
+					buffer[position] == '\n')
+					position++;
+				return true;
+			}
+			// the last line need not be terminated
+			if (finished) {
+				if (position >= limit)
+					return false;
+				start = position;
+				end = limit;
+				position = limit;
+				return true;
+			}
+			scan -= position;
+			fill();
+		}
+	}
+	
+	/*========================================================================
+	 * Property accessor methods
+	 *========================================================================*/
+	public byte[] getBuffer() {
+		return buffer;
+	}
+	
+	public int getStart() {
+		return start;
+	}
+	
+	public int getEnd() {
+		return end;
+	}
+	
+	public int getLength() {
+		return end - start;
+	}
+	
+	/**
+	 * Returns the number of bytes in the current line's terminator
+	 * (0 for an unterminated last line, 2 for "\r\n", or 1 otherwise).
+	 */
+	public int getTerminatorLength() {
+		return position - end;
+	}
+	
+	/**
+	 * Returns the byte offset of the start of the current line
+	 * in the input stream.
+	 */
+	public long getOffset() {
+		return discarded + start;
+	}
+	
+	/**
+	 * Returns the byte offset just past the current line's terminator in
+	 * the input stream, which is the input's length once every line has
+	 * been read.
+	 */
+	public long getNextOffset() {
+		return discarded + position;
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private void fill()
+	throws IOException {
+		// move the unfinished line to the front of
+		// the buffer, growing it if the line fills it
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			discarded += position;
+			position = 0;
+		} else if (limit >= buffer.length)
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		int read = input.read(buffer, limit, buffer.length - limit);
+		if (read < 0)
+			finished = true;
+		else limit += read;
+	}
+}
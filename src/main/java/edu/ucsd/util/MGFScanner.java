@@ -0,0 +1,390 @@
+package edu.ucsd.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over the spectra of an MGF file that splits it into lines
+ * directly in a byte buffer, so that only the few header fields of each
+ * spectrum are ever decoded, and peak lines are merely counted.  Memory
+ * use is bounded by the longest line, however large the file is.
+ *
+ * A spectrum starts with a "BEGIN IONS" line and ends with an "END IONS"
+ * line, the next "BEGIN IONS" line or the end of the file.  A CHARGE
+ * line outside of a spectrum is the default for later spectra without one.
+ * This is the only MGF parser, so that counting, profiling and indexing an
+ * MGF file (see {@link MS2SpectrumCounter}) all find the same spectra.
+ * Since an iterator cannot throw checked exceptions, read errors are
+ * thrown as {@link UncheckedIOException}s.
+ */
+public class MGFScanner
+implements Iterator<MGFScanner.Spectrum>, Closeable
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final byte[] BEGIN_IONS = bytes("BEGIN IONS");
+	private static final byte[] END_IONS = bytes("END IONS");
+	private static final byte[] TITLE = bytes("TITLE");
+	private static final byte[] PEPMASS = bytes("PEPMASS");
+	private static final byte[] CHARGE = bytes("CHARGE");
+	private static final byte[] RTINSECONDS = bytes("RTINSECONDS");
+	private static final byte[] SCANS = bytes("SCANS");
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private InputStream input;
+	private LineScanner lines;
+	private Spectrum    next;
+	// spectrum whose "BEGIN IONS" line ended the previous spectrum
+	private Spectrum    started;
+	private int         defaultCharge;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	public MGFScanner(File file)
+	throws IOException {
+		this(new FileInputStream(file));
+	}
+	
+	public MGFScanner(InputStream input) {
+		if (input == null)
+			throw new NullPointerException("Input stream cannot be null.");
+		this.input = input;
+		lines = new LineScanner(input, BUFFER_SIZE);
+		next = started = null;
+		defaultCharge = 0;
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	public boolean hasNext() {
+		if (next == null) try {
+			next = readSpectrum();
+		} catch (IOException error) {
+			throw new UncheckedIOException(error);
+		}
+		return next != null;
+	}
+	
+	public Spectrum next() {
+		if (hasNext() == false)
+			throw new NoSuchElementException();
+		Spectrum spectrum = next;
+		next = null;
+		return spectrum;
+	}
+	
+	public void close()
+	throws IOException {
+		input.close();
+	}
+	
+	/**
+	 * Counts the spectra in the rest of this scanner's input, without
+	 * reading any of their header fields.
+	 */
+	public int count()
+	throws IOException {
+		int count = (next != null ? 1 : 0) + (started != null ? 1 : 0);
+		next = started = null;
+		while (lines.next()) {
+			if (isLine(BEGIN_IONS))
+				count++;
+		}
+		return count;
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Header fields and peak count of one MGF spectrum.
+	 */
+	public static class Spectrum {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private long   offset;
+		private long   length;
+		private int    scan;
+		private String title;
+		private double precursorMz;
+		private double precursorIntensity;
+		private int    charge;
+		private double retentionTime;
+		private int    peakCount;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		private Spectrum(long offset, int charge) {
+			this.offset = offset;
+			this.charge = charge;
+			scan = -1;
+			precursorMz = Double.NaN;
+			precursorIntensity = Double.NaN;
+			retentionTime = Double.NaN;
+		}
+		
+		/*====================================================================
+		 * Property accessor methods
+		 *====================================================================*/
+		/**
+		 * Returns the byte offset of this spectrum's "BEGIN IONS" line.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+		
+		/**
+		 * Returns the number of bytes from this spectrum's offset to the end
+		 * of its "END IONS" line, or if it has none, to the start of the next
+		 * spectrum or the end of the file.
+		 */
+		public long getLength() {
+			return length;
+		}
+		
+		/**
+		 * Returns the first scan number of the SCANS line,
+		 * or -1 if there is none.
+		 */
+		public int getScan() {
+			return scan;
+		}
+		
+		public String getTitle() {
+			return title;
+		}
+		
+		/**
+		 * Returns the m/z of the PEPMASS line, or NaN if there is none.
+		 */
+		public double getPrecursorMz() {
+			return precursorMz;
+		}
+		
+		/**
+		 * Returns the optional intensity of the PEPMASS line,
+		 * or NaN if there is none.
+		 */
+		public double getPrecursorIntensity() {
+			return precursorIntensity;
+		}
+		
+		/**
+		 * Returns the first charge of the CHARGE line, ignoring its sign,
+		 * or 0 if there is none.
+		 */
+		public int getCharge() {
+			return charge;
+		}
+		
+		/**
+		 * Returns the RTINSECONDS value, or NaN if there is none.
+		 */
+		public double getRetentionTime() {
+			return retentionTime;
+		}
+		
+		public int getPeakCount() {
+			return peakCount;
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	/**
+	 * Reads the next spectrum, or returns null at the end of the input.
+	 */
+	private Spectrum readSpectrum()
+	throws IOException {
+		// a spectrum may already have been started
+		// by the line that ended the last one
+		Spectrum spectrum = started;
+		started = null;
+		while (lines.next()) {
+			if (isLine(BEGIN_IONS)) {
+				Spectrum begun = new Spectrum(lines.getOffset(), defaultCharge);
+				// an unterminated spectrum ends at the next one
+				if (spectrum != null) {
+					spectrum.length = begun.offset - spectrum.offset;
+					started = begun;
+					return spectrum;
+				}
+				spectrum = begun;
+			} else if (spectrum == null) {
+				// only a default charge matters outside of spectra
+				int value = findValue(CHARGE);
+				if (value >= 0)
+					defaultCharge = parseCharge(value, lines.getEnd());
+			} else if (isLine(END_IONS)) {
+				spectrum.length = lines.getNextOffset() - spectrum.offset;
+				return spectrum;
+			} else readLine(spectrum);
+		}
+		if (spectrum != null)
+			spectrum.length = lines.getNextOffset() - spectrum.offset;
+		return spectrum;
+	}
+	
+	/**
+	 * Counts the current line if it is a peak, or otherwise reads
+	 * it into the given spectrum if it is a recognized field.
+	 */
+	private void readLine(Spectrum spectrum) {
+		byte[] buffer = lines.getBuffer();
+		int start = skipWhitespace(lines.getStart());
+		int end = lines.getEnd();
+		if (start >= end)
+			return;
+		byte first = buffer[start];
+		if ((first >= '0' && first <= '9') || first == '.' ||
+			first == '-' || first == '+') {
+			spectrum.peakCount++;
+			return;
+		}
+		int value = -1;
+		if ((value = findValue(PEPMASS)) >= 0) {
+			int tokenEnd = findTokenEnd(value);
+			spectrum.precursorMz = parseNumber(value, tokenEnd);
+			int next = skipWhitespace(tokenEnd);
+			if (next < end)
+				spectrum.precursorIntensity =
+					parseNumber(next, findTokenEnd(next));
+		} else if ((value = findValue(CHARGE)) >= 0) {
+			int charge = parseCharge(value, end);
+			if (charge > 0)
+				spectrum.charge = charge;
+		} else if ((value = findValue(RTINSECONDS)) >= 0)
+			spectrum.retentionTime =
+				parseNumber(value, findTokenEnd(value));
+		else if ((value = findValue(TITLE)) >= 0)
+			spectrum.title = string(value, end);
+		else if ((value = findValue(SCANS)) >= 0)
+			spectrum.scan = parseScan(value, end);
+	}
+	
+	/**
+	 * Determines whether the current line, trimmed, is the given keyword.
+	 */
+	private boolean isLine(byte[] keyword) {
+		byte[] buffer = lines.getBuffer();
+		int start = skipWhitespace(lines.getStart());
+		int end = lines.getEnd();
+		while (end > start && isWhitespace(buffer[end - 1]))
+			end--;
+		if (end - start != keyword.length)
+			return false;
+		for (int i=0; i<keyword.length; i++)
+			if (buffer[start + i] != keyword[i])
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Returns the buffer index of the start of the value if the current
+	 * line is a field with the given key, or -1 if it is not.
+	 */
+	private int findValue(byte[] key) {
+		byte[] buffer = lines.getBuffer();
+		int start = skipWhitespace(lines.getStart());
+		int end = lines.getEnd();
+		if (end - start <= key.length)
+			return -1;
+		for (int i=0; i<key.length; i++)
+			if (buffer[start + i] != key[i])
+				return -1;
+		int i = start + key.length;
+		while (i < end && isWhitespace(buffer[i]))
+			i++;
+		if (i >= end || buffer[i] != '=')
+			return -1;
+		return skipWhitespace(i + 1);
+	}
+	
+	/**
+	 * Parses the first charge from the given buffer index, ignoring its
+	 * sign and any further charges, as in "2+ and 3+", or returns 0 if
+	 * there is no charge.
+	 */
+	private int parseCharge(int start, int end) {
+		byte[] buffer = lines.getBuffer();
+		int charge = 0;
+		int i = start;
+		while (i < end && (buffer[i] < '0' || buffer[i] > '9'))
+			i++;
+		while (i < end && buffer[i] >= '0' && buffer[i] <= '9' &&
+			charge < 1000)
+			charge = charge * 10 + buffer[i++] - '0';
+		return charge;
+	}
+	
+	/**
+	 * Parses the leading digits from the given buffer index as a scan
+	 * number, as in "12-14", or returns -1 if there are none.
+	 */
+	private int parseScan(int start, int end) {
+		byte[] buffer = lines.getBuffer();
+		long scan = 0;
+		int i = start;
+		while (i < end && buffer[i] >= '0' && buffer[i] <= '9' &&
+			scan <= Integer.MAX_VALUE)
+			scan = scan * 10 + buffer[i++] - '0';
+		if (i == start || scan > Integer.MAX_VALUE)
+			return -1;
+		else return (int)scan;
+	}
+	
+	private double parseNumber(int start, int end) {
+		if (start >= end)
+			return Double.NaN;
+		try {
+			return Double.parseDouble(string(start, end));
+		} catch (NumberFormatException error) {
+			return Double.NaN;
+		}
+	}
+	
+	private int findTokenEnd(int start) {
+		byte[] buffer = lines.getBuffer();
+		int end = lines.getEnd();
+		while (start < end && isWhitespace(buffer[start]) == false)
+			start++;
+		return start;
+	}
+	
+	private int skipWhitespace(int start) {
+		byte[] buffer = lines.getBuffer();
+		int end = lines.getEnd();
+		while (start < end && isWhitespace(buffer[start]))
+			start++;
+		return start;
+	}
+	
+	private String string(int start, int end) {
+		return new String(lines.getBuffer(), start, end - start,
+			StandardCharsets.UTF_8).trim();
+	}
+	
+	private static boolean isWhitespace(byte character) {
+		return character == ' ' || character == '\t';
+	}
+	
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+}
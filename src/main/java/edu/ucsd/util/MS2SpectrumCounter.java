@@ -0,0 +1,1005 @@
+package edu.ucsd.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import edu.ucsd.util.SpectrumFileUtils.SpectrumFileType;
+
+/**
+ * Counter of the MS2 spectra in a spectrum file that scans its raw bytes
+ * for the few markup patterns that matter, instead of parsing it as XML.
+ * Patterns are found with a multi-pattern Boyer-Moore-Horspool search,
+ * which only examines a fraction of the bytes it passes, and only the
+ * start tags of the relevant elements are ever parsed.  Base64-encoded
+ * peak data, which is most of the file but cannot contain markup, is
+ * skipped by searching for the long end tag of its element alone.  Only
+ * the current tag is ever held, so memory use is bounded however large
+ * the file is.
+ *
+ * The counts match those of the StAX-based counting in
+ * {@link SpectrumFileUtils}: mzXML "scan" elements with an msLevel
+ * attribute of "2", and mzML "spectrum" elements containing a cvParam
+ * named "ms level" with value "2", ignoring comments and CDATA sections.
+ * Elements with namespace prefixes are not recognized, and the file is
+ * not otherwise checked for well-formedness.  MGF files are handed to
+ * {@link MGFScanner}, so that they are parsed by one set of rules however
+ * they are read.
+ *
+ * The same scan can instead visit every spectrum, reading its location
+ * in the input and its scan number, MS level, precursor and retention
+ * time from the few header fields that give them, to build a
+ * {@link SpectrumFileProfile} or a {@link SpectrumIndex}.
+ */
+public class MS2SpectrumCounter
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	private static final int BUFFER_SIZE = 1 << 20;
+	// longest start tag that will be parsed before the file is rejected
+	private static final int MAX_TAG_LENGTH = 1 << 16;
+	private static final byte[] MS2_LEVEL = bytes("2");
+	private static final byte[] MS_LEVEL_ATTRIBUTE = bytes("msLevel");
+	private static final byte[] NAME_ATTRIBUTE = bytes("name");
+	private static final byte[] VALUE_ATTRIBUTE = bytes("value");
+	private static final byte[] MS_LEVEL_NAME = bytes("ms level");
+	private static final byte[] RETENTION_TIME_ATTRIBUTE =
+		bytes("retentionTime");
+	private static final byte[] PRECURSOR_CHARGE_ATTRIBUTE =
+		bytes("precursorCharge");
+	private static final byte[] UNIT_NAME_ATTRIBUTE = bytes("unitName");
+	private static final byte[] CHARGE_STATE_NAME = bytes("charge state");
+	private static final byte[] SCAN_START_TIME_NAME =
+		bytes("scan start time");
+	private static final byte[] MINUTE_UNIT = bytes("minute");
+	private static final byte[] SELECTED_ION_MZ_NAME =
+		bytes("selected ion m/z");
+	private static final byte[] NUM_ATTRIBUTE = bytes("num");
+	private static final byte[] ID_ATTRIBUTE = bytes("id");
+	private static final byte[] SCAN_KEY = bytes("scan=");
+	// pattern sets searched for in each scanning state; the first pattern
+	// of each set is the element of interest, the next three are the
+	// starts of sections whose content must be skipped
+	private static final PatternSet MZXML_PATTERNS =
+		new PatternSet("<scan", "<!--", "<![CDATA[", "<peaks");
+	private static final PatternSet MZML_SPECTRUM_PATTERNS =
+		new PatternSet("<spectrum", "<!--", "<![CDATA[", "<binary");
+	private static final PatternSet MZML_CV_PARAM_PATTERNS = new PatternSet(
+		"<cvParam", "<!--", "<![CDATA[", "<binary", "</spectrum");
+	private static final PatternSet MZML_END_PATTERNS =
+		new PatternSet("</spectrum", "<!--", "<![CDATA[", "<binary");
+	// a spectrum's own cvParams all precede its binary data arrays,
+	// so header reads stop at the start of either the array list
+	// or (in files that omit the list) the first array
+	private static final PatternSet MZML_HEADER_PATTERNS = new PatternSet(
+		"<cvParam", "<!--", "<![CDATA[", "<binaryDataArray", "</spectrum");
+	// visits also need each mzXML scan's precursor and end
+	private static final PatternSet MZXML_VISIT_PATTERNS = new PatternSet(
+		"<scan", "<!--", "<![CDATA[", "<peaks", "<precursorMz", "</scan");
+	private static final PatternSet COMMENT_END = new PatternSet("-->");
+	private static final PatternSet CDATA_END = new PatternSet("]]>");
+	private static final PatternSet PEAKS_END = new PatternSet("</peaks");
+	private static final PatternSet BINARY_END = new PatternSet("</binary");
+	private static final int COMMENT = 1;
+	private static final int CDATA = 2;
+	private static final int PEAK_DATA = 3;
+	private static final int SPECTRUM_END = 4;
+	private static final int PRECURSOR = 4;
+	private static final int SCAN_END = 5;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private InputStream input;
+	private byte[]      buffer;
+	private int         position;
+	private int         limit;
+	// number of bytes already discarded from the front of the buffer
+	private long        discarded;
+	private boolean     finished;
+	// end of the value found by the last call to findAttribute
+	private int         valueEnd;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	public MS2SpectrumCounter(InputStream input) {
+		this(input, BUFFER_SIZE);
+	}
+	
+	public MS2SpectrumCounter(InputStream input, int bufferSize) {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException(String.format(
+				"Buffer size (%d) must be positive.", bufferSize));
+		buffer = new byte[bufferSize];
+		reset(input);
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Counts the MS2 spectra in the rest of this counter's input stream,
+	 * interpreted as the given type of spectrum file.
+	 */
+	public int count(SpectrumFileType type)
+	throws IOException {
+		if (type == null)
+			throw new NullPointerException(
+				"Spectrum file type cannot be null.");
+		switch (type) {
+			case MGF:
+				return countMGF();
+			case MZXML:
+				return countMzXML();
+			case MZML:
+			case MZML_GZ:
+				return countMzML();
+			default:
+				throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Adds every spectrum in the rest of this counter's input stream,
+	 * interpreted as the given type of spectrum file, to the given profile.
+	 */
+	public void profile(
+		SpectrumFileType type, final SpectrumFileProfile profile
+	) throws IOException {
+		if (profile == null)
+			throw new NullPointerException("Profile cannot be null.");
+		visit(type, new Visitor() {
+			public void visitSpectrum(
+				long offset, long length, int scan, int msLevel, int charge,
+				double retentionTime, double precursorMz
+			) {
+				profile.addSpectrum(msLevel, charge, retentionTime);
+			}
+		});
+	}
+	
+	/**
+	 * Passes every spectrum in the rest of this counter's input stream,
+	 * interpreted as the given type of spectrum file, to the given visitor,
+	 * in the order in which the spectra start.
+	 */
+	void visit(SpectrumFileType type, Visitor visitor)
+	throws IOException {
+		if (type == null)
+			throw new NullPointerException(
+				"Spectrum file type cannot be null.");
+		else if (visitor == null)
+			throw new NullPointerException("Visitor cannot be null.");
+		switch (type) {
+			case MGF:
+				visitMGF(visitor);
+				break;
+			case MZXML:
+				visitMzXML(visitor);
+				break;
+			case MZML:
+			case MZML_GZ:
+				visitMzML(visitor);
+				break;
+			default:
+				throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Determines whether the mzML spectrum element at the start of the
+	 * rest of this counter's input stream is an MS2 spectrum, reading only
+	 * its header, up to its binary data arrays.  Returns null if the
+	 * stream does not start with a spectrum element.
+	 */
+	public Boolean isMS2Spectrum()
+	throws IOException {
+		byte[] spectrum = MZML_SPECTRUM_PATTERNS.patterns[0];
+		if (require(spectrum.length) == false ||
+			rangeEquals(position, position + spectrum.length, spectrum) ==
+				false ||
+			isStartTag(spectrum.length) == false)
+			return null;
+		int end = findTagEnd();
+		if (end < 0)
+			return null;
+		else if (buffer[end - 1] == '/')
+			return false;
+		position = end + 1;
+		return findMS2Level(MZML_HEADER_PATTERNS) > 0;
+	}
+	
+	/**
+	 * Discards any buffered input, and continues with the given stream.
+	 */
+	public void reset(InputStream input) {
+		if (input == null)
+			throw new NullPointerException("Input stream cannot be null.");
+		this.input = input;
+		position = limit = 0;
+		discarded = 0;
+		finished = false;
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Receiver of each spectrum found by {@link MS2SpectrumCounter#visit}.
+	 */
+	static interface Visitor {
+		/**
+		 * Receives a spectrum spanning the given number of bytes from the
+		 * given byte offset of the input.  A scan number of -1, an MS level
+		 * or charge of 0, and a retention time (in seconds) or precursor
+		 * m/z of NaN mean that the spectrum does not give them.
+		 */
+		public void visitSpectrum(
+			long offset, long length, int scan, int msLevel, int charge,
+			double retentionTime, double precursorMz);
+	}
+	
+	/**
+	 * Set of byte patterns to be searched for together, with the shift
+	 * table of a Boyer-Moore-Horspool search over a window as long as the
+	 * shortest pattern.
+	 */
+	private static class PatternSet {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private byte[][] patterns;
+		private int      window;
+		// shift for each byte at the end of the window, which is 0 if the
+		// window might be the start of a pattern and must be verified
+		private int[]    shifts;
+		// shift after a window has been verified
+		private int[]    verifiedShifts;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public PatternSet(String... patterns) {
+			this.patterns = new byte[patterns.length][];
+			window = Integer.MAX_VALUE;
+			for (int i=0; i<patterns.length; i++) {
+				this.patterns[i] = bytes(patterns[i]);
+				window = Math.min(window, this.patterns[i].length);
+			}
+			verifiedShifts = new int[256];
+			for (int i=0; i<256; i++)
+				verifiedShifts[i] = window;
+			for (byte[] pattern : this.patterns)
+				for (int j=0; j<window-1; j++)
+					verifiedShifts[pattern[j] & 0xFF] = Math.min(
+						verifiedShifts[pattern[j] & 0xFF], window - 1 - j);
+			shifts = verifiedShifts.clone();
+			for (byte[] pattern : this.patterns)
+				shifts[pattern[window - 1] & 0xFF] = 0;
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private int countMGF()
+	throws IOException {
+		return new MGFScanner(remainingInput()).count();
+	}
+	
+	private int countMzXML()
+	throws IOException {
+		int count = 0;
+		byte[] scan = MZXML_PATTERNS.patterns[0];
+		for (int found=find(MZXML_PATTERNS); found>=0;
+			found=find(MZXML_PATTERNS)) {
+			if (found != 0)
+				skipSection(MZXML_PATTERNS, found, PEAKS_END);
+			else if (isStartTag(scan.length) == false)
+				position += scan.length;
+			else {
+				int end = findTagEnd();
+				if (end < 0)
+					break;
+				int value = findAttribute(position, end, MS_LEVEL_ATTRIBUTE);
+				if (value >= 0 && trimmedEquals(value, valueEnd, MS2_LEVEL))
+					count++;
+				position = end + 1;
+			}
+		}
+		return count;
+	}
+	
+	private int countMzML()
+	throws IOException {
+		int count = 0;
+		byte[] spectrum = MZML_SPECTRUM_PATTERNS.patterns[0];
+		byte[] spectrumEnd = MZML_END_PATTERNS.patterns[0];
+		// find each spectrum start tag
+		for (int found=find(MZML_SPECTRUM_PATTERNS); found>=0;
+			found=find(MZML_SPECTRUM_PATTERNS)) {
+			if (found != 0) {
+				skipSection(MZML_SPECTRUM_PATTERNS, found, BINARY_END);
+				continue;
+			} else if (isStartTag(spectrum.length) == false) {
+				position += spectrum.length;
+				continue;
+			}
+			int end = findTagEnd();
+			if (end < 0)
+				break;
+			boolean empty = buffer[end - 1] == '/';
+			position = end + 1;
+			if (empty)
+				continue;
+			// look through this spectrum's cvParams for its MS level
+			int ms2 = findMS2Level(MZML_CV_PARAM_PATTERNS);
+			if (ms2 < 0)
+				return count;
+			else if (ms2 == 0)
+				continue;
+			count++;
+			// skip the rest of this spectrum, including its peak data
+			while (true) {
+				found = find(MZML_END_PATTERNS);
+				if (found < 0)
+					return count;
+				else if (found != 0)
+					skipSection(MZML_END_PATTERNS, found, BINARY_END);
+				else if (isEndTag(spectrumEnd.length))
+					break;
+				else position += spectrumEnd.length;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Visits each MGF spectrum found by an {@link MGFScanner}, all of which
+	 * are MS2 spectra.
+	 */
+	private void visitMGF(Visitor visitor)
+	throws IOException {
+		long base = discarded + position;
+		MGFScanner scanner = new MGFScanner(remainingInput());
+		try {
+			while (scanner.hasNext()) {
+				MGFScanner.Spectrum spectrum = scanner.next();
+				visitor.visitSpectrum(base + spectrum.getOffset(),
+					spectrum.getLength(), spectrum.getScan(), 2,
+					spectrum.getCharge(), spectrum.getRetentionTime(),
+					spectrum.getPrecursorMz());
+			}
+		} catch (UncheckedIOException error) {
+			throw error.getCause();
+		}
+	}
+	
+	/**
+	 * Returns the rest of this counter's input, starting with whatever is
+	 * still buffered, leaving nothing more for this counter to read.  The
+	 * input is left open for its caller, although a sequence of streams
+	 * closes each one that it finishes.
+	 */
+	private InputStream remainingInput() {
+		InputStream remaining = new SequenceInputStream(
+			new ByteArrayInputStream(buffer, position, limit - position),
+			new FilterInputStream(input) {
+				@Override
+				public void close() {}
+			});
+		position = limit;
+		finished = true;
+		return remaining;
+	}
+	
+	/**
+	 * Visits each mzXML scan, spanning from its start tag to its end tag,
+	 * or to the start of the first scan nested within it, since MS2 scans
+	 * may be nested within the MS1 scans they derive from.  Its precursor
+	 * is the first precursorMz element in that span.
+	 */
+	private void visitMzXML(Visitor visitor)
+	throws IOException {
+		byte[] scanTag = MZXML_VISIT_PATTERNS.patterns[0];
+		byte[] precursor = MZXML_VISIT_PATTERNS.patterns[PRECURSOR];
+		byte[] scanEnd = MZXML_VISIT_PATTERNS.patterns[SCAN_END];
+		boolean inScan = false;
+		long offset = 0;
+		int scan = -1;
+		int msLevel = 0;
+		int charge = 0;
+		double retentionTime = Double.NaN;
+		double precursorMz = Double.NaN;
+		for (int found=find(MZXML_VISIT_PATTERNS); found>=0;
+			found=find(MZXML_VISIT_PATTERNS)) {
+			if (found == SCAN_END) {
+				if (isEndTag(scanEnd.length) == false) {
+					position += scanEnd.length;
+					continue;
+				}
+				int end = findTagEnd();
+				if (end < 0)
+					break;
+				position = end + 1;
+				if (inScan)
+					visitor.visitSpectrum(offset,
+						discarded + position - offset, scan, msLevel,
+						charge, retentionTime, precursorMz);
+				inScan = false;
+			} else if (found == PRECURSOR) {
+				if (isStartTag(precursor.length) == false) {
+					position += precursor.length;
+					continue;
+				}
+				int end = findTagEnd();
+				if (end < 0)
+					break;
+				boolean first = inScan && Double.isNaN(precursorMz);
+				if (first) {
+					int value = findAttribute(
+						position, end, PRECURSOR_CHARGE_ATTRIBUTE);
+					if (value >= 0)
+						charge = parseCharge(value, valueEnd);
+				}
+				position = end + 1;
+				// the precursor's m/z is the element's content
+				if (first && buffer[end - 1] != '/') {
+					int contentEnd = findByte((byte)'<');
+					precursorMz = parseNumber(position, contentEnd);
+					position = contentEnd;
+				}
+			} else if (found != 0)
+				skipSection(MZXML_VISIT_PATTERNS, found, PEAKS_END);
+			else if (isStartTag(scanTag.length) == false)
+				position += scanTag.length;
+			else {
+				long start = discarded + position;
+				int end = findTagEnd();
+				if (end < 0)
+					break;
+				if (inScan)
+					visitor.visitSpectrum(offset, start - offset, scan,
+						msLevel, charge, retentionTime, precursorMz);
+				inScan = true;
+				offset = start;
+				int value = findAttribute(position, end, NUM_ATTRIBUTE);
+				scan = value < 0 ? -1 : parseScan(value, valueEnd);
+				value = findAttribute(position, end, MS_LEVEL_ATTRIBUTE);
+				msLevel = value < 0 ? 0 : parseLevel(value, valueEnd);
+				charge = 0;
+				value = findAttribute(position, end, RETENTION_TIME_ATTRIBUTE);
+				retentionTime = value < 0 ? Double.NaN :
+					parseDuration(value, valueEnd);
+				precursorMz = Double.NaN;
+				position = end + 1;
+				// an empty scan element ends at its own start tag
+				if (buffer[end - 1] == '/') {
+					visitor.visitSpectrum(offset,
+						discarded + position - offset, scan, msLevel,
+						charge, retentionTime, precursorMz);
+					inScan = false;
+				}
+			}
+		}
+		if (inScan)
+			visitor.visitSpectrum(offset, discarded + limit - offset, scan,
+				msLevel, charge, retentionTime, precursorMz);
+	}
+	
+	/**
+	 * Visits each mzML spectrum, spanning its whole element, reading its
+	 * scan number from its id (e.g. "... scan=12") and the rest from its
+	 * "ms level", "charge state", "selected ion m/z" and "scan start time"
+	 * cvParams.
+	 */
+	private void visitMzML(Visitor visitor)
+	throws IOException {
+		byte[] spectrum = MZML_SPECTRUM_PATTERNS.patterns[0];
+		byte[] cvParam = MZML_CV_PARAM_PATTERNS.patterns[0];
+		byte[] spectrumEnd = MZML_CV_PARAM_PATTERNS.patterns[SPECTRUM_END];
+		for (int found=find(MZML_SPECTRUM_PATTERNS); found>=0;
+			found=find(MZML_SPECTRUM_PATTERNS)) {
+			if (found != 0) {
+				skipSection(MZML_SPECTRUM_PATTERNS, found, BINARY_END);
+				continue;
+			} else if (isStartTag(spectrum.length) == false) {
+				position += spectrum.length;
+				continue;
+			}
+			long offset = discarded + position;
+			int end = findTagEnd();
+			if (end < 0)
+				return;
+			boolean empty = buffer[end - 1] == '/';
+			int scan = -1;
+			int id = findAttribute(position, end, ID_ATTRIBUTE);
+			if (id >= 0)
+				scan = findScanNumber(id, valueEnd);
+			position = end + 1;
+			int msLevel = 0;
+			int charge = 0;
+			double retentionTime = Double.NaN;
+			double precursorMz = Double.NaN;
+			// read this spectrum's cvParams up to its end tag
+			while (empty == false) {
+				found = find(MZML_CV_PARAM_PATTERNS);
+				if (found < 0)
+					break;
+				else if (found == SPECTRUM_END) {
+					if (isEndTag(spectrumEnd.length)) {
+						end = findTagEnd();
+						if (end >= 0)
+							position = end + 1;
+						break;
+					}
+					position += spectrumEnd.length;
+				} else if (found != 0)
+					skipSection(MZML_CV_PARAM_PATTERNS, found, BINARY_END);
+				else if (isStartTag(cvParam.length) == false)
+					position += cvParam.length;
+				else {
+					end = findTagEnd();
+					if (end < 0)
+						break;
+					int name = findAttribute(position, end, NAME_ATTRIBUTE);
+					int nameEnd = valueEnd;
+					int value = findAttribute(position, end, VALUE_ATTRIBUTE);
+					if (name >= 0 && value >= 0) {
+						// as when counting, any MS level of 2 makes this
+						// an MS2 spectrum; otherwise the first one counts
+						if (msLevel != 2 &&
+							trimmedEquals(name, nameEnd, MS_LEVEL_NAME)) {
+							int level = parseLevel(value, valueEnd);
+							if (msLevel == 0 || level == 2)
+								msLevel = level;
+						} else if (charge == 0 &&
+							trimmedEquals(name, nameEnd, CHARGE_STATE_NAME))
+							charge = parseCharge(value, valueEnd);
+						else if (Double.isNaN(precursorMz) &&
+							trimmedEquals(name, nameEnd, SELECTED_ION_MZ_NAME))
+							precursorMz = parseNumber(value, valueEnd);
+						else if (Double.isNaN(retentionTime) &&
+							trimmedEquals(name, nameEnd, SCAN_START_TIME_NAME)) {
+							retentionTime = parseNumber(value, valueEnd);
+							int unit = findAttribute(
+								position, end, UNIT_NAME_ATTRIBUTE);
+							if (unit >= 0 &&
+								trimmedEquals(unit, valueEnd, MINUTE_UNIT))
+								retentionTime *= 60;
+						}
+					}
+					position = end + 1;
+				}
+			}
+			visitor.visitSpectrum(offset,
+				discarded + Math.min(position, limit) - offset, scan,
+				msLevel, charge, retentionTime, precursorMz);
+			if (found < 0 || end < 0)
+				return;
+		}
+	}
+	
+	/**
+	 * Looks through the cvParams of the current mzML spectrum for an
+	 * "ms level" of 2, returning 1 once one is found, 0 if the spectrum
+	 * ends first (or its binary data arrays start, when only reading its
+	 * header), or -1 if the input ends first.
+	 */
+	private int findMS2Level(PatternSet set)
+	throws IOException {
+		byte[] cvParam = set.patterns[0];
+		byte[] spectrumEnd = set.patterns[SPECTRUM_END];
+		while (true) {
+			int found = find(set);
+			if (found < 0)
+				return -1;
+			else if (found == SPECTRUM_END) {
+				if (isEndTag(spectrumEnd.length))
+					return 0;
+				position += spectrumEnd.length;
+			} else if (found == PEAK_DATA && set == MZML_HEADER_PATTERNS)
+				return 0;
+			else if (found != 0)
+				skipSection(set, found, BINARY_END);
+			else if (isStartTag(cvParam.length) == false)
+				position += cvParam.length;
+			else {
+				int end = findTagEnd();
+				if (end < 0)
+					return -1;
+				int name = findAttribute(position, end, NAME_ATTRIBUTE);
+				if (name >= 0 &&
+					trimmedEquals(name, valueEnd, MS_LEVEL_NAME)) {
+					int value = findAttribute(position, end, VALUE_ATTRIBUTE);
+					if (value >= 0 &&
+						trimmedEquals(value, valueEnd, MS2_LEVEL)) {
+						position = end + 1;
+						return 1;
+					}
+				}
+				position = end + 1;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the next occurrence of any pattern in the given set, leaving
+	 * the buffer position at its start and returning its index in the
+	 * set, or -1 if none occurs before the end of the input.
+	 */
+	private int find(PatternSet set)
+	throws IOException {
+		int window = set.window;
+		while (true) {
+			int end = position + window - 1;
+			while (true) {
+				end = skip(buffer, end, limit, set.shifts);
+				if (end >= limit)
+					break;
+				// verify each pattern at this window
+				int start = end - window + 1;
+				for (int i=0; i<set.patterns.length; i++) {
+					byte[] pattern = set.patterns[i];
+					if (start + pattern.length > limit) {
+						if (finished)
+							continue;
+						// read the rest of the candidate and try again
+						position = start;
+						fill();
+						return find(set);
+					}
+					int j = 0;
+					while (j < pattern.length &&
+						buffer[start + j] == pattern[j])
+						j++;
+					if (j == pattern.length) {
+						position = start;
+						return i;
+					}
+				}
+				end += set.verifiedShifts[buffer[end] & 0xFF];
+			}
+			// keep any partial window for the next buffer
+			position = Math.min(end - window + 1, limit);
+			if (finished)
+				return -1;
+			fill();
+		}
+	}
+	
+	/**
+	 * Returns the end of the first window from the given one whose last
+	 * byte might end a pattern, or an index not less than the limit.
+	 * This is the innermost loop of every search, so it is kept small
+	 * enough to be compiled on its own.
+	 */
+	private static int skip(byte[] buffer, int end, int limit, int[] shifts) {
+		while (end < limit) {
+			int shift = shifts[buffer[end] & 0xFF];
+			if (shift == 0)
+				break;
+			end += shift;
+		}
+		return end;
+	}
+	
+	/**
+	 * Skips past the comment, CDATA section or peak data element starting
+	 * at the current position, given the end tag of peak data elements.
+	 */
+	private void skipSection(
+		PatternSet set, int section, PatternSet peakDataEnd
+	) throws IOException {
+		PatternSet end = null;
+		int length = set.patterns[section].length;
+		if (section == COMMENT || section == CDATA) {
+			end = section == COMMENT ? COMMENT_END : CDATA_END;
+			position += length;
+		} else if (section == PEAK_DATA) {
+			// the pattern may just be the start of a longer element name
+			if (isStartTag(length) == false) {
+				position += length;
+				return;
+			}
+			int tagEnd = findTagEnd();
+			if (tagEnd < 0)
+				return;
+			position = tagEnd + 1;
+			if (buffer[tagEnd - 1] == '/')
+				return;
+			end = peakDataEnd;
+		} else throw new IllegalStateException();
+		if (find(end) >= 0)
+			position += end.window;
+	}
+	
+	/**
+	 * Determines whether the element name of the given length at the
+	 * current position is complete, rather than the start of a longer name.
+	 */
+	private boolean isStartTag(int length)
+	throws IOException {
+		if (require(length + 1) == false)
+			return false;
+		byte next = buffer[position + length];
+		return isWhitespace(next) || next == '>' || next == '/';
+	}
+	
+	private boolean isEndTag(int length)
+	throws IOException {
+		if (require(length + 1) == false)
+			return false;
+		byte next = buffer[position + length];
+		return isWhitespace(next) || next == '>';
+	}
+	
+	/**
+	 * Returns the buffer index of the ">" ending the tag that starts at
+	 * the current position, or -1 if the input ends first.
+	 */
+	private int findTagEnd()
+	throws IOException {
+		byte quote = 0;
+		for (int i=position; ; i++) {
+			if (i >= limit) {
+				if (i - position > MAX_TAG_LENGTH)
+					throw new IOException(String.format(
+						"Encountered a tag longer than %d bytes.",
+						MAX_TAG_LENGTH));
+				else if (finished)
+					return -1;
+				int offset = i - position;
+				fill();
+				i = position + offset;
+				if (i >= limit)
+					return -1;
+			}
+			byte character = buffer[i];
+			if (quote != 0) {
+				if (character == quote)
+					quote = 0;
+			} else if (character == '"' || character == '\'')
+				quote = character;
+			else if (character == '>')
+				return i;
+		}
+	}
+	
+	/**
+	 * Returns the buffer index of the start of the value of the named
+	 * attribute in the tag occupying [start, end) of the buffer, setting
+	 * valueEnd to the end of the value, or -1 if there is no such
+	 * attribute.
+	 */
+	private int findAttribute(int start, int end, byte[] name) {
+		// skip the element name
+		int i = start + 1;
+		while (i < end && isWhitespace(buffer[i]) == false &&
+			buffer[i] != '/')
+			i++;
+		while (i < end) {
+			while (i < end && (isWhitespace(buffer[i]) || buffer[i] == '/'))
+				i++;
+			int nameStart = i;
+			while (i < end && buffer[i] != '=' &&
+				isWhitespace(buffer[i]) == false)
+				i++;
+			int nameEnd = i;
+			while (i < end && isWhitespace(buffer[i]))
+				i++;
+			if (i >= end || buffer[i] != '=')
+				continue;
+			i++;
+			while (i < end && isWhitespace(buffer[i]))
+				i++;
+			if (i >= end || (buffer[i] != '"' && buffer[i] != '\''))
+				return -1;
+			byte quote = buffer[i++];
+			int valueStart = i;
+			while (i < end && buffer[i] != quote)
+				i++;
+			if (rangeEquals(nameStart, nameEnd, name)) {
+				valueEnd = i;
+				return valueStart;
+			}
+			i++;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the buffer index of the next occurrence of the given byte
+	 * (such as the newline ending the current line) from the current
+	 * position, or the limit if the input ends first.
+	 */
+	private int findByte(byte target)
+	throws IOException {
+		for (int i=position; ; i++) {
+			if (i >= limit) {
+				if (i - position > MAX_TAG_LENGTH)
+					throw new IOException(String.format(
+						"Encountered a field longer than %d bytes.",
+						MAX_TAG_LENGTH));
+				else if (finished)
+					return limit;
+				int offset = i - position;
+				fill();
+				i = position + offset;
+				if (i >= limit)
+					return limit;
+			}
+			if (buffer[i] == target)
+				return i;
+		}
+	}
+	
+	/**
+	 * Parses the decimal number in [start, end) of the buffer, returning
+	 * NaN if it is not a number.  Values are parsed only once per spectrum
+	 * header field, so going through a string costs nothing noticeable.
+	 */
+	private double parseNumber(int start, int end) {
+		try {
+			return Double.parseDouble(string(start, end));
+		} catch (NumberFormatException error) {
+			return Double.NaN;
+		}
+	}
+	
+	/**
+	 * Parses the leading digits in [start, end) of the buffer, after any
+	 * whitespace, as a scan number, returning -1 if there are none.
+	 */
+	private int parseScan(int start, int end) {
+		while (start < end && isWhitespace(buffer[start]))
+			start++;
+		long scan = 0;
+		int i = start;
+		while (i < end && buffer[i] >= '0' && buffer[i] <= '9' &&
+			scan <= Integer.MAX_VALUE)
+			scan = scan * 10 + buffer[i++] - '0';
+		if (i == start || scan > Integer.MAX_VALUE)
+			return -1;
+		else return (int)scan;
+	}
+	
+	/**
+	 * Returns the scan number given by the "scan=" key of an mzML native
+	 * id in [start, end) of the buffer, or -1 if there is no such key.
+	 */
+	private int findScanNumber(int start, int end) {
+		for (int i=start; i+SCAN_KEY.length<=end; i++) {
+			if ((i == start || isWhitespace(buffer[i - 1])) &&
+				rangeEquals(i, i + SCAN_KEY.length, SCAN_KEY))
+				return parseScan(i + SCAN_KEY.length, end);
+		}
+		return -1;
+	}
+	
+	private int parseLevel(int start, int end) {
+		double level = parseNumber(start, end);
+		if (level >= 1 && level == Math.floor(level))
+			return (int)level;
+		else return 0;
+	}
+	
+	/**
+	 * Parses the first charge in [start, end) of the buffer, ignoring its
+	 * sign and any further charges, as in MGF's "2+ and 3+", or returns 0
+	 * if there is no charge.
+	 */
+	private int parseCharge(int start, int end) {
+		int charge = 0;
+		int i = start;
+		while (i < end && (buffer[i] < '0' || buffer[i] > '9'))
+			i++;
+		while (i < end && buffer[i] >= '0' && buffer[i] <= '9' &&
+			charge < 1000)
+			charge = charge * 10 + buffer[i++] - '0';
+		return charge;
+	}
+	
+	/**
+	 * Parses an xs:duration in [start, end) of the buffer, such as
+	 * mzXML's "PT123.4S", into seconds, returning NaN if it is invalid.
+	 */
+	private double parseDuration(int start, int end) {
+		String duration = string(start, end);
+		int time = duration.indexOf('T');
+		if (duration.startsWith("P") == false || time < 0)
+			return Double.NaN;
+		double seconds = 0;
+		int unitStart = time + 1;
+		for (int i=unitStart; i<duration.length(); i++) {
+			char unit = duration.charAt(i);
+			double scale = 0;
+			if (unit == 'H')
+				scale = 3600;
+			else if (unit == 'M')
+				scale = 60;
+			else if (unit == 'S')
+				scale = 1;
+			else continue;
+			try {
+				seconds += Double.parseDouble(
+					duration.substring(unitStart, i)) * scale;
+			} catch (NumberFormatException error) {
+				return Double.NaN;
+			}
+			unitStart = i + 1;
+		}
+		if (unitStart != duration.length() || unitStart == time + 1)
+			return Double.NaN;
+		else return seconds;
+	}
+	
+	private String string(int start, int end) {
+		return new String(buffer, start, end - start,
+			StandardCharsets.ISO_8859_1).trim();
+	}
+	
+	private boolean trimmedEquals(int start, int end, byte[] expected) {
+		while (start < end && isWhitespace(buffer[start]))
+			start++;
+		while (end > start && isWhitespace(buffer[end - 1]))
+			end--;
+		return rangeEquals(start, end, expected);
+	}
+	
+	private boolean rangeEquals(int start, int end, byte[] expected) {
+		if (end - start != expected.length)
+			return false;
+		for (int i=0; i<expected.length; i++)
+			if (buffer[start + i] != expected[i])
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Ensures that at least the given number of bytes are available from
+	 * the current position, returning false if the input ends first.
+	 */
+	private boolean require(int length)
+	throws IOException {
+		while (limit - position < length) {
+			if (finished)
+				return false;
+			fill();
+		}
+		return true;
+	}
+	
+	private void fill()
+	throws IOException {
+		// move the unexamined bytes to the front of the buffer,
+		// growing it if they fill it
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			discarded += position;
+			position = 0;
+		} else if (limit >= buffer.length)
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		int read = input.read(buffer, limit, buffer.length - limit);
+		if (read < 0)
+			finished = true;
+		else limit += read;
+	}
+	
+	private static boolean isWhitespace(byte character) {
+		return character == ' ' || character == '\t' ||
+			character == '\n' || character == '\r';
+	}
+	
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+}
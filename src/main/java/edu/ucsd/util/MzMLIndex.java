@@ -0,0 +1,174 @@
+package edu.ucsd.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Spectrum offsets read from the index at the end of an indexed mzML file.
+ * The "indexListOffset" element in the last few bytes of the file gives
+ * the position of the "indexList" element, whose "spectrum" index gives
+ * the byte offset of every spectrum element, so that individual spectra
+ * can be read without scanning the rest of the file.
+ */
+public class MzMLIndex
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	// the indexListOffset element is expected within this many
+	// bytes of the end of the file
+	private static final int TAIL_SIZE = 1 << 12;
+	// larger index lists are assumed to be corrupt
+	private static final long MAX_INDEX_SIZE = 1L << 30;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private long   indexOffset;
+	private long[] spectrumOffsets;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	private MzMLIndex(long indexOffset, long[] spectrumOffsets) {
+		this.indexOffset = indexOffset;
+		this.spectrumOffsets = spectrumOffsets;
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Reads the spectrum index of the given mzML file, or returns null if
+	 * the file has no index, or its index is not where it claims to be.
+	 */
+	public static MzMLIndex read(File file)
+	throws IOException {
+		if (file == null)
+			throw new NullPointerException("mzML file cannot be null.");
+		RandomAccessFile input = null;
+		try {
+			input = new RandomAccessFile(file, "r");
+			long length = input.length();
+			// find the index list offset at the end of the file
+			int tailSize = (int)Math.min(length, TAIL_SIZE);
+			String tail = read(input, length - tailSize, tailSize);
+			String offsetStart = "<indexListOffset>";
+			int start = tail.lastIndexOf(offsetStart);
+			if (start < 0)
+				return null;
+			start += offsetStart.length();
+			int end = tail.indexOf('<', start);
+			long indexOffset = parseOffset(tail, start, end);
+			if (indexOffset < 0 || indexOffset >= length - tailSize + start ||
+				length - indexOffset > MAX_INDEX_SIZE)
+				return null;
+			// check that the offset is that of the index list before
+			// reading all of it, since a wrong offset could be far back
+			int indexLength = (int)(length - tailSize + start - indexOffset);
+			String indexStart = "<indexList";
+			if (read(input, indexOffset, Math.min(indexLength,
+				indexStart.length())).equals(indexStart) == false)
+				return null;
+			// read the spectrum offsets from the index list
+			String index = read(input, indexOffset, indexLength);
+			long[] offsets = readSpectrumOffsets(index);
+			if (offsets == null)
+				return null;
+			return new MzMLIndex(indexOffset, offsets);
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/*========================================================================
+	 * Property accessor methods
+	 *========================================================================*/
+	public long getIndexOffset() {
+		return indexOffset;
+	}
+	
+	public int getSpectrumCount() {
+		return spectrumOffsets.length;
+	}
+	
+	public long getSpectrumOffset(int spectrum) {
+		return spectrumOffsets[spectrum];
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private static String read(
+		RandomAccessFile input, long offset, int length
+	) throws IOException {
+		byte[] bytes = new byte[length];
+		input.seek(offset);
+		input.readFully(bytes);
+		// markup is ASCII, and this keeps every byte at its own index
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * Returns the offsets listed in the "spectrum" index of the given
+	 * index list, or null if there is no such index.
+	 */
+	private static long[] readSpectrumOffsets(String indexList) {
+		// find the spectrum index's start tag
+		int position = 0;
+		int indexEnd = -1;
+		while (true) {
+			position = indexList.indexOf("<index", position);
+			if (position < 0)
+				return null;
+			int tagEnd = indexList.indexOf('>', position);
+			if (tagEnd < 0)
+				return null;
+			String tag = indexList.substring(position, tagEnd);
+			position = tagEnd + 1;
+			if (tag.startsWith("<index ") &&
+				(tag.contains("name=\"spectrum\"") ||
+				tag.contains("name='spectrum'"))) {
+				indexEnd = indexList.indexOf("</index>", position);
+				break;
+			}
+		}
+		if (indexEnd < 0)
+			return null;
+		// read each offset element's content
+		long[] offsets = new long[1 << 10];
+		int count = 0;
+		while (true) {
+			position = indexList.indexOf("<offset", position);
+			if (position < 0 || position > indexEnd)
+				break;
+			position = indexList.indexOf('>', position);
+			if (position < 0)
+				return null;
+			int end = indexList.indexOf('<', ++position);
+			long offset = parseOffset(indexList, position, end);
+			if (offset < 0)
+				return null;
+			else if (count >= offsets.length)
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			offsets[count++] = offset;
+			position = end;
+		}
+		return Arrays.copyOf(offsets, count);
+	}
+	
+	private static long parseOffset(String value, int start, int end) {
+		if (start < 0 || end <= start)
+			return -1;
+		try {
+			return Long.parseLong(value.substring(start, end).trim());
+		} catch (NumberFormatException error) {
+			return -1;
+		}
+	}
+}
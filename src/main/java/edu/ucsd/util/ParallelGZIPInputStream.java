@@ -0,0 +1,461 @@
+package edu.ucsd.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream of the decompressed content of a gzip file, which is
+ * decompressed ahead of the reader by background threads into a fixed
+ * ring of large buffers, so that decompression overlaps with whatever the
+ * reader does with the content.
+ *
+ * Ordinary gzip files, including multi-member ones, are decompressed by a
+ * single background thread into a small ring, since a member's compressed
+ * length is not known until it has been decompressed.  BGZF files (as
+ * written by "bgzip"), whose members each record their own compressed
+ * length, are instead split into batches of members that are decompressed
+ * in parallel, and then read in their original order.  The batches of all
+ * open streams share one pool of at most one thread per processor, and
+ * each stream has at most a given number of its batches in flight, so that
+ * many streams open at once do not multiply threads or buffers per core.
+ */
+public class ParallelGZIPInputStream
+extends InputStream
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	// size of each ring buffer, and so of each batch of BGZF members
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int FILE_BUFFER_SIZE = 1 << 16;
+	// a BGZF member is at most this long, compressed or not
+	private static final int MAX_BGZF_MEMBER_SIZE = 1 << 16;
+	private static final int GZIP_HEADER_SIZE = 12;
+	private static final int GZIP_TRAILER_SIZE = 8;
+	private static final int FEXTRA = 4;
+	// ring size for ordinary gzip: one buffer being read, one being
+	// filled, and two queued between them
+	private static final int GZIP_BUFFERS = 4;
+	// default number of BGZF batches each stream has in flight at once
+	private static final int DEFAULT_THREADS = 4;
+	private static final Chunk END = new Chunk(null, 0);
+	private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "gzip-decompressor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	// pool shared by the BGZF batches of every stream, created when first
+	// needed
+	private static ExecutorService sharedPool;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private File                          file;
+	// decompressed chunks, in order, as they are or will be completed
+	private BlockingQueue<Future<Chunk>>  chunks;
+	// ring of buffers not currently holding a chunk
+	private BlockingQueue<byte[]>         buffers;
+	private Thread                        producer;
+	private Chunk                         current;
+	private int                           position;
+	private volatile boolean              closed;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	public ParallelGZIPInputStream(File file)
+	throws IOException {
+		this(file, Math.min(
+			DEFAULT_THREADS, Runtime.getRuntime().availableProcessors()));
+	}
+	
+	/**
+	 * Opens the given gzip file, decompressing at most the given number of
+	 * its BGZF batches at once; this is ignored for ordinary gzip files.
+	 */
+	public ParallelGZIPInputStream(File file, int threads)
+	throws IOException {
+		if (file == null)
+			throw new NullPointerException("gzip file cannot be null.");
+		else if (threads < 1)
+			throw new IllegalArgumentException(String.format(
+				"Number of threads (%d) must be positive.", threads));
+		this.file = file;
+		// for BGZF, a chunk can be queued or being decompressed for each
+		// queue slot, with one more buffer being read and one being filled
+		boolean bgzf = isBGZF(file);
+		int queued = bgzf ? threads * 2 : GZIP_BUFFERS - 2;
+		chunks = new ArrayBlockingQueue<Future<Chunk>>(queued);
+		buffers = new ArrayBlockingQueue<byte[]>(queued + 2);
+		for (int i=0; i<queued+2; i++)
+			buffers.add(new byte[CHUNK_SIZE]);
+		Runnable task = null;
+		if (bgzf) {
+			task = new Runnable() {
+				public void run() {
+					produceBGZF();
+				}
+			};
+		} else task = new Runnable() {
+			public void run() {
+				produceGZIP();
+			}
+		};
+		producer = DAEMON_THREADS.newThread(task);
+		producer.start();
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	@Override
+	public int read()
+	throws IOException {
+		if (available() == 0 && nextChunk() == false)
+			return -1;
+		else return current.data[position++] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] destination, int offset, int length)
+	throws IOException {
+		if (destination == null)
+			throw new NullPointerException();
+		else if (offset < 0 || length < 0 ||
+			length > destination.length - offset)
+			throw new IndexOutOfBoundsException();
+		else if (length == 0)
+			return 0;
+		else if (available() == 0 && nextChunk() == false)
+			return -1;
+		int count = Math.min(length, available());
+		System.arraycopy(current.data, position, destination, offset, count);
+		position += count;
+		return count;
+	}
+	
+	@Override
+	public int available() {
+		if (current == null || current == END)
+			return 0;
+		else return current.length - position;
+	}
+	
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		producer.interrupt();
+		// the pool is shared, so only this stream's batches are cancelled
+		for (Future<Chunk> chunk : chunks)
+			chunk.cancel(true);
+		chunks.clear();
+		current = END;
+	}
+	
+	/**
+	 * Determines whether the given file starts with a BGZF member, i.e. a
+	 * gzip member whose header has an extra "BC" field giving its length.
+	 */
+	public static boolean isBGZF(File file)
+	throws IOException {
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new FileInputStream(file));
+			return readBGZFMemberSize(input, new byte[MAX_BGZF_MEMBER_SIZE]) >
+				0;
+		} catch (IOException error) {
+			return false;
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Struct to hold one ring buffer's worth of decompressed content.
+	 */
+	private static class Chunk {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private byte[] data;
+		private int    length;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * Task to decompress a batch of consecutive BGZF members into a single
+	 * ring buffer, checking each member's length and checksum.
+	 */
+	private static class BGZFBatch
+	implements Callable<Chunk> {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private List<byte[]> members;
+		private byte[]       buffer;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public BGZFBatch(List<byte[]> members, byte[] buffer) {
+			this.members = members;
+			this.buffer = buffer;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public Chunk call()
+		throws IOException, DataFormatException {
+			Inflater inflater = new Inflater(true);
+			CRC32 checksum = new CRC32();
+			// finishes a member once its recorded size has been inflated,
+			// which must not yield any more content
+			byte[] excess = new byte[1];
+			int length = 0;
+			try {
+				for (byte[] member : members) {
+					int start = GZIP_HEADER_SIZE + readShort(member, 10);
+					int end = member.length - GZIP_TRAILER_SIZE;
+					int size = readInt(member, end + 4);
+					inflater.reset();
+					inflater.setInput(member, start, end - start);
+					int inflated = 0;
+					while (inflater.finished() == false) {
+						int count = 0;
+						if (inflated < size)
+							count = inflater.inflate(
+								buffer, length + inflated, size - inflated);
+						else if (inflater.inflate(excess) > 0) {
+							inflated++;
+							break;
+						}
+						if (count == 0 && (inflater.needsInput() ||
+							inflater.needsDictionary()))
+							break;
+						inflated += count;
+					}
+					checksum.reset();
+					checksum.update(buffer, length, inflated);
+					if (inflated != size || inflater.finished() == false ||
+						(int)checksum.getValue() != readInt(member, end))
+						throw new IOException(
+							"Corrupt BGZF member: its decompressed content " +
+							"does not match its recorded length and CRC.");
+					length += inflated;
+				}
+			} finally {
+				inflater.end();
+			}
+			return new Chunk(buffer, length);
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private boolean nextChunk()
+	throws IOException {
+		if (closed)
+			throw new IOException("Stream closed.");
+		else if (current == END)
+			return false;
+		// return the finished chunk's buffer to the ring
+		if (current != null)
+			buffers.add(current.data);
+		current = null;
+		position = 0;
+		try {
+			current = chunks.take().get();
+		} catch (InterruptedException error) {
+			Thread.currentThread().interrupt();
+			throw new IOException(
+				"Interrupted while waiting for decompressed content.", error);
+		} catch (ExecutionException error) {
+			current = END;
+			Throwable cause = error.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			else throw new IOException(String.format(
+				"There was an error decompressing gzip file [%s].",
+				file.getName()), cause);
+		}
+		return current != END;
+	}
+	
+	/**
+	 * Decompresses an ordinary gzip file into ring buffers in sequence.
+	 */
+	private void produceGZIP() {
+		InputStream input = null;
+		try {
+			input = new GZIPInputStream(
+				new FileInputStream(file), FILE_BUFFER_SIZE);
+			int read = 0;
+			while (read >= 0) {
+				byte[] buffer = buffers.take();
+				int length = 0;
+				while (length < buffer.length && (read = input.read(
+					buffer, length, buffer.length - length)) >= 0)
+					length += read;
+				if (length > 0)
+					chunks.put(CompletableFuture.completedFuture(
+						new Chunk(buffer, length)));
+			}
+			chunks.put(CompletableFuture.completedFuture(END));
+		} catch (InterruptedException error) {
+			// the stream was closed
+		} catch (Throwable error) {
+			fail(error);
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/**
+	 * Reads a BGZF file's members in sequence, submitting each batch of
+	 * them to the thread pool to be decompressed into a ring buffer.
+	 */
+	private void produceBGZF() {
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), FILE_BUFFER_SIZE));
+			byte[] header = new byte[MAX_BGZF_MEMBER_SIZE];
+			List<byte[]> batch = new ArrayList<byte[]>();
+			int batchSize = 0;
+			while (true) {
+				int memberSize = readBGZFMemberSize(input, header);
+				if (memberSize == 0)
+					break;
+				else if (memberSize < 0)
+					throw new IOException(String.format(
+						"BGZF file [%s] contains a member that is not " +
+						"in BGZF format.", file.getName()));
+				// read the rest of the member after its header
+				int headerSize = GZIP_HEADER_SIZE + readShort(header, 10);
+				byte[] member = new byte[memberSize];
+				System.arraycopy(header, 0, member, 0, headerSize);
+				input.readFully(member, headerSize, memberSize - headerSize);
+				int size = readInt(member, memberSize - 4);
+				if (size < 0 || size > MAX_BGZF_MEMBER_SIZE)
+					throw new IOException(String.format(
+						"BGZF file [%s] contains a member with invalid " +
+						"size %d.", file.getName(), size));
+				if (batchSize + size > CHUNK_SIZE)
+					submit(batch);
+				if (batch.isEmpty())
+					batchSize = 0;
+				batch.add(member);
+				batchSize += size;
+			}
+			if (batch.isEmpty() == false)
+				submit(batch);
+			chunks.put(CompletableFuture.completedFuture(END));
+		} catch (InterruptedException error) {
+			// the stream was closed
+		} catch (Throwable error) {
+			fail(error);
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	private void submit(List<byte[]> batch)
+	throws InterruptedException {
+		chunks.put(getSharedPool().submit(new BGZFBatch(
+			new ArrayList<byte[]>(batch), buffers.take())));
+		batch.clear();
+	}
+	
+	private static synchronized ExecutorService getSharedPool() {
+		if (sharedPool == null)
+			sharedPool = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(), DAEMON_THREADS);
+		return sharedPool;
+	}
+	
+	private void fail(Throwable error) {
+		CompletableFuture<Chunk> failure = new CompletableFuture<Chunk>();
+		failure.completeExceptionally(error);
+		try {
+			chunks.put(failure);
+		} catch (InterruptedException interrupted) {}
+	}
+	
+	/**
+	 * Reads the header of the next BGZF member into the given array, and
+	 * returns the member's total size, or 0 at the end of the input, or -1
+	 * if the member is not a BGZF member.
+	 */
+	private static int readBGZFMemberSize(DataInputStream input, byte[] header)
+	throws IOException {
+		int first = input.read();
+		if (first < 0)
+			return 0;
+		header[0] = (byte)first;
+		input.readFully(header, 1, GZIP_HEADER_SIZE - 1);
+		if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 ||
+			header[2] != 8 || (header[3] & FEXTRA) == 0)
+			return -1;
+		int extraLength = readShort(header, 10);
+		input.readFully(header, GZIP_HEADER_SIZE, extraLength);
+		// find the "BC" subfield among the extra fields
+		for (int i=GZIP_HEADER_SIZE; i+4<=GZIP_HEADER_SIZE+extraLength; ) {
+			int fieldLength = readShort(header, i + 2);
+			if (header[i] == 'B' && header[i + 1] == 'C' && fieldLength == 2)
+				return readShort(header, i + 4) + 1;
+			i += 4 + fieldLength;
+		}
+		return -1;
+	}
+	
+	private static int readShort(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+	}
+	
+	private static int readInt(byte[] bytes, int offset) {
+		return readShort(bytes, offset) | readShort(bytes, offset + 2) << 16;
+	}
+}
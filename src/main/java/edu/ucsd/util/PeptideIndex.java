@@ -0,0 +1,807 @@
+package edu.ucsd.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index mapping the peptides produced by an in-silico digestion of a FASTA
+ * protein database to the proteins that contain them.  Each peptide is
+ * represented only by a 64-bit fingerprint (hash) of its residues, so the
+ * index holds one sorted array of fingerprints and one array of protein
+ * numbers, and a peptide is mapped with a single binary search.  With 64-bit
+ * fingerprints the chance of any two distinct peptides colliding is
+ * negligible even for the largest databases.
+ *
+ * Peptides are normalized before fingerprinting: only letters count, in
+ * upper case, so that modification masses and flanking residues (as in
+ * "K.PEPT+79.966IDE.R") are ignored; and if isoleucine and leucine are
+ * equated, every I is treated as L.  Only peptides that the index's own
+ * digestion rules could produce are found.
+ *
+ * Since a database can yield far more peptides than fit in memory at once,
+ * the index is built in as many passes over the FASTA file as needed, each
+ * collecting and sorting only the peptides whose fingerprints fall in one
+ * range, and written as a series of sorted blocks.
+ */
+public class PeptideIndex
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	private static final int MAGIC = 0x50504958; // "PPIX"
+	private static final int VERSION = 1;
+	// byte offset of the total peptide and protein mapping counts,
+	// which are only known once the last block has been written
+	private static final long COUNTS_OFFSET = 8;
+	private static final int BUFFER_SIZE = 1 << 20;
+	// maximum number of peptide/protein pairs sorted in memory per pass
+	private static final int MAX_PASS_SIZE = 1 << 24;
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	// upper-case residue code for each byte, or 0 if the byte is not a letter
+	private static final byte[] RESIDUES = new byte[256];
+	static {
+		for (char residue='A'; residue<='Z'; residue++) {
+			RESIDUES[residue] = (byte)residue;
+			RESIDUES[Character.toLowerCase(residue)] = (byte)residue;
+		}
+	}
+	
+	public static enum Enzyme {
+		TRYPSIN("KR", null, "P"),
+		TRYPSINP("KR", null, null),
+		LYSC("K", null, null),
+		ARGC("R", null, "P"),
+		GLUC("E", null, "P"),
+		ASPN(null, "D", null),
+		CHYMOTRYPSIN("FWY", null, "P");
+		
+		// residues after which, or before which, this enzyme cleaves,
+		// unless the residue after the site is one that blocks cleavage
+		private boolean[] after = new boolean[256];
+		private boolean[] before = new boolean[256];
+		private boolean[] blocked = new boolean[256];
+		
+		private Enzyme(String after, String before, String blocked) {
+			mark(this.after, after);
+			mark(this.before, before);
+			mark(this.blocked, blocked);
+		}
+		
+		public boolean cleaves(byte previous, byte next) {
+			return (after[previous & 0xFF] || before[next & 0xFF]) &&
+				blocked[next & 0xFF] == false;
+		}
+		
+		private static void mark(boolean[] table, String residues) {
+			if (residues != null)
+				for (int i=0; i<residues.length(); i++)
+					table[residues.charAt(i)] = true;
+		}
+	}
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private Enzyme   enzyme;
+	private int      missedCleavages;
+	private int      minLength;
+	private int      maxLength;
+	private boolean  equateIL;
+	private boolean  clipMethionine;
+	private String[] proteins;
+	// sorted peptide fingerprints; the proteins containing peptide i are
+	// mappings[mappingOffsets[i], mappingOffsets[i + 1])
+	private long[]   fingerprints;
+	private int[]    mappingOffsets;
+	private int[]    mappings;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	private PeptideIndex(
+		Enzyme enzyme, int missedCleavages, int minLength, int maxLength,
+		boolean equateIL, boolean clipMethionine
+	) {
+		if (enzyme == null)
+			throw new NullPointerException("Enzyme cannot be null.");
+		else if (missedCleavages < 0)
+			throw new IllegalArgumentException(String.format(
+				"Number of missed cleavages (%d) cannot be negative.",
+				missedCleavages));
+		else if (minLength < 1 || maxLength < minLength)
+			throw new IllegalArgumentException(String.format(
+				"Peptide length range [%d, %d] must be a non-empty range " +
+				"of positive lengths.", minLength, maxLength));
+		this.enzyme = enzyme;
+		this.missedCleavages = missedCleavages;
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.equateIL = equateIL;
+		this.clipMethionine = clipMethionine;
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Digests every protein in the given FASTA file and writes the
+	 * resulting peptide index to the given file, returning the number of
+	 * distinct peptides indexed.  Proteins are named by the first word of
+	 * their header lines, as in {@link FASTAIndex}.
+	 */
+	public static int build(
+		File fastaFile, File indexFile, Enzyme enzyme, int missedCleavages,
+		int minLength, int maxLength, boolean equateIL,
+		boolean clipMethionine
+	) throws IOException {
+		if (fastaFile == null)
+			throw new NullPointerException("FASTA file cannot be null.");
+		else if (indexFile == null)
+			throw new NullPointerException("Index file cannot be null.");
+		PeptideIndex index = new PeptideIndex(enzyme, missedCleavages,
+			minLength, maxLength, equateIL, clipMethionine);
+		// first pass: collect protein names and peptides, which for most
+		// databases fit in memory; otherwise, just count the peptides to
+		// determine how many passes are needed to sort them
+		Digester digester = new Digester(1);
+		digester.start(0);
+		List<String> names = new ArrayList<String>();
+		index.digest(fastaFile, digester, names);
+		index.proteins = names.toArray(new String[names.size()]);
+		int passes = digester.isCollecting() ? 1 : (int)Math.max(1,
+			(digester.total + MAX_PASS_SIZE - 1) / MAX_PASS_SIZE);
+		// collect, sort and write each range of peptides in turn
+		long peptides = 0;
+		long mappings = 0;
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(indexFile, "rw");
+			file.setLength(0);
+			BlockWriter writer = new BlockWriter(file.getChannel());
+			index.writeHeader(writer);
+			if (passes > 1)
+				digester = new Digester(passes);
+			for (int pass=0; pass<passes; pass++) {
+				if (passes > 1) {
+					digester.start(pass);
+					index.digest(fastaFile, digester, null);
+				}
+				int[] counts = digester.writeBlock(writer);
+				peptides += counts[0];
+				mappings += counts[1];
+				if (peptides > Integer.MAX_VALUE - 8 ||
+					mappings > Integer.MAX_VALUE - 8)
+					throw new IllegalArgumentException(String.format(
+						"FASTA file [%s] yields too many peptides to index.",
+						fastaFile.getAbsolutePath()));
+			}
+			writer.flush();
+			// fill in the final counts
+			ByteBuffer counts = ByteBuffer.allocate(8);
+			counts.putInt((int)peptides).putInt((int)mappings).flip();
+			while (counts.hasRemaining())
+				file.getChannel().write(counts,
+					COUNTS_OFFSET + counts.position());
+		} finally {
+			if (file != null) try {
+				file.close();
+			} catch (Throwable error) {}
+		}
+		return (int)peptides;
+	}
+	
+	public static PeptideIndex read(File indexFile)
+	throws IOException {
+		if (indexFile == null)
+			throw new NullPointerException("Index file cannot be null.");
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(indexFile);
+			BlockReader reader = new BlockReader(input.getChannel());
+			if (reader.readInt() != MAGIC)
+				throw new IllegalArgumentException(String.format(
+					"File [%s] is not a peptide index file.",
+					indexFile.getAbsolutePath()));
+			int version = reader.readInt();
+			if (version != VERSION)
+				throw new IllegalArgumentException(String.format(
+					"Peptide index file [%s] has unsupported version %d.",
+					indexFile.getAbsolutePath(), version));
+			int peptides = reader.readInt();
+			int mappings = reader.readInt();
+			Enzyme enzyme = Enzyme.valueOf(reader.readString());
+			PeptideIndex index = new PeptideIndex(
+				enzyme, reader.readInt(), reader.readInt(), reader.readInt(),
+				reader.readInt() != 0, reader.readInt() != 0);
+			index.proteins = new String[reader.readInt()];
+			for (int i=0; i<index.proteins.length; i++)
+				index.proteins[i] = reader.readString();
+			// read each block's peptides, and convert their protein
+			// counts into offsets into the complete mappings array
+			index.fingerprints = new long[peptides];
+			index.mappingOffsets = new int[peptides + 1];
+			index.mappings = new int[mappings];
+			int peptide = 0;
+			int mapping = 0;
+			while (peptide < peptides) {
+				int blockPeptides = reader.readInt();
+				int blockMappings = reader.readInt();
+				reader.readLongs(index.fingerprints, peptide, blockPeptides);
+				reader.readInts(
+					index.mappingOffsets, peptide + 1, blockPeptides);
+				reader.readInts(index.mappings, mapping, blockMappings);
+				for (int i=peptide+1; i<=peptide+blockPeptides; i++)
+					index.mappingOffsets[i] += index.mappingOffsets[i - 1];
+				peptide += blockPeptides;
+				mapping += blockMappings;
+			}
+			return index;
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/**
+	 * Returns the names of all the proteins containing the given peptide,
+	 * in database order, or an empty list if it is not in this index.
+	 */
+	public List<String> getProteins(CharSequence peptide) {
+		int found = find(peptide);
+		if (found < 0)
+			return Collections.emptyList();
+		List<String> names = new ArrayList<String>(
+			mappingOffsets[found + 1] - mappingOffsets[found]);
+		for (int i=mappingOffsets[found]; i<mappingOffsets[found + 1]; i++)
+			names.add(proteins[mappings[i]]);
+		return names;
+	}
+	
+	public boolean contains(CharSequence peptide) {
+		return find(peptide) >= 0;
+	}
+	
+	/**
+	 * Returns the fingerprint of the given peptide, ignoring any flanking
+	 * residues and every character that is not a residue letter, or 0 if
+	 * it has no residues.
+	 */
+	public static long getFingerprint(CharSequence peptide, boolean equateIL) {
+		if (peptide == null)
+			return 0;
+		int start = 0;
+		int end = peptide.length();
+		// strip flanking residues, e.g. "K.PEPTIDE.R" or "-.PEPTIDE.-"
+		if (end >= 4 && peptide.charAt(1) == '.' &&
+			peptide.charAt(end - 2) == '.') {
+			start += 2;
+			end -= 2;
+		}
+		long hash = FNV_OFFSET;
+		int length = 0;
+		for (int i=start; i<end; i++) {
+			char character = peptide.charAt(i);
+			byte residue = character < 128 ? RESIDUES[character] : 0;
+			if (residue == 0)
+				continue;
+			else if (equateIL && residue == 'I')
+				residue = 'L';
+			hash = (hash ^ residue) * FNV_PRIME;
+			length++;
+		}
+		if (length == 0)
+			return 0;
+		else return finish(hash, length);
+	}
+	
+	/*========================================================================
+	 * Property accessor methods
+	 *========================================================================*/
+	public Enzyme getEnzyme() {
+		return enzyme;
+	}
+	
+	public int getMissedCleavages() {
+		return missedCleavages;
+	}
+	
+	public int getMinLength() {
+		return minLength;
+	}
+	
+	public int getMaxLength() {
+		return maxLength;
+	}
+	
+	public boolean isEquateIL() {
+		return equateIL;
+	}
+	
+	public boolean isClipMethionine() {
+		return clipMethionine;
+	}
+	
+	public int getProteinCount() {
+		return proteins.length;
+	}
+	
+	public int getPeptideCount() {
+		return fingerprints.length;
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Collector of the fingerprints of digested peptides, and the numbers
+	 * of the proteins they came from, that fall in one of several equal
+	 * ranges of fingerprint values.  If more than can be sorted in memory
+	 * at once turn up, it stops collecting them and only counts.
+	 */
+	private static class Digester {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private int    ranges;
+		private int    range;
+		private long   total;
+		private long[] keys;
+		private int[]  values;
+		private int    size;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Digester(int ranges) {
+			this.ranges = ranges;
+			range = -1;
+			total = 0;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public void start(int range) {
+			this.range = range;
+			size = 0;
+			if (keys == null) {
+				keys = new long[1 << 16];
+				values = new int[1 << 16];
+			}
+		}
+		
+		public boolean isCollecting() {
+			return range >= 0;
+		}
+		
+		public void add(long fingerprint, int protein) {
+			total++;
+			if (range < 0 || (ranges > 1 && getRange(fingerprint) != range))
+				return;
+			// a single range stops collecting once it is too big to sort,
+			// whereas the ranges of later passes are already sized to fit
+			else if (ranges == 1 && size >= MAX_PASS_SIZE) {
+				range = -1;
+				keys = null;
+				values = null;
+				size = 0;
+				return;
+			} else if (size >= keys.length) {
+				keys = Arrays.copyOf(keys, keys.length * 2);
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			keys[size] = fingerprint;
+			values[size] = protein;
+			size++;
+		}
+		
+		/**
+		 * Sorts the collected peptides and writes them as one block,
+		 * returning the numbers of distinct peptides and distinct
+		 * peptide/protein mappings written.
+		 */
+		public int[] writeBlock(BlockWriter writer)
+		throws IOException {
+			sort(keys, values, 0, size);
+			// count distinct peptides and mappings
+			int peptides = 0;
+			int mappings = 0;
+			for (int i=0; i<size; i++) {
+				if (i == 0 || keys[i] != keys[i - 1]) {
+					peptides++;
+					mappings++;
+				} else if (values[i] != values[i - 1])
+					mappings++;
+			}
+			writer.putInt(peptides);
+			writer.putInt(mappings);
+			for (int i=0; i<size; i++)
+				if (i == 0 || keys[i] != keys[i - 1])
+					writer.putLong(keys[i]);
+			int count = 0;
+			for (int i=0; i<size; i++) {
+				if (i > 0 && keys[i] != keys[i - 1]) {
+					writer.putInt(count);
+					count = 0;
+				}
+				if (i == 0 || keys[i] != keys[i - 1] ||
+					values[i] != values[i - 1])
+					count++;
+			}
+			if (size > 0)
+				writer.putInt(count);
+			for (int i=0; i<size; i++)
+				if (i == 0 || keys[i] != keys[i - 1] ||
+					values[i] != values[i - 1])
+					writer.putInt(values[i]);
+			return new int[]{peptides, mappings};
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private int getRange(long fingerprint) {
+			// ranges are ordered like the (signed) fingerprints themselves
+			return (int)((((fingerprint >> 32) + 0x80000000L) * ranges) >>>
+				32);
+		}
+	}
+	
+	/**
+	 * Buffered writer of primitive values to a file channel.
+	 */
+	private static class BlockWriter {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private FileChannel channel;
+		private ByteBuffer  buffer;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public BlockWriter(FileChannel channel) {
+			this.channel = channel;
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public void putInt(int value)
+		throws IOException {
+			if (buffer.remaining() < 4)
+				flush();
+			buffer.putInt(value);
+		}
+		
+		public void putLong(long value)
+		throws IOException {
+			if (buffer.remaining() < 8)
+				flush();
+			buffer.putLong(value);
+		}
+		
+		public void putString(String value)
+		throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			for (int written=0; written<bytes.length; ) {
+				if (buffer.hasRemaining() == false)
+					flush();
+				int count =
+					Math.min(buffer.remaining(), bytes.length - written);
+				buffer.put(bytes, written, count);
+				written += count;
+			}
+		}
+		
+		public void flush()
+		throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+	
+	/**
+	 * Buffered reader of primitive values from a file channel, which
+	 * copies arrays of values in bulk.
+	 */
+	private static class BlockReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private FileChannel channel;
+		private ByteBuffer  buffer;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public BlockReader(FileChannel channel) {
+			this.channel = channel;
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffer.flip();
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public int readInt()
+		throws IOException {
+			require(4);
+			return buffer.getInt();
+		}
+		
+		public String readString()
+		throws IOException {
+			byte[] bytes = new byte[readInt()];
+			for (int read=0; read<bytes.length; ) {
+				require(1);
+				int count = Math.min(buffer.remaining(), bytes.length - read);
+				buffer.get(bytes, read, count);
+				read += count;
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		
+		public void readLongs(long[] values, int start, int count)
+		throws IOException {
+			while (count > 0) {
+				require(8);
+				int available = Math.min(count, buffer.remaining() / 8);
+				buffer.asLongBuffer().get(values, start, available);
+				buffer.position(buffer.position() + available * 8);
+				start += available;
+				count -= available;
+			}
+		}
+		
+		public void readInts(int[] values, int start, int count)
+		throws IOException {
+			while (count > 0) {
+				require(4);
+				int available = Math.min(count, buffer.remaining() / 4);
+				buffer.asIntBuffer().get(values, start, available);
+				buffer.position(buffer.position() + available * 4);
+				start += available;
+				count -= available;
+			}
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private void require(int bytes)
+		throws IOException {
+			if (buffer.remaining() >= bytes)
+				return;
+			buffer.compact();
+			while (buffer.position() < bytes)
+				if (channel.read(buffer) < 0)
+					throw new EOFException(
+						"Peptide index file ended unexpectedly.");
+			buffer.flip();
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private void writeHeader(BlockWriter writer)
+	throws IOException {
+		writer.putInt(MAGIC);
+		writer.putInt(VERSION);
+		// placeholders for the peptide and mapping counts
+		writer.putInt(0);
+		writer.putInt(0);
+		writer.putString(enzyme.name());
+		writer.putInt(missedCleavages);
+		writer.putInt(minLength);
+		writer.putInt(maxLength);
+		writer.putInt(equateIL ? 1 : 0);
+		writer.putInt(clipMethionine ? 1 : 0);
+		writer.putInt(proteins.length);
+		for (String protein : proteins)
+			writer.putString(protein);
+	}
+	
+	/**
+	 * Reads every protein sequence from the given FASTA file and passes
+	 * its peptides to the given digester, also collecting the proteins'
+	 * names if a list is provided.
+	 */
+	private void digest(File fastaFile, Digester digester, List<String> names)
+	throws IOException {
+		InputStream input = null;
+		try {
+			input = new FileInputStream(fastaFile);
+			LineScanner lines = new LineScanner(input);
+			byte[] sequence = new byte[1 << 16];
+			int length = 0;
+			int[] sites = new int[1 << 10];
+			int protein = -1;
+			while (lines.next()) {
+				byte[] line = lines.getBuffer();
+				int start = lines.getStart();
+				int end = lines.getEnd();
+				if (start < end && line[start] == '>') {
+					if (protein >= 0)
+						sites = digest(
+							sequence, length, protein, sites, digester);
+					protein++;
+					length = 0;
+					if (names != null)
+						names.add(FASTAIndex.getName(line, start, end));
+					continue;
+				} else if (protein < 0)
+					continue;
+				// collect residues, normalized as they are for lookups
+				if (length + (end - start) > sequence.length)
+					sequence = Arrays.copyOf(sequence, Math.max(
+						sequence.length * 2, length + (end - start)));
+				for (int i=start; i<end; i++) {
+					byte residue = RESIDUES[line[i] & 0xFF];
+					if (residue == 0)
+						continue;
+					else if (equateIL && residue == 'I')
+						residue = 'L';
+					sequence[length++] = residue;
+				}
+			}
+			if (protein >= 0)
+				digest(sequence, length, protein, sites, digester);
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/**
+	 * Passes every peptide of the given protein sequence to the given
+	 * digester, returning the (possibly reallocated) cleavage site array.
+	 */
+	private int[] digest(
+		byte[] sequence, int length, int protein, int[] sites,
+		Digester digester
+	) {
+		if (length == 0)
+			return sites;
+		// find cleavage sites, including both ends of the sequence
+		int count = 0;
+		sites[count++] = 0;
+		for (int i=1; i<length; i++) {
+			if (enzyme.cleaves(sequence[i - 1], sequence[i]) == false)
+				continue;
+			else if (count + 1 >= sites.length)
+				sites = Arrays.copyOf(sites, sites.length * 2);
+			sites[count++] = i;
+		}
+		sites[count++] = length;
+		// extend each peptide from each site across up to
+		// the allowed number of subsequent sites
+		for (int site=0; site<count-1; site++)
+			digest(sequence, sites[site], sites, site, count, protein,
+				digester);
+		// also digest as if the initiator methionine were removed
+		if (clipMethionine && sequence[0] == 'M' && sites[1] > 1)
+			digest(sequence, 1, sites, 0, count, protein, digester);
+		return sites;
+	}
+	
+	private void digest(
+		byte[] sequence, int start, int[] sites, int site, int count,
+		int protein, Digester digester
+	) {
+		long hash = FNV_OFFSET;
+		int position = start;
+		for (int next=site+1;
+			next<count && next<=site+1+missedCleavages; next++) {
+			int end = sites[next];
+			if (end - start > maxLength)
+				break;
+			for (; position<end; position++)
+				hash = (hash ^ sequence[position]) * FNV_PRIME;
+			if (end - start >= minLength)
+				digester.add(finish(hash, end - start), protein);
+		}
+	}
+	
+	private int find(CharSequence peptide) {
+		long fingerprint = getFingerprint(peptide, equateIL);
+		if (fingerprint == 0)
+			return -1;
+		int found = Arrays.binarySearch(fingerprints, fingerprint);
+		return found < 0 ? -1 : found;
+	}
+	
+	private static long finish(long hash, int length) {
+		// mix in the length and spread the bits (MurmurHash3 finalizer),
+		// avoiding 0, which marks peptides without residues
+		hash ^= length;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+	
+	/**
+	 * Sorts the given keys, and their parallel values, in ascending
+	 * order of key and then of value.
+	 */
+	private static void sort(long[] keys, int[] values, int from, int to) {
+		while (to - from > 16) {
+			// median-of-three pivot
+			int middle = (from + to) >>> 1;
+			if (compare(keys, values, middle, from) < 0)
+				swap(keys, values, middle, from);
+			if (compare(keys, values, to - 1, from) < 0)
+				swap(keys, values, to - 1, from);
+			if (compare(keys, values, to - 1, middle) < 0)
+				swap(keys, values, to - 1, middle);
+			long pivotKey = keys[middle];
+			int pivotValue = values[middle];
+			int left = from;
+			int right = to - 1;
+			while (left <= right) {
+				while (compare(keys[left], values[left],
+					pivotKey, pivotValue) < 0)
+					left++;
+				while (compare(keys[right], values[right],
+					pivotKey, pivotValue) > 0)
+					right--;
+				if (left <= right)
+					swap(keys, values, left++, right--);
+			}
+			// recurse into the smaller part, and loop on the larger
+			if (right - from < to - left) {
+				sort(keys, values, from, right + 1);
+				from = left;
+			} else {
+				sort(keys, values, left, to);
+				to = right + 1;
+			}
+		}
+		for (int i=from+1; i<to; i++)
+			for (int j=i; j>from && compare(keys, values, j, j - 1) < 0; j--)
+				swap(keys, values, j, j - 1);
+	}
+	
+	private static int compare(long[] keys, int[] values, int i, int j) {
+		return compare(keys[i], values[i], keys[j], values[j]);
+	}
+	
+	private static int compare(
+		long key, int value, long otherKey, int otherValue
+	) {
+		if (key != otherKey)
+			return key < otherKey ? -1 : 1;
+		else return Integer.compare(value, otherValue);
+	}
+	
+	private static void swap(long[] keys, int[] values, int i, int j) {
+		long key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+		int value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+}
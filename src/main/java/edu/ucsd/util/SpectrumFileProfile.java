@@ -0,0 +1,224 @@
+package edu.ucsd.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+
+import edu.ucsd.util.SpectrumFileUtils.SpectrumFileType;
+
+/**
+ * Statistics of a file gathered in a single pass over its bytes: the
+ * CRC32 checksum and MD5 hash of the file as stored, and, if it is a
+ * recognized spectrum file, the number of spectra at each MS level, the
+ * histogram of their precursor charges and the range of their retention
+ * times.  The raw bytes pass through the checksum and the hash on their
+ * way to the spectrum scanner, so each byte is read from disk only once,
+ * however many statistics are wanted.  A spectrum file that cannot be
+ * scanned, such as a truncated gzip file, still has its checksum and hash
+ * computed, but has no spectrum statistics.
+ */
+public class SpectrumFileProfile
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final int GZIP_BUFFER_SIZE = 1 << 16;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private SpectrumFileType              type;
+	// whether the file was scanned for spectra to the end
+	private boolean                       scanned;
+	private long                          checksum;
+	private String                        hash;
+	private int                           spectra;
+	private int                           ms1Spectra;
+	private int                           ms2Spectra;
+	private int                           msnSpectra;
+	// number of MS2+ spectra with each precursor charge, with
+	// spectra whose charge is not given counted under charge 0
+	private SortedMap<Integer, Integer>   charges;
+	private double                        minimumRetentionTime;
+	private double                        maximumRetentionTime;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	private SpectrumFileProfile(SpectrumFileType type) {
+		this.type = type;
+		clearSpectrumStatistics();
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Reads the given file once, computing its checksum and hash and, if
+	 * its type is a recognized spectrum file type, its spectrum statistics.
+	 */
+	public static SpectrumFileProfile profile(File file)
+	throws IOException {
+		if (file == null)
+			throw new NullPointerException("File cannot be null.");
+		SpectrumFileProfile profile = new SpectrumFileProfile(
+			SpectrumFileUtils.getSpectrumFileType(file));
+		CRC32 checksum = new CRC32();
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException error) {
+			throw new IllegalStateException(error);
+		}
+		// tee the raw bytes through the checksum and the hash
+		InputStream raw = null;
+		InputStream input = null;
+		try {
+			raw = new DigestInputStream(new CheckedInputStream(
+				new FileInputStream(file), checksum), digest);
+			if (profile.type != null) {
+				// a file that fails to scan keeps only its checksum and hash
+				try {
+					if (profile.type == SpectrumFileType.MZML_GZ)
+						input = new GZIPInputStream(raw, GZIP_BUFFER_SIZE);
+					else input = raw;
+					new MS2SpectrumCounter(input).profile(
+						profile.type, profile);
+					profile.scanned = true;
+				} catch (Exception error) {
+					profile.clearSpectrumStatistics();
+				}
+			}
+			// read whatever the scanner did not, such as trailing bytes
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (raw.read(buffer) >= 0);
+			profile.checksum = checksum.getValue();
+			profile.hash = FileIOUtils.toHexString(digest.digest());
+			return profile;
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+			if (raw != null) try {
+				raw.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/*========================================================================
+	 * Property accessor methods
+	 *========================================================================*/
+	/**
+	 * Returns the spectrum file type of the profiled file, or null if it
+	 * is not a spectrum file, in which case it has no spectrum statistics.
+	 */
+	public SpectrumFileType getType() {
+		return type;
+	}
+	
+	/**
+	 * Determines whether the profiled file is a spectrum file that was
+	 * scanned successfully, and so has spectrum statistics.
+	 */
+	public boolean hasSpectrumStatistics() {
+		return scanned;
+	}
+	
+	public long getChecksum() {
+		return checksum;
+	}
+	
+	public String getHash() {
+		return hash;
+	}
+	
+	public int getSpectrumCount() {
+		return spectra;
+	}
+	
+	public int getMS1SpectrumCount() {
+		return ms1Spectra;
+	}
+	
+	public int getMS2SpectrumCount() {
+		return ms2Spectra;
+	}
+	
+	/**
+	 * Returns the number of spectra with an MS level greater than 2.
+	 */
+	public int getMSnSpectrumCount() {
+		return msnSpectra;
+	}
+	
+	public SortedMap<Integer, Integer> getChargeCounts() {
+		return Collections.unmodifiableSortedMap(charges);
+	}
+	
+	/**
+	 * Returns the earliest retention time of any spectrum in seconds, or
+	 * null if no spectrum's retention time is given.
+	 */
+	public Double getMinimumRetentionTime() {
+		if (Double.isNaN(minimumRetentionTime))
+			return null;
+		else return minimumRetentionTime;
+	}
+	
+	public Double getMaximumRetentionTime() {
+		if (Double.isNaN(maximumRetentionTime))
+			return null;
+		else return maximumRetentionTime;
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private void clearSpectrumStatistics() {
+		spectra = 0;
+		ms1Spectra = 0;
+		ms2Spectra = 0;
+		msnSpectra = 0;
+		charges = new TreeMap<Integer, Integer>();
+		minimumRetentionTime = Double.NaN;
+		maximumRetentionTime = Double.NaN;
+	}
+	
+	/**
+	 * Records a spectrum found by the scanner, given its MS level (0 if
+	 * unknown), its precursor charge (0 if unknown) and its retention time
+	 * in seconds (NaN if unknown).
+	 */
+	void addSpectrum(int msLevel, int charge, double retentionTime) {
+		spectra++;
+		if (msLevel == 1)
+			ms1Spectra++;
+		else if (msLevel == 2)
+			ms2Spectra++;
+		else if (msLevel > 2)
+			msnSpectra++;
+		if (msLevel >= 2) {
+			Integer count = charges.get(charge);
+			charges.put(charge, count == null ? 1 : count + 1);
+		}
+		if (Double.isNaN(retentionTime) == false) {
+			if (Double.isNaN(minimumRetentionTime) ||
+				retentionTime < minimumRetentionTime)
+				minimumRetentionTime = retentionTime;
+			if (Double.isNaN(maximumRetentionTime) ||
+				retentionTime > maximumRetentionTime)
+				maximumRetentionTime = retentionTime;
+		}
+	}
+}
@@ -6,7 +6,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.zip.GZIPInputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
@@ -18,7 +20,6 @@ import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang3.StringUtils;
 
 public class SpectrumFileUtils
 {
@@ -141,6 +142,24 @@ public class SpectrumFileUtils
 		}
 	}
 	
+	/**
+	 * Enumeration of the available methods for counting MS2 spectra.
+	 */
+	public static enum CountingMethod {
+		// reads only the spectrum headers listed in an indexed mzML file's
+		// index, falling back to a byte-level scan if there is no index
+		INDEX,
+		// byte-level pattern scan (fastest full scan, uses bounded memory)
+		SCAN,
+		// simple text search for each file type's MS2 spectrum pattern
+		GREP,
+		// streaming XML parse (slower, but uses less memory)
+		STREAM,
+		// evaluation of each file type's MS2 spectrum XPath, streamed so
+		// that it no longer holds the file or its DOM tree in memory
+		MEMORY
+	}
+	
 	/*========================================================================
 	 * Public interface methods
 	 *========================================================================*/
@@ -171,22 +190,57 @@ public class SpectrumFileUtils
 	
 	public static Integer countMS2Spectra(File file)
 	throws IOException, XMLStreamException {
-		return countMS2Spectra(file, false, true);
+		return countMS2Spectra(file, CountingMethod.INDEX);
 	}
 	
 	public static Integer countMS2Spectra(
 		File file, boolean grep, boolean stream
 	) throws IOException, XMLStreamException {
+		if (grep)
+			return countMS2Spectra(file, CountingMethod.GREP);
+		else if (stream)
+			return countMS2Spectra(file, CountingMethod.STREAM);
+		else return countMS2Spectra(file, CountingMethod.MEMORY);
+	}
+	
+	public static Integer countMS2Spectra(File file, CountingMethod method)
+	throws IOException, XMLStreamException {
 		if (file == null || file.isFile() == false || file.canRead() == false)
 			return null;
+		else if (method == null)
+			method = CountingMethod.INDEX;
 		// search file for the proper MS2 spectrum pattern based on type
 		SpectrumFileType type = getSpectrumFileType(file);
 		if (type == null)
 			return 0;
+		// indexed mzML files can be counted from their spectrum headers
+		// alone; gzipped files cannot be read at random, so are scanned
+		if (method == CountingMethod.INDEX) {
+			if (type == SpectrumFileType.MZML) {
+				Integer count = countIndexedMS2Spectra(file);
+				if (count != null)
+					return count;
+			}
+			method = CountingMethod.SCAN;
+		}
+		// byte-level scan, matching the streaming XML search's counts
+		if (method == CountingMethod.SCAN) {
+			// gzip content is decompressed ahead of the scan, in parallel
+			InputStream inputStream = null;
+			if (type == SpectrumFileType.MZML_GZ)
+				inputStream = new ParallelGZIPInputStream(file);
+			else inputStream = new FileInputStream(file);
+			try {
+				return new MS2SpectrumCounter(inputStream).count(type);
+			} finally {
+				try { inputStream.close(); }
+				catch (Throwable error) {}
+			}
+		}
 		// simple search (grep -c)
 		// TODO: address potential issues if target mzML cvParam
 		// attributes do not occur in the file exactly as searched
-		if (grep) {
+		else if (method == CountingMethod.GREP) {
 			String pattern = type.getMS2SpectrumPattern();
 			switch (type) {
 				case MGF:
@@ -197,8 +251,8 @@ public class SpectrumFileUtils
 				// read mzML.gz files into gzip stream, count from there
 				case MZML_GZ:
 					BufferedReader reader = new BufferedReader(
-						new InputStreamReader(new GZIPInputStream(
-						new FileInputStream(file))));
+						new InputStreamReader(
+						new ParallelGZIPInputStream(file)));
 					try {
 						return FileIOUtils.countStringOccurrencesInStream(
 							reader, pattern);
@@ -209,7 +263,7 @@ public class SpectrumFileUtils
 			}
 		}
 		// streaming search (slower, but uses less memory)
-		else if (stream) {
+		else if (method == CountingMethod.STREAM) {
 			// get the proper stream for this file type
 			InputStream inputStream = null;
 			switch (type) {
@@ -219,56 +273,114 @@ public class SpectrumFileUtils
 					inputStream = new FileInputStream(file);
 					break;
 				case MZML_GZ:
-					inputStream =
-						new GZIPInputStream(new FileInputStream(file));
+					inputStream = new ParallelGZIPInputStream(file);
 					break;
 			}
-			// stream through the file to look for the proper elements
-			switch (type) {
-				case MGF:
-					String pattern = type.getMS2SpectrumPattern();
-					BufferedReader fileReader =
-						new BufferedReader(new InputStreamReader(inputStream));
-					try {
-						return FileIOUtils.countStringOccurrencesInStream(
-							fileReader, pattern);
-					} finally {
-						try { fileReader.close(); }
-						catch (Throwable error) {}
-					}
-				case MZXML:
-				case MZML:
-				case MZML_GZ:
-					int count = 0;
-					XMLEventReader xmlReader =
-						XMLInputFactory.newInstance().createXMLEventReader(
-							inputStream);
-					while (xmlReader.hasNext()) {
-						XMLEvent event = xmlReader.nextEvent();
-						if (event.isStartElement() &&
-							type.isMS2SpectrumElement(
-								event.asStartElement(), xmlReader))
-							count++;
-					}
-					return count;
+			// stream through the file to look for the proper elements;
+			// closing the stream also stops any decompression threads
+			try {
+				switch (type) {
+					case MGF:
+						return countMGFSpectra(inputStream);
+					case MZXML:
+					case MZML:
+					case MZML_GZ:
+						int count = 0;
+						XMLEventReader xmlReader = XMLInputFactory
+							.newInstance().createXMLEventReader(inputStream);
+						while (xmlReader.hasNext()) {
+							XMLEvent event = xmlReader.nextEvent();
+							if (event.isStartElement() &&
+								type.isMS2SpectrumElement(
+									event.asStartElement(), xmlReader))
+								count++;
+						}
+						return count;
+				}
+			} finally {
+				try { inputStream.close(); }
+				catch (Throwable error) {}
 			}
 		}
-		// in-memory search (faster, but uses more memory)
+		// XPath search, evaluated over the streamed document
 		else {
 			switch (type) {
+				// MGF files have no tree to build, so there
+				// is no point in reading them into memory
 				case MGF:
-					return StringUtils.countMatches(FileIOUtils.readFile(file),
-						type.getMS2SpectrumPattern());
+					return countMGFSpectra(new FileInputStream(file));
 				case MZXML:
 				case MZML:
-					return FileIOUtils.countNodeOccurrencesInXML(
-						FileIOUtils.parseXML(file), type.getMS2SpectrumXPath());
 				case MZML_GZ:
-					return FileIOUtils.countNodeOccurrencesInXML(
-						FileIOUtils.parseXML(FileIOUtils.readGZIPFile(file)),
-						type.getMS2SpectrumXPath());
+					InputStream inputStream = null;
+					if (type == SpectrumFileType.MZML_GZ)
+						inputStream = new ParallelGZIPInputStream(file);
+					else inputStream = new FileInputStream(file);
+					try {
+						return StreamingXPath.compile(
+							type.getMS2SpectrumXPath()).count(inputStream);
+					} finally {
+						try { inputStream.close(); }
+						catch (Throwable error) {}
+					}
 			}
 		}
 		return null;
 	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	/**
+	 * Counts the "BEGIN IONS" lines in an MGF stream, a line at a time,
+	 * closing the stream when done.
+	 */
+	private static int countMGFSpectra(InputStream input)
+	throws IOException {
+		MGFScanner scanner = new MGFScanner(input);
+		try {
+			return scanner.count();
+		} finally {
+			try { scanner.close(); }
+			catch (Throwable error) {}
+		}
+	}
+	
+	/**
+	 * Counts the MS2 spectra in an indexed mzML file by reading just the
+	 * header of each spectrum listed in its index, or returns null if the
+	 * file has no index, or any listed offset is not that of a spectrum
+	 * (e.g. because the file was edited without updating its index).
+	 */
+	private static Integer countIndexedMS2Spectra(File file)
+	throws IOException {
+		MzMLIndex index = MzMLIndex.read(file);
+		if (index == null)
+			return null;
+		RandomAccessFile input = null;
+		try {
+			input = new RandomAccessFile(file, "r");
+			FileChannel channel = input.getChannel();
+			// spectrum headers are small, so read them in small chunks
+			MS2SpectrumCounter counter = null;
+			int count = 0;
+			for (int i=0; i<index.getSpectrumCount(); i++) {
+				channel.position(index.getSpectrumOffset(i));
+				InputStream spectrum = Channels.newInputStream(channel);
+				if (counter == null)
+					counter = new MS2SpectrumCounter(spectrum, 1 << 12);
+				else counter.reset(spectrum);
+				Boolean ms2 = counter.isMS2Spectrum();
+				if (ms2 == null)
+					return null;
+				else if (ms2)
+					count++;
+			}
+			return count;
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
 }
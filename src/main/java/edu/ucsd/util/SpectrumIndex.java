@@ -0,0 +1,475 @@
+package edu.ucsd.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import edu.ucsd.util.SpectrumFileUtils.SpectrumFileType;
+
+/**
+ * Index of the spectra in an uncompressed MGF, mzXML or mzML file, giving
+ * the byte offset and length of each spectrum along with its scan number,
+ * MS level and precursor m/z, so that any spectrum can be read directly by
+ * scan number through an {@link IndexedSpectrumReader}.
+ *
+ * If a persistent cache root is set (see {@link FileIOUtils#getCacheRoot()}),
+ * the index is saved there in a compact binary file, named by a hash of
+ * the spectrum file's path, and built on demand through the
+ * {@link OnDemandLoader}, so that concurrent requests for the same index
+ * build it only once.  Keeping index files out of the spectrum file's own
+ * directory leaves datasets untouched, so that tools listing their
+ * contents never see them.  An index file records the length and
+ * modification time of the spectrum file it was built from, and is rebuilt
+ * if either has changed.  With no cache root, the index is simply built
+ * each time it is loaded.
+ */
+public class SpectrumIndex
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	public static final String INDEX_EXTENSION = ".sidx";
+	private static final int MAGIC = 0x53504958; // "SPIX"
+	private static final int VERSION = 2;
+	// magic, version, spectrum file length and modification time, count
+	private static final int HEADER_SIZE = 28;
+	// scan, offset, length, MS level and precursor m/z
+	private static final int ENTRY_SIZE = 25;
+	private static final int BUFFER_SIZE = 1 << 20;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private long     sourceLength;
+	private long     sourceModified;
+	private int      size;
+	private int[]    scans;
+	private long[]   offsets;
+	private int[]    lengths;
+	private byte[]   msLevels;
+	private double[] precursorMzs;
+	// each entry's scan number in the high 32 bits and
+	// its position in the low 32 bits, sorted by scan
+	private long[]   scanKeys;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	private SpectrumIndex(int capacity) {
+		size = 0;
+		scans = new int[capacity];
+		offsets = new long[capacity];
+		lengths = new int[capacity];
+		msLevels = new byte[capacity];
+		precursorMzs = new double[capacity];
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Returns the position in this index of the first spectrum with the
+	 * given scan number, or -1 if there is no such spectrum.
+	 */
+	public int find(int scan) {
+		if (scan < 0)
+			return -1;
+		int found = Arrays.binarySearch(scanKeys, (long)scan << 32);
+		if (found < 0)
+			found = -found - 1;
+		if (found >= size || (int)(scanKeys[found] >>> 32) != scan)
+			return -1;
+		else return (int)scanKeys[found];
+	}
+	
+	public boolean contains(int scan) {
+		return find(scan) >= 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void write(File indexFile)
+	throws IOException {
+		if (indexFile == null)
+			throw new NullPointerException("Index file cannot be null.");
+		ByteBuffer buffer =
+			ByteBuffer.allocate(HEADER_SIZE + size * ENTRY_SIZE);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(sourceLength);
+		buffer.putLong(sourceModified);
+		buffer.putInt(size);
+		// columns are written whole, to be read back in bulk
+		buffer.asIntBuffer().put(scans, 0, size);
+		buffer.position(buffer.position() + size * 4);
+		buffer.asLongBuffer().put(offsets, 0, size);
+		buffer.position(buffer.position() + size * 8);
+		buffer.asIntBuffer().put(lengths, 0, size);
+		buffer.position(buffer.position() + size * 4);
+		buffer.put(msLevels, 0, size);
+		buffer.asDoubleBuffer().put(precursorMzs, 0, size);
+		buffer.position(buffer.position() + size * 8);
+		buffer.flip();
+		FileOutputStream output = null;
+		try {
+			output = new FileOutputStream(indexFile);
+			FileChannel channel = output.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			if (output != null)
+				output.close();
+		}
+	}
+	
+	public static SpectrumIndex read(File indexFile)
+	throws IOException {
+		if (indexFile == null)
+			throw new NullPointerException("Index file cannot be null.");
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(indexFile);
+			FileChannel channel = input.getChannel();
+			long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE)
+				throw new IllegalArgumentException(String.format(
+					"File [%s] is not a spectrum index file.",
+					indexFile.getAbsolutePath()));
+			ByteBuffer buffer = ByteBuffer.allocate((int)fileSize);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			buffer.flip();
+			if (buffer.getInt() != MAGIC)
+				throw new IllegalArgumentException(String.format(
+					"File [%s] is not a spectrum index file.",
+					indexFile.getAbsolutePath()));
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IllegalArgumentException(String.format(
+					"Spectrum index file [%s] has unsupported version %d.",
+					indexFile.getAbsolutePath(), version));
+			long sourceLength = buffer.getLong();
+			long sourceModified = buffer.getLong();
+			int size = buffer.getInt();
+			if (size < 0 || fileSize != HEADER_SIZE + (long)size * ENTRY_SIZE)
+				throw new IllegalArgumentException(String.format(
+					"Spectrum index file [%s] is truncated or corrupt.",
+					indexFile.getAbsolutePath()));
+			SpectrumIndex index = new SpectrumIndex(size);
+			index.sourceLength = sourceLength;
+			index.sourceModified = sourceModified;
+			index.size = size;
+			buffer.asIntBuffer().get(index.scans);
+			buffer.position(buffer.position() + size * 4);
+			buffer.asLongBuffer().get(index.offsets);
+			buffer.position(buffer.position() + size * 8);
+			buffer.asIntBuffer().get(index.lengths);
+			buffer.position(buffer.position() + size * 4);
+			buffer.get(index.msLevels);
+			buffer.asDoubleBuffer().get(index.precursorMzs);
+			index.sortScans();
+			return index;
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/**
+	 * Builds the index of the given spectrum file, whose type must be
+	 * uncompressed MGF, mzXML or mzML.  If no spectrum has a scan number
+	 * (MGF spectra without SCANS, mzXML scans without num, and mzML
+	 * spectra whose id has no "scan=" key), each is numbered by its
+	 * one-based position in the file.  Otherwise any spectrum without one
+	 * is given scan number -1, so that it cannot be mistaken for another
+	 * spectrum's, and can only be found by its position in the index.
+	 */
+	public static SpectrumIndex build(File spectrumFile)
+	throws IOException {
+		if (spectrumFile == null)
+			throw new NullPointerException("Spectrum file cannot be null.");
+		SpectrumFileType type =
+			SpectrumFileUtils.getSpectrumFileType(spectrumFile);
+		if (type == null)
+			throw new IllegalArgumentException(String.format(
+				"File [%s] is not a recognized spectrum file.",
+				spectrumFile.getAbsolutePath()));
+		// offsets into compressed content could not be seeked to
+		else if (type == SpectrumFileType.MZML_GZ)
+			throw new IllegalArgumentException(String.format(
+				"Compressed spectrum file [%s] cannot be indexed for " +
+				"random access.", spectrumFile.getAbsolutePath()));
+		final SpectrumIndex index = new SpectrumIndex(1 << 10);
+		index.sourceModified = spectrumFile.lastModified();
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(spectrumFile);
+			new MS2SpectrumCounter(input, BUFFER_SIZE).visit(type,
+				new MS2SpectrumCounter.Visitor() {
+					public void visitSpectrum(
+						long offset, long length, int scan, int msLevel,
+						int charge, double retentionTime, double precursorMz
+					) {
+						index.add(offset, length, scan, msLevel, precursorMz);
+					}
+				});
+			index.sourceLength = input.getChannel().size();
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+		index.numberByPosition();
+		index.sortScans();
+		return index;
+	}
+	
+	/**
+	 * Returns the index of the given spectrum file, reading it from the
+	 * file's cached index file if that was built from the file as it is
+	 * now.  Otherwise the index is built from the spectrum file, and saved
+	 * as its index file if caching is on and the file can be written.
+	 */
+	public static SpectrumIndex load(File spectrumFile)
+	throws IOException {
+		if (spectrumFile == null)
+			throw new NullPointerException("Spectrum file cannot be null.");
+		else if (spectrumFile.isFile() == false ||
+			spectrumFile.canRead() == false)
+			throw new IllegalArgumentException(String.format(
+				"Spectrum file [%s] must be a readable regular file.",
+				spectrumFile.getAbsolutePath()));
+		else if (getIndexFile(spectrumFile) == null)
+			return build(spectrumFile);
+		IndexLoader loader = new IndexLoader(spectrumFile);
+		if (OnDemandLoader.load(loader)) {
+			if (loader.index != null)
+				return loader.index;
+			else try {
+				SpectrumIndex index = read(loader.indexFile);
+				if (index.isCurrent(spectrumFile))
+					return index;
+			} catch (IOException error) {
+			} catch (IllegalArgumentException error) {}
+		}
+		// the index file could not be written or read
+		if (loader.error != null)
+			throw loader.error;
+		else if (loader.index != null)
+			return loader.index;
+		else return build(spectrumFile);
+	}
+	
+	/**
+	 * Returns the file under the cache root in which the given spectrum
+	 * file's index is saved, or null if caching is off.
+	 */
+	public static File getIndexFile(File spectrumFile) {
+		if (spectrumFile == null)
+			return null;
+		else return FileIOUtils.getCacheFile(
+			spectrumFile.getAbsolutePath(), INDEX_EXTENSION);
+	}
+	
+	/*========================================================================
+	 * Property accessor methods
+	 *========================================================================*/
+	public int getScan(int spectrum) {
+		checkSpectrum(spectrum);
+		return scans[spectrum];
+	}
+	
+	public long getOffset(int spectrum) {
+		checkSpectrum(spectrum);
+		return offsets[spectrum];
+	}
+	
+	public int getLength(int spectrum) {
+		checkSpectrum(spectrum);
+		return lengths[spectrum];
+	}
+	
+	/**
+	 * Returns the MS level of the given spectrum, or 0 if it is unknown.
+	 */
+	public int getMSLevel(int spectrum) {
+		checkSpectrum(spectrum);
+		return msLevels[spectrum];
+	}
+	
+	/**
+	 * Returns the precursor m/z of the given spectrum,
+	 * or NaN if it has none.
+	 */
+	public double getPrecursorMz(int spectrum) {
+		checkSpectrum(spectrum);
+		return precursorMzs[spectrum];
+	}
+	
+	/**
+	 * Returns the length of the spectrum file this index was built from.
+	 */
+	public long getSourceLength() {
+		return sourceLength;
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Operation to build and save a spectrum file's index, if its
+	 * index file is missing or was not built from the file as it is now.
+	 */
+	private static class IndexLoader
+	implements OnDemandOperation {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File          spectrumFile;
+		private File          indexFile;
+		// index built by this operation, if it was executed
+		private SpectrumIndex index;
+		private IOException   error;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public IndexLoader(File spectrumFile) {
+			this.spectrumFile = spectrumFile;
+			indexFile = getIndexFile(spectrumFile);
+		}
+		
+		/*====================================================================
+		 * OnDemandOperation methods
+		 *====================================================================*/
+		public boolean execute() {
+			try {
+				index = build(spectrumFile);
+			} catch (IOException error) {
+				this.error = error;
+				return false;
+			}
+			// write to a temporary file first, so that readers never
+			// see a partially written index
+			File root = indexFile.getParentFile();
+			if (root.isDirectory() == false && root.mkdirs() == false &&
+				root.isDirectory() == false)
+				return false;
+			File temporary = new File(indexFile.getPath() + ".tmp");
+			try {
+				index.write(temporary);
+				if (temporary.renameTo(indexFile) == false) {
+					indexFile.delete();
+					if (temporary.renameTo(indexFile) == false)
+						throw new IOException();
+				}
+				return true;
+			} catch (Throwable error) {
+				temporary.delete();
+				return false;
+			}
+		}
+		
+		public boolean resourceExists() {
+			return indexFile.isFile();
+		}
+		
+		public boolean resourceDated() {
+			try {
+				return readHeader(indexFile).isCurrent(spectrumFile) == false;
+			} catch (Throwable error) {
+				return true;
+			}
+		}
+		
+		public String getResourceName() {
+			return indexFile.getAbsolutePath();
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private void add(
+		long offset, long length, int scan, int msLevel, double precursorMz
+	) {
+		if (size >= scans.length) {
+			int capacity = scans.length * 2;
+			scans = Arrays.copyOf(scans, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			msLevels = Arrays.copyOf(msLevels, capacity);
+			precursorMzs = Arrays.copyOf(precursorMzs, capacity);
+		}
+		scans[size] = scan >= 0 ? scan : -1;
+		offsets[size] = offset;
+		lengths[size] = (int)Math.min(length, Integer.MAX_VALUE);
+		msLevels[size] = (byte)Math.min(msLevel, Byte.MAX_VALUE);
+		precursorMzs[size] = precursorMz;
+		size++;
+	}
+	
+	/**
+	 * Numbers every spectrum by its one-based position, if none of them
+	 * has a scan number of its own.
+	 */
+	private void numberByPosition() {
+		for (int i=0; i<size; i++)
+			if (scans[i] >= 0)
+				return;
+		for (int i=0; i<size; i++)
+			scans[i] = i + 1;
+	}
+	
+	private void sortScans() {
+		scanKeys = new long[size];
+		for (int i=0; i<size; i++)
+			scanKeys[i] = (long)scans[i] << 32 | i;
+		Arrays.sort(scanKeys);
+	}
+	
+	private boolean isCurrent(File spectrumFile) {
+		return spectrumFile.length() == sourceLength &&
+			spectrumFile.lastModified() == sourceModified;
+	}
+	
+	/**
+	 * Reads just the spectrum file length and modification time
+	 * recorded in the given index file.
+	 */
+	private static SpectrumIndex readHeader(File indexFile)
+	throws IOException {
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(indexFile);
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			FileChannel channel = input.getChannel();
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			buffer.flip();
+			if (buffer.remaining() < HEADER_SIZE ||
+				buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				throw new IllegalArgumentException();
+			SpectrumIndex index = new SpectrumIndex(0);
+			index.sourceLength = buffer.getLong();
+			index.sourceModified = buffer.getLong();
+			return index;
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	private void checkSpectrum(int spectrum) {
+		if (spectrum < 0 || spectrum >= size)
+			throw new IndexOutOfBoundsException(String.format(
+				"Spectrum %d is not within the %d spectra of this index.",
+				spectrum, size));
+	}
+}
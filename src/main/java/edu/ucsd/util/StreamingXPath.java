@@ -0,0 +1,439 @@
+package edu.ucsd.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Evaluator of a subset of XPath over a streamed XML document, which
+ * holds no more than one small state per open element, so that its memory
+ * use does not depend on the size of the document.
+ *
+ * Supported expressions are absolute location paths of element steps,
+ * each joined to the last with "/" (child) or "//" (descendant), and each
+ * a name or "*" followed by any number of predicates on the element's own
+ * attributes: "@name" (exists), "@name='value'", "@name!='value'" or a
+ * comparison with a number, combined with "and", "or" and parentheses,
+ * e.g. "//spectrum/cvParam[@name='ms level' and @value='2']".  These are
+ * exactly the predicates that can be decided at an element's start tag.
+ * Names are compared as written in the document, prefix included,
+ * matching XPath over a DOM parsed without namespace awareness.
+ */
+public class StreamingXPath
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	// steps are tracked as bits of a long
+	private static final int MAX_STEPS = 63;
+	
+	/*========================================================================
+	 * Properties
+	 *========================================================================*/
+	private String      expression;
+	private String[]    names;
+	private boolean[]   descendant;
+	private Condition[] predicates;
+	
+	/*========================================================================
+	 * Constructors
+	 *========================================================================*/
+	private StreamingXPath(String expression, List<Step> steps) {
+		this.expression = expression;
+		int count = steps.size();
+		names = new String[count];
+		descendant = new boolean[count];
+		predicates = new Condition[count];
+		for (int i=0; i<count; i++) {
+			Step step = steps.get(i);
+			names[i] = step.name;
+			descendant[i] = step.descendant;
+			predicates[i] = step.predicate;
+		}
+	}
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	/**
+	 * Compiles the given XPath expression, throwing an
+	 * IllegalArgumentException if it is not in the supported subset.
+	 */
+	public static StreamingXPath compile(String expression) {
+		if (expression == null)
+			throw new NullPointerException("XPath expression cannot be null.");
+		return new Parser(expression).parsePath();
+	}
+	
+	/**
+	 * Counts the elements of the XML document read from the given stream
+	 * that this expression selects, leaving the stream open.
+	 */
+	public int count(InputStream input)
+	throws IOException {
+		if (input == null)
+			throw new NullPointerException("Input stream cannot be null.");
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(
+			XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		XMLStreamReader reader = null;
+		try {
+			reader = factory.createXMLStreamReader(input);
+			int last = names.length;
+			// states[d] has bit k set if the first k steps match the
+			// path to the open element at depth d (the document is at
+			// depth 0, where only the empty path matches)
+			long[] states = new long[64];
+			states[0] = 1L;
+			int depth = 0;
+			int count = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					long parent = states[depth];
+					long state = 0;
+					String name = null;
+					for (int k=0; k<last; k++) {
+						if ((parent & (1L << k)) == 0)
+							continue;
+						// a descendant step can still match deeper down
+						if (descendant[k])
+							state |= 1L << k;
+						if (names[k] != null) {
+							if (name == null)
+								name = getName(reader);
+							if (names[k].equals(name) == false)
+								continue;
+						}
+						if (predicates[k] == null ||
+							predicates[k].test(reader))
+							state |= 1L << (k + 1);
+					}
+					if ((state & (1L << last)) != 0)
+						count++;
+					if (++depth >= states.length)
+						states = Arrays.copyOf(states, states.length * 2);
+					states[depth] = state;
+				} else if (event == XMLStreamConstants.END_ELEMENT)
+					depth--;
+			}
+			return count;
+		} catch (XMLStreamException error) {
+			throw new IOException("Error parsing XML document", error);
+		} finally {
+			if (reader != null) try {
+				reader.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return expression;
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Test of the attributes of the element at a reader's start tag.
+	 */
+	private static interface Condition {
+		public boolean test(XMLStreamReader reader);
+	}
+	
+	/**
+	 * Struct to hold one parsed location step.
+	 */
+	private static class Step {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private boolean   descendant;
+		// null for "*"
+		private String    name;
+		private Condition predicate;
+	}
+	
+	/**
+	 * Attribute existence test or comparison, with XPath's semantics:
+	 * a missing attribute fails every comparison, and a comparison with a
+	 * number compares the attribute's value as a number.
+	 */
+	private static class Comparison
+	implements Condition {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private String  attribute;
+		// null for an existence test
+		private String  value;
+		private double  number;
+		private boolean numeric;
+		private boolean negated;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Comparison(
+			String attribute, String value, boolean numeric, boolean negated
+		) {
+			this.attribute = attribute;
+			this.value = value;
+			this.numeric = numeric;
+			this.negated = negated;
+			if (numeric)
+				number = Double.parseDouble(value);
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public boolean test(XMLStreamReader reader) {
+			String actual = getAttribute(reader, attribute);
+			if (actual == null)
+				return false;
+			else if (value == null)
+				return true;
+			boolean equal = false;
+			if (numeric) try {
+				equal = Double.parseDouble(actual.trim()) == number;
+			} catch (NumberFormatException error) {
+				// NaN equals nothing, but differs from everything
+				return negated;
+			} else equal = actual.equals(value);
+			return equal != negated;
+		}
+	}
+	
+	/**
+	 * Conjunction or disjunction of conditions.
+	 */
+	private static class Junction
+	implements Condition {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private Condition[] conditions;
+		private boolean     conjunction;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Junction(List<Condition> conditions, boolean conjunction) {
+			this.conditions =
+				conditions.toArray(new Condition[conditions.size()]);
+			this.conjunction = conjunction;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public boolean test(XMLStreamReader reader) {
+			for (Condition condition : conditions)
+				if (condition.test(reader) != conjunction)
+					return !conjunction;
+			return conjunction;
+		}
+	}
+	
+	/**
+	 * Recursive descent parser of the supported XPath subset.
+	 */
+	private static class Parser {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private String expression;
+		private int    position;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Parser(String expression) {
+			this.expression = expression;
+			position = 0;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public StreamingXPath parsePath() {
+			List<Step> steps = new ArrayList<Step>();
+			skipWhitespace();
+			if (peek() != '/')
+				fail("only absolute location paths are supported");
+			while (position < expression.length()) {
+				if (accept("/") == false)
+					fail("expected \"/\"");
+				Step step = new Step();
+				step.descendant = accept("/");
+				skipWhitespace();
+				if (accept("*") == false)
+					step.name = parseName();
+				List<Condition> predicates = new ArrayList<Condition>();
+				while (accept("[")) {
+					predicates.add(parseOr());
+					if (accept("]") == false)
+						fail("expected \"]\"");
+				}
+				if (predicates.size() == 1)
+					step.predicate = predicates.get(0);
+				else if (predicates.isEmpty() == false)
+					step.predicate = new Junction(predicates, true);
+				steps.add(step);
+				skipWhitespace();
+			}
+			if (steps.size() > MAX_STEPS)
+				fail(String.format(
+					"at most %d steps are supported", MAX_STEPS));
+			return new StreamingXPath(expression, steps);
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private Condition parseOr() {
+			List<Condition> conditions = new ArrayList<Condition>();
+			conditions.add(parseAnd());
+			while (acceptKeyword("or"))
+				conditions.add(parseAnd());
+			if (conditions.size() == 1)
+				return conditions.get(0);
+			else return new Junction(conditions, false);
+		}
+		
+		private Condition parseAnd() {
+			List<Condition> conditions = new ArrayList<Condition>();
+			conditions.add(parseComparison());
+			while (acceptKeyword("and"))
+				conditions.add(parseComparison());
+			if (conditions.size() == 1)
+				return conditions.get(0);
+			else return new Junction(conditions, true);
+		}
+		
+		private Condition parseComparison() {
+			if (accept("(")) {
+				Condition condition = parseOr();
+				if (accept(")") == false)
+					fail("expected \")\"");
+				return condition;
+			} else if (accept("@") == false)
+				fail("predicates may only test attributes");
+			String attribute = parseName();
+			boolean negated = false;
+			if (accept("!="))
+				negated = true;
+			else if (accept("=") == false)
+				return new Comparison(attribute, null, false, false);
+			skipWhitespace();
+			char quote = peek();
+			if (quote == '\'' || quote == '"') {
+				int end = expression.indexOf(quote, position + 1);
+				if (end < 0)
+					fail("unterminated string literal");
+				String value = expression.substring(position + 1, end);
+				position = end + 1;
+				return new Comparison(attribute, value, false, negated);
+			}
+			int start = position;
+			while (position < expression.length() &&
+				(Character.isDigit(peek()) || peek() == '.' || peek() == '-'))
+				position++;
+			try {
+				return new Comparison(attribute,
+					expression.substring(start, position), true, negated);
+			} catch (NumberFormatException error) {
+				fail("expected a string or number to compare with");
+				return null;
+			}
+		}
+		
+		private String parseName() {
+			skipWhitespace();
+			int start = position;
+			while (position < expression.length()) {
+				char character = peek();
+				if (Character.isLetterOrDigit(character) ||
+					character == '_' || character == '-' ||
+					character == '.' || character == ':')
+					position++;
+				else break;
+			}
+			if (position == start)
+				fail("expected a name");
+			return expression.substring(start, position);
+		}
+		
+		private boolean accept(String token) {
+			skipWhitespace();
+			if (expression.startsWith(token, position) == false)
+				return false;
+			position += token.length();
+			return true;
+		}
+		
+		private boolean acceptKeyword(String keyword) {
+			skipWhitespace();
+			int end = position + keyword.length();
+			if (expression.startsWith(keyword, position) == false ||
+				(end < expression.length() &&
+				Character.isLetterOrDigit(expression.charAt(end))))
+				return false;
+			position = end;
+			return true;
+		}
+		
+		private char peek() {
+			if (position >= expression.length())
+				return 0;
+			else return expression.charAt(position);
+		}
+		
+		private void skipWhitespace() {
+			while (position < expression.length() &&
+				Character.isWhitespace(peek()))
+				position++;
+		}
+		
+		private void fail(String problem) {
+			throw new IllegalArgumentException(String.format(
+				"Unsupported XPath expression \"%s\" at character %d: %s.",
+				expression, position, problem));
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private static String getName(XMLStreamReader reader) {
+		String prefix = reader.getPrefix();
+		if (prefix == null || prefix.isEmpty())
+			return reader.getLocalName();
+		else return prefix + ":" + reader.getLocalName();
+	}
+	
+	private static String getAttribute(XMLStreamReader reader, String name) {
+		for (int i=0; i<reader.getAttributeCount(); i++) {
+			String prefix = reader.getAttributePrefix(i);
+			String local = reader.getAttributeLocalName(i);
+			if (prefix == null || prefix.isEmpty()) {
+				if (local.equals(name))
+					return reader.getAttributeValue(i);
+			} else if (name.length() == prefix.length() + 1 + local.length() &&
+				name.startsWith(prefix) && name.endsWith(local) &&
+				name.charAt(prefix.length()) == ':')
+				return reader.getAttributeValue(i);
+		}
+		return null;
+	}
+}
@@ -1,6 +1,35 @@
 package edu.ucsd.workflow;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
 import edu.ucsd.data.ProteoSAFeFile;
+import edu.ucsd.util.SpectrumFileProfile;
+import edu.ucsd.util.SpectrumFileUtils;
+import edu.ucsd.util.SpectrumFileUtils.SpectrumFileType;
 
 public class CountSpectra
 {
@@ -8,45 +37,495 @@ public class CountSpectra
 	 * Constants
 	 *========================================================================*/
 	private static final String USAGE = "java -cp CCMSWorkflowUtils.jar " +
-		"edu.ucsd.workflow.CountSpectra <File>";;
-		
+		"edu.ucsd.workflow.CountSpectra <File> [-profile] (if specified, " +
+		"the file's checksum, hash, spectra at each MS level, precursor " +
+		"charges and retention time range are also printed, all gathered " +
+		"in a single pass over the file)" +
+		"\n\nor, to count many files in one run:\n\n" +
+		"java -cp CCMSWorkflowUtils.jar edu.ucsd.workflow.CountSpectra" +
+		"\n\t[<File>|<Directory>]... (directories are searched recursively " +
+		"for spectrum files)" +
+		"\n\t[-list <FileList>] (file listing one file or directory per line)" +
+		"\n\t[-threads <NumberOfThreads>] (files are counted this many at " +
+		"a time, and always printed in the order given; default 1)" +
+		"\n\t[-cache <CacheFile>] (counts of files whose size and " +
+		"modification time are unchanged since they were cached are " +
+		"not counted again)" +
+		"\n\nwhich prints a tab-separated table of each file's path, " +
+		"type and MS2 spectrum count";
+	private static final String[] BATCH_FIELDS =
+		new String[]{ "Path", "Type", "Spectra" };
+	private static final String[] CACHE_FIELDS =
+		new String[]{ "Path", "Size", "Modified", "Spectra" };
+	// number of counted files each thread may hold ahead of output
+	private static final int FILES_PER_THREAD = 4;
+	
 	/*========================================================================
 	 * Public interface methods
 	 *========================================================================*/
 	public static void main(String[] args) {
-		// get argument file
-		ProteoSAFeFile file = extractArgument(args);
-		if (file == null)
+		CountSpectraOperation count = extractArguments(args);
+		if (count == null)
 			die(USAGE);
+		else if (count.files != null)
+			countFiles(count);
+		else countFile(count.file, count.profile);
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Struct to maintain context data for each count operation.
+	 */
+	private static class CountSpectraOperation {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		// single file to count, with its optional profile
+		private ProteoSAFeFile file;
+		private boolean        profile;
+		// files to count in a batch, in output order
+		private List<File>     files;
+		private Set<String>    paths;
+		private int            threads;
+		private File           cacheFile;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public CountSpectraOperation(
+			List<String> paths, File listFile, String threads, File cacheFile,
+			boolean profile
+		) throws IOException {
+			// a single regular file with no batch options
+			// is counted exactly as it always has been
+			if (paths.size() == 1 && listFile == null && threads == null &&
+				cacheFile == null &&
+				new File(paths.get(0)).isDirectory() == false) {
+				file = new ProteoSAFeFile(paths.get(0));
+				validateFile(file);
+				this.profile = profile;
+				return;
+			} else if (profile)
+				throw new IllegalArgumentException(
+					"Only a single file can be profiled.");
+			// collect files to count, from the arguments and then the list
+			files = new ArrayList<File>();
+			this.paths = new HashSet<String>();
+			for (String path : paths)
+				addFiles(new File(path), true);
+			if (listFile != null) {
+				validateFile(listFile);
+				BufferedReader reader = null;
+				try {
+					reader = new BufferedReader(new InputStreamReader(
+						new FileInputStream(listFile), StandardCharsets.UTF_8));
+					String line = null;
+					while ((line = reader.readLine()) != null) {
+						line = line.trim();
+						if (line.isEmpty() == false)
+							addFiles(new File(line), true);
+					}
+				} finally {
+					try { reader.close(); } catch (Throwable error) {}
+				}
+			}
+			if (files.isEmpty())
+				throw new IllegalArgumentException(
+					"No files were found for which to count spectra.");
+			// set number of counting threads (default 1)
+			if (threads == null)
+				this.threads = 1;
+			else try {
+				this.threads = Integer.parseInt(threads);
+				if (this.threads <= 0)
+					throw new NumberFormatException();
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(
+					String.format("Number of threads \"%s\" must be a " +
+						"positive integer.", threads));
+			}
+			// validate cache file, which need not exist yet
+			if (cacheFile != null) {
+				if (cacheFile.isDirectory())
+					throw new IllegalArgumentException(
+						String.format("Cache file [%s] " +
+							"must be a normal (non-directory) file.",
+							cacheFile.getAbsolutePath()));
+				else if (cacheFile.exists() && cacheFile.canRead() == false)
+					throw new IllegalArgumentException(
+						String.format("Cache file [%s] must be readable.",
+							cacheFile.getAbsolutePath()));
+			}
+			this.cacheFile = cacheFile;
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		/**
+		 * Adds the given file, or the spectrum files found anywhere
+		 * under the given directory in name order.  Only files named
+		 * explicitly are counted whatever their type, and a file
+		 * named more than once is only counted once.
+		 */
+		private void addFiles(File file, boolean named) {
+			if (file.isDirectory()) {
+				if (file.canRead() == false)
+					throw new IllegalArgumentException(
+						String.format("Directory [%s] must be readable.",
+							file.getAbsolutePath()));
+				File[] children = file.listFiles();
+				if (children == null)
+					throw new IllegalArgumentException(
+						String.format("Directory [%s] could not be listed.",
+							file.getAbsolutePath()));
+				Arrays.sort(children);
+				for (File child : children)
+					addFiles(child, false);
+			} else if (named) {
+				validateFile(file);
+				if (paths.add(file.getAbsolutePath()))
+					files.add(file);
+			} else if (file.isFile() &&
+				SpectrumFileUtils.getSpectrumFileType(file) != null &&
+				paths.add(file.getAbsolutePath()))
+				files.add(file);
+		}
+		
+		private static void validateFile(File file) {
+			if (file.exists() == false)
+				throw new IllegalArgumentException(
+					String.format("Argument file [%s] could not be found.",
+						file.getAbsolutePath()));
+			else if (file.isFile() == false)
+				throw new IllegalArgumentException(
+					String.format("Argument file [%s] is not a regular file.",
+						file.getAbsolutePath()));
+			else if (file.canRead() == false)
+				throw new IllegalArgumentException(
+					String.format("Argument file [%s] is not readable.",
+						file.getAbsolutePath()));
+		}
+	}
+	
+	/**
+	 * Struct to hold a file's cached spectrum count, along with the
+	 * size and modification time of the file when it was counted.
+	 */
+	private static class CachedCount {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private long size;
+		private long modified;
+		private int  spectra;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public CachedCount(long size, long modified, int spectra) {
+			this.size = size;
+			this.modified = modified;
+			this.spectra = spectra;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public boolean matches(File file) {
+			return file.length() == size && file.lastModified() == modified;
+		}
+	}
+	
+	/**
+	 * Task to count the MS2 spectra in one file, unless the file is
+	 * unchanged since its cached count was taken.
+	 */
+	private static class SpectrumCounter
+	implements Callable<CachedCount> {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File        file;
+		private CachedCount cached;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public SpectrumCounter(File file, CachedCount cached) {
+			this.file = file;
+			this.cached = cached;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public CachedCount call()
+		throws Exception {
+			if (cached != null && cached.matches(file))
+				return cached;
+			// note the file's state before counting, so that a file
+			// changed while it was counted is counted again next time
+			long size = file.length();
+			long modified = file.lastModified();
+			Integer spectra = SpectrumFileUtils.countMS2Spectra(file);
+			if (spectra == null)
+				throw new IOException("File could not be read");
+			return new CachedCount(size, modified, spectra);
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private static void countFile(ProteoSAFeFile file, boolean profile) {
+		// profile argument file, if requested, which counts its spectra too
+		SpectrumFileProfile fileProfile = null;
+		if (profile) {
+			fileProfile = file.getProfile();
+			if (fileProfile == null)
+				die(String.format("Argument file [%s] could not be profiled.",
+					file.getAbsolutePath()));
+		}
 		// count spectra in argument file
 		Integer spectra = file.getSpectra();
 		if (spectra == null)
 			System.out.println("0");
 		else System.out.println(Integer.toString(spectra));
+		if (fileProfile != null)
+			printProfile(fileProfile);
 	}
 	
-	/*========================================================================
-	 * Convenience methods
-	 *========================================================================*/
-	private static ProteoSAFeFile extractArgument(String[] args) {
+	private static void countFiles(CountSpectraOperation count) {
+		ExecutorService executor = null;
+		try {
+			Map<String, CachedCount> cache = readCache(count.cacheFile);
+			// with more than one thread, count files in a shared pool;
+			// otherwise, each file is simply counted when it is submitted
+			if (count.threads > 1)
+				executor = Executors.newFixedThreadPool(count.threads);
+			PrintWriter output = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+			output.println(join(BATCH_FIELDS));
+			// count a bounded number of files ahead,
+			// and then print each file's count in turn
+			Deque<FutureTask<CachedCount>> pending =
+				new ArrayDeque<FutureTask<CachedCount>>();
+			int submitted = 0;
+			int written = 0;
+			int failed = 0;
+			while (written < count.files.size()) {
+				while (submitted < count.files.size() &&
+					pending.size() < count.threads * FILES_PER_THREAD) {
+					File file = count.files.get(submitted++);
+					pending.add(submit(new SpectrumCounter(
+						file, cache.get(file.getAbsolutePath())), executor));
+				}
+				// print the next file's count, in order
+				File file = count.files.get(written++);
+				SpectrumFileType type =
+					SpectrumFileUtils.getSpectrumFileType(file);
+				String spectra = null;
+				try {
+					CachedCount counted = pending.poll().get();
+					cache.put(file.getAbsolutePath(), counted);
+					spectra = Integer.toString(counted.spectra);
+				} catch (ExecutionException error) {
+					// a file that cannot be counted is reported,
+					// but does not stop the others from being counted
+					output.flush();
+					System.err.println(String.format(
+						"Could not count spectra in file [%s]: %s",
+						file.getAbsolutePath(), error.getCause()));
+					spectra = "";
+					failed++;
+				}
+				output.println(join(new String[]{
+					file.getPath(), type == null ? "unknown" : type.toString(),
+					spectra }));
+			}
+			output.flush();
+			if (count.cacheFile != null)
+				writeCache(cache, count.cacheFile);
+			if (failed > 0)
+				die(String.format("Spectra could not be counted in %d of " +
+					"the %d argument files", failed, count.files.size()));
+		} catch (Throwable error) {
+			die(null, error);
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+		}
+	}
+	
+	private static Map<String, CachedCount> readCache(File cacheFile)
+	throws IOException {
+		Map<String, CachedCount> cache = new HashMap<String, CachedCount>();
+		if (cacheFile == null || cacheFile.exists() == false)
+			return cache;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(cacheFile), StandardCharsets.UTF_8));
+			String line = reader.readLine();
+			if (line == null)
+				return cache;
+			else if (line.equals(join(CACHE_FIELDS)) == false)
+				throw new IllegalArgumentException(String.format(
+					"Cache file [%s] does not have the expected header.",
+					cacheFile.getAbsolutePath()));
+			// a malformed entry is simply counted again
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != CACHE_FIELDS.length)
+					continue;
+				else try {
+					cache.put(fields[0], new CachedCount(
+						Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+						Integer.parseInt(fields[3])));
+				} catch (NumberFormatException error) {}
+			}
+		} finally {
+			try { reader.close(); } catch (Throwable error) {}
+		}
+		return cache;
+	}
+	
+	/**
+	 * Writes the given cache, sorted by path, to a temporary file that
+	 * then replaces the cache file, so that an interrupted run never
+	 * leaves a partial cache behind.
+	 */
+	private static void writeCache(
+		Map<String, CachedCount> cache, File cacheFile
+	) throws IOException {
+		File temporary = new File(cacheFile.getPath() + ".tmp");
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(temporary), StandardCharsets.UTF_8)));
+			writer.println(join(CACHE_FIELDS));
+			for (Map.Entry<String, CachedCount> entry :
+				new TreeMap<String, CachedCount>(cache).entrySet()) {
+				CachedCount cached = entry.getValue();
+				writer.println(join(new String[]{ entry.getKey(),
+					Long.toString(cached.size), Long.toString(cached.modified),
+					Integer.toString(cached.spectra) }));
+			}
+			writer.close();
+			if (writer.checkError())
+				throw new IOException(String.format(
+					"Could not write cache file [%s]",
+					temporary.getAbsolutePath()));
+			writer = null;
+			if (temporary.renameTo(cacheFile) == false) {
+				cacheFile.delete();
+				if (temporary.renameTo(cacheFile) == false)
+					throw new IOException(String.format(
+						"Could not replace cache file [%s]",
+						cacheFile.getAbsolutePath()));
+			}
+		} finally {
+			if (writer != null) {
+				writer.close();
+				temporary.delete();
+			}
+		}
+	}
+	
+	private static <T> FutureTask<T> submit(
+		Callable<T> callable, ExecutorService executor
+	) {
+		FutureTask<T> task = new FutureTask<T>(callable);
+		if (executor == null)
+			task.run();
+		else executor.execute(task);
+		return task;
+	}
+	
+	private static String join(String[] fields) {
+		StringBuilder line = new StringBuilder();
+		for (String field : fields) {
+			if (line.length() > 0)
+				line.append("\t");
+			line.append(field);
+		}
+		return line.toString();
+	}
+	
+	private static void printProfile(SpectrumFileProfile profile) {
+		System.out.println(String.format(
+			"CRC32 checksum = %d", profile.getChecksum()));
+		System.out.println(String.format("MD5 hash = %s", profile.getHash()));
+		if (profile.getType() == null)
+			return;
+		else if (profile.hasSpectrumStatistics() == false) {
+			System.out.println("Spectra: file could not be scanned");
+			return;
+		}
+		System.out.println(String.format(
+			"Spectra = %d (MS1 = %d, MS2 = %d, MSn = %d)",
+			profile.getSpectrumCount(), profile.getMS1SpectrumCount(),
+			profile.getMS2SpectrumCount(), profile.getMSnSpectrumCount()));
+		StringBuilder charges = new StringBuilder();
+		for (Map.Entry<Integer, Integer> charge :
+			profile.getChargeCounts().entrySet()) {
+			if (charges.length() > 0)
+				charges.append(", ");
+			if (charge.getKey() == 0)
+				charges.append("unknown");
+			else charges.append(charge.getKey());
+			charges.append(" = ").append(charge.getValue());
+		}
+		System.out.println(String.format("Precursor charges: %s", charges));
+		Double minimum = profile.getMinimumRetentionTime();
+		if (minimum == null)
+			System.out.println("Retention time range: unknown");
+		else System.out.println(String.format(
+			"Retention time range: %.3f - %.3f seconds",
+			minimum, profile.getMaximumRetentionTime()));
+	}
+	
+	private static CountSpectraOperation extractArguments(String[] args) {
 		if (args == null || args.length < 1)
 			die(String.format("Please provide an argument file " +
 				"for which to count spectra:\n%s", USAGE));
-		else if (args.length > 1)
-			die(String.format("Expected at most one argument:\n%s", USAGE));
-		// get argument file
-		ProteoSAFeFile file = new ProteoSAFeFile(args[0]);
-		// verify specified file
-		if (file.exists() == false)
-			die(String.format("Argument file [%s] could not be found.",
-				file.getAbsolutePath()));
-		else if (file.isFile() == false)
-			die(String.format("Argument file [%s] is not a regular file.",
-				file.getAbsolutePath()));
-		else if (file.canRead() == false)
-			die(String.format("Argument file [%s] is not readable.",
-				file.getAbsolutePath()));
-		return file;
+		List<String> paths = new ArrayList<String>();
+		File listFile = null;
+		String threads = null;
+		File cacheFile = null;
+		boolean profile = false;
+		for (int i=0; i<args.length; i++) {
+			String argument = args[i];
+			if (argument == null)
+				return null;
+			else if (argument.equals("-profile"))
+				profile = true;
+			else if (argument.startsWith("-")) {
+				if (i >= args.length - 1)
+					return null;
+				String value = args[++i];
+				if (argument.equals("-list"))
+					listFile = new File(value);
+				else if (argument.equals("-threads"))
+					threads = value;
+				else if (argument.equals("-cache"))
+					cacheFile = new File(value);
+				else return null;
+			} else paths.add(argument);
+		}
+		if (paths.isEmpty() && listFile == null)
+			die(String.format("Please provide an argument file " +
+				"for which to count spectra:\n%s", USAGE));
+		try {
+			return new CountSpectraOperation(
+				paths, listFile, threads, cacheFile, profile);
+		} catch (Throwable error) {
+			System.err.println(error.getMessage());
+			return null;
+		}
 	}
 	
 	private static void die(String message) {
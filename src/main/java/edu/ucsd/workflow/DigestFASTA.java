@@ -0,0 +1,381 @@
+package edu.ucsd.workflow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import edu.ucsd.util.CommonUtils;
+import edu.ucsd.util.PeptideIndex;
+
+public class DigestFASTA
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	private static final String USAGE = "java -jar CCMSWorkflowUtils.jar" +
+		"\n\t-tool digestFasta" +
+		"\n\t-index <PeptideIndexFile>" +
+		"\n\t[-input <FastaFile>] (if specified, the FASTA file is digested " +
+		"and the resulting peptide index is written to the index file; " +
+		"otherwise the existing index file is used)" +
+		"\n\t[-enzyme trypsin|trypsinP|lysC|argC|gluC|aspN|chymotrypsin] " +
+		"(default trypsin)" +
+		"\n\t[-missedCleavages <Number>] (default 2)" +
+		"\n\t[-minLength <Residues>] (default 6)" +
+		"\n\t[-maxLength <Residues>] (default 40)" +
+		"\n\t[-equateIL true|false] (whether isoleucine and leucine are " +
+		"indistinguishable; default true)" +
+		"\n\t[-clipMethionine true|false] (whether peptides are also " +
+		"generated as if each protein's initiator methionine were removed; " +
+		"default true)" +
+		"\n\t[-psms <PSMFile>] (TSV file with header whose peptides should " +
+		"be mapped to proteins)" +
+		"\n\t[-peptideColumn <ColumnHeader>] (column of the PSM file " +
+		"containing peptide strings; default \"Peptide\")" +
+		"\n\t[-output <OutputFile>] (PSM file with an added \"Proteins\" " +
+		"column, listing each peptide's proteins separated by semicolons)";
+	private static final String PROTEINS_COLUMN = "Proteins";
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	public static void main(String[] args) {
+		FASTADigestion digestion = extractArguments(args);
+		if (digestion == null)
+			die(USAGE);
+		try {
+			// build the peptide index, if a FASTA file was specified
+			if (digestion.input != null) {
+				long start = System.currentTimeMillis();
+				int peptides = PeptideIndex.build(digestion.input,
+					digestion.index, digestion.enzyme,
+					digestion.missedCleavages, digestion.minLength,
+					digestion.maxLength, digestion.equateIL,
+					digestion.clipMethionine);
+				System.out.println(String.format(
+					"Indexed %d distinct peptides from FASTA file [%s] " +
+					"in %d ms.", peptides, digestion.input.getName(),
+					System.currentTimeMillis() - start));
+			}
+			// map the PSMs' peptides, if a PSM file was specified
+			if (digestion.psms != null) {
+				long start = System.currentTimeMillis();
+				PeptideIndex index = PeptideIndex.read(digestion.index);
+				int[] counts = mapPeptides(digestion, index);
+				System.out.println(String.format(
+					"Mapped %d of %d PSMs to proteins in %d ms.",
+					counts[0], counts[1],
+					System.currentTimeMillis() - start));
+			}
+		} catch (Throwable error) {
+			die(null, error);
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Struct to maintain context data for each FASTA digestion operation.
+	 */
+	private static class FASTADigestion {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File                index;
+		private File                input;
+		private PeptideIndex.Enzyme enzyme;
+		private int                 missedCleavages;
+		private int                 minLength;
+		private int                 maxLength;
+		private boolean             equateIL;
+		private boolean             clipMethionine;
+		private File                psms;
+		private String              peptideColumn;
+		private File                output;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public FASTADigestion(
+			File index, File input, String enzyme, String missedCleavages,
+			String minLength, String maxLength, String equateIL,
+			String clipMethionine, File psms, String peptideColumn,
+			File output
+		) throws IOException {
+			// validate index file
+			if (index == null)
+				throw new NullPointerException(
+					"Index file cannot be null.");
+			else if (input == null && (index.isFile() == false ||
+				index.canRead() == false))
+				throw new IllegalArgumentException(
+					String.format("Index file \"%s\" must be a readable " +
+						"file, unless a FASTA file is specified to build it.",
+						index.getAbsolutePath()));
+			else if (input != null && (index.isDirectory() ||
+				(index.exists() && index.canWrite() == false)))
+				throw new IllegalArgumentException(
+					String.format("Index file \"%s\" must be writable.",
+						index.getAbsolutePath()));
+			this.index = index;
+			// validate FASTA file, if one was specified
+			if (input != null) {
+				if (input.isFile() == false)
+					throw new IllegalArgumentException(
+						String.format(
+							"Input file \"%s\" must be a regular file.",
+							input.getAbsolutePath()));
+				else if (input.canRead() == false)
+					throw new IllegalArgumentException(
+						String.format("Input file \"%s\" must be readable.",
+							input.getAbsolutePath()));
+			}
+			this.input = input;
+			// set digestion enzyme (default trypsin)
+			if (enzyme == null)
+				this.enzyme = PeptideIndex.Enzyme.TRYPSIN;
+			else try {
+				this.enzyme =
+					PeptideIndex.Enzyme.valueOf(enzyme.toUpperCase());
+			} catch (IllegalArgumentException error) {
+				throw new IllegalArgumentException(
+					String.format("Enzyme \"%s\" must be one of " +
+						"\"trypsin\", \"trypsinP\", \"lysC\", \"argC\", " +
+						"\"gluC\", \"aspN\" or \"chymotrypsin\".", enzyme));
+			}
+			// set digestion limits
+			this.missedCleavages = parseCount(
+				missedCleavages, 2, 0, "Number of missed cleavages");
+			this.minLength = parseCount(
+				minLength, 6, 1, "Minimum peptide length");
+			this.maxLength = parseCount(
+				maxLength, 40, 1, "Maximum peptide length");
+			if (this.maxLength < this.minLength)
+				throw new IllegalArgumentException(
+					String.format("Maximum peptide length (%d) cannot be " +
+						"less than minimum peptide length (%d).",
+						this.maxLength, this.minLength));
+			this.equateIL = parseFlag(equateIL, true, "Equate I/L flag");
+			this.clipMethionine = parseFlag(
+				clipMethionine, true, "Clip methionine flag");
+			// validate PSM file and its output file, if specified
+			if (psms != null) {
+				if (psms.isFile() == false || psms.canRead() == false)
+					throw new IllegalArgumentException(
+						String.format("PSM file \"%s\" must be a readable " +
+							"regular file.", psms.getAbsolutePath()));
+				else if (output == null)
+					throw new NullPointerException(
+						"Output file cannot be null when a PSM file " +
+						"is specified.");
+				// attempt to create output file and test its writeability
+				else if (output.createNewFile() == false ||
+					output.canWrite() == false)
+					throw new IllegalArgumentException(
+						String.format("Output file \"%s\" must be writable.",
+							output.getAbsolutePath()));
+			} else if (input == null)
+				throw new IllegalArgumentException(
+					"Either a FASTA file to digest or a PSM file to map " +
+					"must be specified.");
+			this.psms = psms;
+			this.output = output;
+			if (peptideColumn == null)
+				this.peptideColumn = "Peptide";
+			else this.peptideColumn = peptideColumn;
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private static int parseCount(
+			String value, int defaultValue, int minimum, String description
+		) {
+			if (value == null)
+				return defaultValue;
+			try {
+				int count = Integer.parseInt(value);
+				if (count < minimum)
+					throw new NumberFormatException();
+				return count;
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(
+					String.format("%s \"%s\" must be an integer no less " +
+						"than %d.", description, value, minimum));
+			}
+		}
+		
+		private static boolean parseFlag(
+			String value, boolean defaultValue, String description
+		) {
+			if (value == null)
+				return defaultValue;
+			Boolean parsed = CommonUtils.parseBooleanColumn(value);
+			if (parsed == null)
+				throw new IllegalArgumentException(
+					String.format("%s \"%s\" must be a boolean string " +
+						"value.", description, value));
+			return parsed;
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	/**
+	 * Copies the PSM file to the output file, adding the proteins of each
+	 * row's peptide as a new last column, and returns the numbers of rows
+	 * mapped to at least one protein, and of all rows.
+	 */
+	private static int[] mapPeptides(
+		FASTADigestion digestion, PeptideIndex index
+	) throws IOException {
+		BufferedReader reader = null;
+		PrintWriter writer = null;
+		try {
+			reader = new BufferedReader(new FileReader(digestion.psms));
+			writer = new PrintWriter(digestion.output);
+			String line = reader.readLine();
+			if (line == null)
+				throw new IllegalArgumentException(String.format(
+					"PSM file [%s] has no header line.",
+					digestion.psms.getName()));
+			String[] headers = line.split("\t");
+			int column = -1;
+			for (int i=0; i<headers.length; i++) {
+				if (headers[i].equals(digestion.peptideColumn)) {
+					column = i;
+					break;
+				}
+			}
+			if (column < 0)
+				throw new IllegalArgumentException(String.format(
+					"PSM file [%s] has no column \"%s\".",
+					digestion.psms.getName(), digestion.peptideColumn));
+			writer.print(line);
+			writer.print('\t');
+			writer.println(PROTEINS_COLUMN);
+			int mapped = 0;
+			int rows = 0;
+			StringBuilder proteins = new StringBuilder();
+			while ((line = reader.readLine()) != null) {
+				rows++;
+				// find the peptide column without splitting the whole row
+				int start = 0;
+				for (int i=0; i<column && start >= 0; i++) {
+					start = line.indexOf('\t', start);
+					if (start >= 0)
+						start++;
+				}
+				proteins.setLength(0);
+				if (start >= 0) {
+					int end = line.indexOf('\t', start);
+					if (end < 0)
+						end = line.length();
+					List<String> names =
+						index.getProteins(line.subSequence(start, end));
+					for (String name : names) {
+						if (proteins.length() > 0)
+							proteins.append(';');
+						proteins.append(name);
+					}
+					if (names.isEmpty() == false)
+						mapped++;
+				}
+				writer.print(line);
+				writer.print('\t');
+				writer.println(proteins);
+			}
+			if (writer.checkError())
+				throw new IOException(String.format(
+					"There was an error writing output file [%s].",
+					digestion.output.getName()));
+			return new int[]{mapped, rows};
+		} finally {
+			if (reader != null) try {
+				reader.close();
+			} catch (Throwable error) {}
+			if (writer != null) try {
+				writer.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	private static FASTADigestion extractArguments(String[] args) {
+		if (args == null || args.length < 1)
+			return null;
+		File index = null;
+		File input = null;
+		String enzyme = null;
+		String missedCleavages = null;
+		String minLength = null;
+		String maxLength = null;
+		String equateIL = null;
+		String clipMethionine = null;
+		File psms = null;
+		String peptideColumn = null;
+		File output = null;
+		for (int i=0; i<args.length; i++) {
+			String argument = args[i];
+			if (argument == null)
+				return null;
+			else {
+				i++;
+				if (i >= args.length)
+					return null;
+				String value = args[i];
+				if (argument.equals("-index"))
+					index = new File(value);
+				else if (argument.equals("-input"))
+					input = new File(value);
+				else if (argument.equals("-enzyme"))
+					enzyme = value;
+				else if (argument.equals("-missedCleavages"))
+					missedCleavages = value;
+				else if (argument.equals("-minLength"))
+					minLength = value;
+				else if (argument.equals("-maxLength"))
+					maxLength = value;
+				else if (argument.equals("-equateIL"))
+					equateIL = value;
+				else if (argument.equals("-clipMethionine"))
+					clipMethionine = value;
+				else if (argument.equals("-psms"))
+					psms = new File(value);
+				else if (argument.equals("-peptideColumn"))
+					peptideColumn = value;
+				else if (argument.equals("-output"))
+					output = new File(value);
+				else return null;
+			}
+		}
+		try {
+			return new FASTADigestion(index, input, enzyme, missedCleavages,
+				minLength, maxLength, equateIL, clipMethionine, psms,
+				peptideColumn, output);
+		} catch (Throwable error) {
+			System.err.println(error.getMessage());
+			return null;
+		}
+	}
+	
+	private static void die(String message) {
+		die(message, null);
+	}
+	
+	private static void die(String message, Throwable error) {
+		if (message == null)
+			message = "There was an error digesting FASTA sequences";
+		if (error == null)
+			message += ".";
+		else message += ":";
+		System.err.println(message);
+		if (error != null)
+			error.printStackTrace();
+		System.exit(1);
+	}
+}
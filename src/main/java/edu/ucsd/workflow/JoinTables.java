@@ -1,16 +1,30 @@
 package edu.ucsd.workflow;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
+
+import edu.ucsd.util.CommonUtils;
+
 public class JoinTables
 {
 	/*========================================================================
@@ -18,10 +32,53 @@ public class JoinTables
 	 *========================================================================*/
 	private static final String USAGE = "java -jar CCMSWorkflowUtils.jar" +
 		"\n\t-tool joinTables" +
-		"\n\t-input <InputFile1> <InputFile2>" +
+		"\n\t-input <InputFile1> <InputFile2> [<InputFile3> ...]" +
 		"\n\t-output <OutputFile>" +
-		"\n\t-keys <CommaSeparatedHeaderList>" +
-		"\n\t[-separator <DelimiterString>] (default tab)";
+		"\n\t-keys <CommaSeparatedHeaderList> (specify once for all input " +
+		"files, or once per input file in the same order if the key columns " +
+		"are named differently in each file)" +
+		"\n\t[-separator <DelimiterString>] (default tab)" +
+		"\n\t[-memory <Megabytes>] (memory budget for the rows of all input " +
+		"files but the last; if exceeded, all files are partitioned by key " +
+		"into temporary files that are joined one at a time, and output " +
+		"rows are then grouped by partition rather than following the order " +
+		"of the last input file; default one quarter of the maximum heap " +
+		"size)" +
+		"\n\t[-sorted lexical|numeric] (if specified, all input files " +
+		"must already be sorted in ascending order of their key columns, " +
+		"compared either as byte strings like \"LC_ALL=C sort\" or as " +
+		"numbers like \"sort -g\" (keys are still only joined when their " +
+		"values are identical, so \"1\" and \"1.0\" are not joined); the " +
+		"files are then merge joined in a single streaming pass, and the " +
+		"first out-of-order row is an error)" +
+		"\n\t[-type strict|inner|left|right|full] (default strict: every " +
+		"key must appear exactly once in each file; otherwise rows are " +
+		"matched as in the corresponding SQL join, where left and right " +
+		"refer to the first and last input files, and the columns of a " +
+		"missing row are left blank)" +
+		"\n\t[-manyToMany true|false] (if true, keys may repeat in every " +
+		"input file but the last, and every combination of matching rows " +
+		"is joined; requires a -type other than strict; default false)";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// number of on-disk partitions created each time the budget is exceeded
+	private static final int PARTITIONS = 64;
+	// maximum depth of re-partitioning for partitions that still don't fit
+	private static final int MAX_PARTITION_LEVEL = 4;
+	// approximate fixed heap cost of each in-memory row, beyond its contents
+	private static final long ROW_OVERHEAD = 128L;
+	private static enum KeyOrder { LEXICAL, NUMERIC }
+	private static enum JoinType {
+		STRICT, INNER, LEFT, RIGHT, FULL;
+		public boolean accepts(boolean first, boolean last, boolean all) {
+			if (this == LEFT)
+				return first;
+			else if (this == RIGHT)
+				return last;
+			else if (this == FULL)
+				return true;
+			else return all;
+		}
+	}
 	
 	/*========================================================================
 	 * Public interface methods
@@ -31,144 +88,59 @@ public class JoinTables
 		if (join == null)
 			die(USAGE);
 		// set up file I/O objects
-		BufferedReader input1 = null;
-		BufferedReader input2 = null;
+		BufferedReader[] inputs = new BufferedReader[join.inputFiles.length];
 		PrintWriter output = null;
+		JoinEngine engine = null;
+		Throwable thrownError = null;
 		try {
-			// analyze input files
-			input1 = new BufferedReader(new FileReader(join.inputFile1));
-			input2 = new BufferedReader(new FileReader(join.inputFile2));
-			// capture column headers
-			List<String> fields1 = Arrays.asList(
-				input1.readLine().split(join.delimiter));
-			List<String> fields2 = Arrays.asList(
-				input2.readLine().split(join.delimiter));
+			JoinInput[] joinInputs = new JoinInput[inputs.length];
+			RowReader[] readers = new RowReader[inputs.length];
+			for (int i=0; i<inputs.length; i++) {
+				// analyze input file
+				File inputFile = join.inputFiles[i];
+				inputs[i] = new BufferedReader(new FileReader(inputFile));
+				// capture column headers
+				List<String> fields = Arrays.asList(
+					inputs[i].readLine().split(join.delimiter));
+				// determine the column indices of the specified header keys
+				String[] keyNames = join.keys[i];
+				int[] keys = new int[keyNames.length];
+				for (int j=0; j<keys.length; j++) {
+					keys[j] = fields.indexOf(keyNames[j]);
+					if (keys[j] < 0)
+						throw new IllegalArgumentException(
+							String.format("Key \"%s\" could not be found " +
+								"as a column header in file \"%s\".",
+								keyNames[j], inputFile.getAbsolutePath()));
+				}
+				joinInputs[i] =
+					new JoinInput(inputFile, fields, keys, join.delimiter);
+				readers[i] = new TextRowReader(joinInputs[i], inputs[i]);
+			}
 			// combine headers into a single merged header line
-			List<String> fields = new ArrayList<String>(fields1);
-			for (String field : fields2)
-				if (fields.contains(field) == false)
-					fields.add(field);
+			Projection projection = new Projection(joinInputs);
 			// write the merged header line to the output file
 			output = new PrintWriter(join.outputFile);
-			output.println(printRow(fields, join.delimiter));
-			// determine the column indices of the specified header keys
-			List<Integer> keys1 = new ArrayList<Integer>(join.keys.length);
-			List<Integer> keys2 = new ArrayList<Integer>(join.keys.length);
-			for (String key : join.keys) {
-				// find the index of this key in the first field list
-				int index1 = fields1.indexOf(key);
-				if (index1 < 0)
-					throw new IllegalArgumentException(
-						String.format("Key \"%s\" could not be found " +
-							"as a column header in file \"%s\".",
-							key, join.inputFile1.getAbsolutePath()));
-				else keys1.add(index1);
-				// find the index of this key in the second field list
-				int index2 = fields2.indexOf(key);
-				if (index2 < 0)
-					throw new IllegalArgumentException(
-						String.format("Key \"%s\" could not be found " +
-							"as a column header in file \"%s\".",
-							key, join.inputFile2.getAbsolutePath()));
-				else keys2.add(index2);
-			}
-			// read the rows of the first input file
-			Map<List<String>, List<String>> rows =
-				new HashMap<List<String>, List<String>>();
-			String line = null;
-			int i = 1;
-			while (true) {
-				line = input1.readLine();
-				if (line == null)
-					break;
-				List<String> id = new ArrayList<String>(keys1.size());
-				List<String> row = new ArrayList<String>(
-					Arrays.asList(line.split(join.delimiter)));
-				if (row.size() != fields1.size())
-					throw new IllegalArgumentException(
-						String.format("Row %d of file \"%s\" does not have " +
-							"the same number of columns as the file's header " +
-							"line (expected %d, found %d).",
-							i, join.inputFile1.getAbsolutePath(),
-							fields1.size(), row.size()));
-				for (Integer key : keys1)
-					id.add(row.get(key));
-				if (rows.containsKey(id))
-					throw new IllegalArgumentException(
-						String.format("Key \"%s\" appeared in " +
-							"two separate rows in file \"%s\".",
-							id, join.inputFile1.getAbsolutePath()));
-				else rows.put(id, row);
-				i++;
-			}
-			// read the rows of the second input file, merge them
-			i = 1;
-			while (true) {
-				line = input2.readLine();
-				if (line == null)
-					break;
-				List<String> id = new ArrayList<String>(keys2.size());
-				List<String> row2 = Arrays.asList(line.split(join.delimiter));
-				if (row2.size() != fields2.size())
-					throw new IllegalArgumentException(
-						String.format("Row %d of file \"%s\" does not have " +
-							"the same number of columns as the file's header " +
-							"line (expected %d, found %d).",
-							i, join.inputFile2.getAbsolutePath(),
-							fields2.size(), row2.size()));
-				for (Integer key : keys2)
-					id.add(row2.get(key));
-				if (rows.containsKey(id) == false)
-					throw new IllegalArgumentException(
-						String.format("Key \"%s\" appeared in row %d of file " +
-							"\"%s\", but did not appear in file \"%s\".",
-							id, i, join.inputFile2.getAbsolutePath(),
-							join.inputFile1.getAbsoluteFile()));
-				// verify the consistency of all shared columns, and
-				// merge new columns into the existing row object
-				List<String> row = rows.get(id);
-				for (String field : fields2) {
-					String value2 = row2.get(fields2.indexOf(field));
-					if (fields1.contains(field)) {
-						String value1 = row.get(fields1.indexOf(field));
-						if (value1.equals(value2) == false)
-							throw new IllegalArgumentException(
-								String.format("The value of column \"%s\" " +
-								"was not consistent between rows sharing key " +
-								"\"%s\" (found \"%s\" in file \"%s\", and " +
-								"\"%s\" in file \"%s\").", field, id,
-								value1, join.inputFile1.getAbsolutePath(),
-								value2, join.inputFile2.getAbsolutePath()));
-					} else row.add(value2);
-				}
-				// write the merged row to the output file
-				output.println(printRow(row, join.delimiter));
-				// remove just-printed row from the first file's rows map
-				rows.remove(id);
-				i++;
-			}
-			// verify that no rows are left over from the
-			// first file that weren't in the second file
-			if (rows.size() > 0) {
-				List<String> id = rows.keySet().iterator().next();
-				throw new IllegalArgumentException(
-					String.format("Key \"%s\" appeared in file " +
-						"\"%s\", but did not appear in file \"%s\".",
-						id, join.inputFile1.getAbsolutePath(),
-						join.inputFile2.getAbsoluteFile()));
-			}
+			output.println(printRow(projection.fields, join.delimiter));
+			// join the rows of all input files
+			if (join.order != null)
+				engine = new MergeJoin(join, joinInputs, projection, output);
+			else engine = new HashJoin(join, joinInputs, projection, output);
+			engine.join(readers);
 		} catch (Throwable error) {
-			die(null, error);
+			thrownError = error;
 		} finally {
-			if (input1 != null) try {
-				input1.close();
-			} catch (Throwable error) {}
-			if (input2 != null) try {
-				input2.close();
-			} catch (Throwable error) {}
+			for (BufferedReader input : inputs)
+				if (input != null) try {
+					input.close();
+				} catch (Throwable error) {}
 			if (output != null) try {
 				output.close();
 			} catch (Throwable error) {}
+			if (engine != null)
+				engine.cleanup();
+			if (thrownError != null)
+				die(null, thrownError);
 		}
 	}
 	
@@ -182,42 +154,43 @@ public class JoinTables
 		/*====================================================================
 		 * Properties
 		 *====================================================================*/
-		private File inputFile1;
-		private File inputFile2;
+		private File[] inputFiles;
 		private File outputFile;
-		private String[] keys;
+		private String[][] keys;
 		private String delimiter;
+		private long memory;
+		private KeyOrder order;
+		private JoinType type;
+		private boolean manyToMany;
 		
 		/*====================================================================
 		 * Constructors
 		 *====================================================================*/
 		public JoinOperation(
-			File inputFile1, File inputFile2, File outputFile,
-			String keys, String delimiter
+			List<File> inputFiles, File outputFile, List<String> keys,
+			String delimiter, String memory, String order, String type,
+			String manyToMany
 		) throws IOException {
 			// validate input files
-			if (inputFile1 == null)
+			if (inputFiles == null)
 				throw new NullPointerException("Input file cannot be null.");
-			else if (inputFile1.isFile() == false)
-				throw new IllegalArgumentException(
-					String.format("Input file \"%s\" must be a regular file.",
-						inputFile1.getAbsolutePath()));
-			else if (inputFile1.canRead() == false)
+			else if (inputFiles.size() < 2)
 				throw new IllegalArgumentException(
-					String.format("Input file \"%s\" must be readable.",
-						inputFile1.getAbsolutePath()));
-			this.inputFile1 = inputFile1;
-			if (inputFile2 == null)
-				throw new NullPointerException("Input file cannot be null.");
-			else if (inputFile2.isFile() == false)
-				throw new IllegalArgumentException(
-					String.format("Input file \"%s\" must be a regular file.",
-						inputFile2.getAbsolutePath()));
-			else if (inputFile2.canRead() == false)
-				throw new IllegalArgumentException(
-					String.format("Input file \"%s\" must be readable.",
-						inputFile2.getAbsolutePath()));
-			this.inputFile2 = inputFile2;
+					"At least two input files must be specified.");
+			for (File inputFile : inputFiles) {
+				if (inputFile == null)
+					throw new NullPointerException(
+						"Input file cannot be null.");
+				else if (inputFile.isFile() == false)
+					throw new IllegalArgumentException(String.format(
+						"Input file \"%s\" must be a regular file.",
+						inputFile.getAbsolutePath()));
+				else if (inputFile.canRead() == false)
+					throw new IllegalArgumentException(String.format(
+						"Input file \"%s\" must be readable.",
+						inputFile.getAbsolutePath()));
+			}
+			this.inputFiles = inputFiles.toArray(new File[inputFiles.size()]);
 			// validate output file
 			if (outputFile == null)
 				throw new NullPointerException("Output file cannot be null.");
@@ -233,16 +206,1021 @@ public class JoinTables
 				throw new IllegalArgumentException(
 					String.format("Output file \"%s\" must be writable.",
 						outputFile.getAbsolutePath()));
-			// parse header keys
-			if (keys == null)
+			// parse header keys, either one list shared
+			// by all input files or one list for each
+			if (keys == null || keys.isEmpty())
 				throw new NullPointerException("Key list cannot be null.");
-			else if (keys.trim().equals(""))
-				throw new IllegalArgumentException("Key list cannot be empty.");
-			this.keys = keys.split(",");
+			else if (keys.size() != 1 && keys.size() != inputFiles.size())
+				throw new IllegalArgumentException(String.format(
+					"Either one key list must be specified for all input " +
+					"files, or one for each input file (found %d key lists " +
+					"for %d input files).", keys.size(), inputFiles.size()));
+			this.keys = new String[inputFiles.size()][];
+			for (int i=0; i<this.keys.length; i++) {
+				String list = keys.get(keys.size() == 1 ? 0 : i);
+				if (list.trim().equals(""))
+					throw new IllegalArgumentException(
+						"Key list cannot be empty.");
+				this.keys[i] = list.split(",");
+				if (this.keys[i].length != this.keys[0].length)
+					throw new IllegalArgumentException(
+						"All key lists must have the same number of columns.");
+			}
 			// set delimiter string (default tab)
 			if (delimiter == null)
 				this.delimiter = "\t";
 			else this.delimiter = delimiter;
+			// set memory budget (default one quarter of the maximum heap)
+			if (memory == null)
+				this.memory = Runtime.getRuntime().maxMemory() / 4;
+			else try {
+				this.memory = Long.parseLong(memory) * 1024L * 1024L;
+				if (this.memory <= 0)
+					throw new NumberFormatException();
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(
+					String.format("Memory budget \"%s\" must be a positive " +
+						"integer number of megabytes.", memory));
+			}
+			// set key sort order, if the input files are already sorted
+			if (order == null)
+				this.order = null;
+			else try {
+				this.order = KeyOrder.valueOf(order.trim().toUpperCase());
+			} catch (IllegalArgumentException error) {
+				throw new IllegalArgumentException(
+					String.format("Sort order \"%s\" must be either " +
+						"\"lexical\" or \"numeric\".", order));
+			}
+			// set join type (default strict)
+			if (type == null)
+				this.type = JoinType.STRICT;
+			else try {
+				this.type = JoinType.valueOf(type.trim().toUpperCase());
+			} catch (IllegalArgumentException error) {
+				throw new IllegalArgumentException(
+					String.format("Join type \"%s\" must be one of " +
+						"\"strict\", \"inner\", \"left\", \"right\" " +
+						"or \"full\".", type));
+			}
+			// set many-to-many flag (default false)
+			if (manyToMany == null)
+				this.manyToMany = false;
+			else {
+				Boolean parsed = CommonUtils.parseBooleanColumn(manyToMany);
+				if (parsed == null)
+					throw new IllegalArgumentException(
+						"Many-to-many flag must be a boolean string value.");
+				this.manyToMany = parsed;
+			}
+			if (this.manyToMany && this.type == JoinType.STRICT)
+				throw new IllegalArgumentException("Many-to-many joins " +
+					"require a join type other than \"strict\".");
+		}
+	}
+	
+	/**
+	 * Struct to describe the layout of one of the tabular files being joined.
+	 */
+	private static class JoinInput {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File         file;
+		private List<String> fields;
+		private int[]        keys;
+		private String       delimiter;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public JoinInput(
+			File file, List<String> fields, int[] keys, String delimiter
+		) {
+			this.file = file;
+			this.fields = fields;
+			this.keys = keys;
+			this.delimiter = delimiter;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public String[] split(String line, int row) {
+			String[] values = line.split(delimiter);
+			if (values.length != fields.size())
+				throw new IllegalArgumentException(
+					String.format("Row %d of file \"%s\" does not have " +
+						"the same number of columns as the file's header " +
+						"line (expected %d, found %d).",
+						row, file.getAbsolutePath(),
+						fields.size(), values.length));
+			else return values;
+		}
+	}
+	
+	/**
+	 * Output column plan, computed once from the header lines, so that
+	 * each joined row can be assembled and checked in a single pass over
+	 * precomputed column indices instead of searching the headers per cell.
+	 */
+	private static class Projection {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		// merged output header: all columns of the first file, followed
+		// by the columns of each later file that no earlier file has
+		private List<String> fields;
+		// for each output column, the input files that have the column,
+		// in input order, and the index of the column in each of them
+		private int[][]      sourceInputs;
+		private int[][]      sourceColumns;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Projection(JoinInput[] inputs) {
+			fields = new ArrayList<String>();
+			List<List<Integer>> sources = new ArrayList<List<Integer>>();
+			for (int i=0; i<inputs.length; i++) {
+				List<String> inputFields = inputs[i].fields;
+				for (int j=0; j<inputFields.size(); j++) {
+					String field = inputFields.get(j);
+					// every column of the first file is kept, but only the
+					// first occurrence of each column name in later files
+					int column = -1;
+					if (i > 0) {
+						if (inputFields.indexOf(field) != j)
+							continue;
+						column = fields.indexOf(field);
+					}
+					if (column < 0) {
+						fields.add(field);
+						sources.add(new ArrayList<Integer>());
+						column = fields.size() - 1;
+					}
+					sources.get(column).add(i);
+					sources.get(column).add(j);
+				}
+			}
+			sourceInputs = new int[fields.size()][];
+			sourceColumns = new int[fields.size()][];
+			for (int i=0; i<sourceInputs.length; i++) {
+				List<Integer> source = sources.get(i);
+				sourceInputs[i] = new int[source.size() / 2];
+				sourceColumns[i] = new int[source.size() / 2];
+				for (int j=0; j<sourceInputs[i].length; j++) {
+					sourceInputs[i][j] = source.get(j * 2);
+					sourceColumns[i][j] = source.get(j * 2 + 1);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Compact, immutable join key.  The key column values of a row are
+	 * encoded once into a single NUL-separated UTF-8 byte array, and the
+	 * array's hash code is precomputed, so that map lookups and partition
+	 * assignment never need to re-examine the original strings.
+	 */
+	private static class JoinKey {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private final byte[] bytes;
+		private final int    hash;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public JoinKey(String[] values, int[] keys) {
+			StringBuilder key = new StringBuilder();
+			for (int i=0; i<keys.length; i++) {
+				if (i > 0)
+					key.append('\0');
+				key.append(values[keys[i]]);
+			}
+			bytes = key.toString().getBytes(UTF8);
+			hash = Arrays.hashCode(bytes);
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (this == other)
+				return true;
+			else if (other instanceof JoinKey == false)
+				return false;
+			JoinKey key = (JoinKey)other;
+			return hash == key.hash && Arrays.equals(bytes, key.bytes);
+		}
+		
+		@Override
+		public String toString() {
+			// render the same way as the key's list of column values
+			return Arrays.asList(new String(bytes, UTF8).split("\0", -1))
+				.toString();
+		}
+	}
+	
+	/**
+	 * Cursor over the data rows of a join input, parsing each row's
+	 * column values and join key as it is read.
+	 */
+	private static abstract class RowReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		protected JoinInput input;
+		protected int       row;
+		protected String    line;
+		protected String[]  values;
+		protected JoinKey   key;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public RowReader(JoinInput input) {
+			this.input = input;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public abstract boolean next()
+		throws IOException;
+		
+		public abstract void close();
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		protected boolean parse(String line, int row) {
+			this.row = row;
+			this.line = line;
+			if (line == null) {
+				values = null;
+				key = null;
+				return false;
+			}
+			values = input.split(line, row);
+			key = new JoinKey(values, input.keys);
+			return true;
+		}
+	}
+	
+	/**
+	 * Reads rows from an original tabular input file, whose header
+	 * line has already been consumed.
+	 */
+	private static class TextRowReader
+	extends RowReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private BufferedReader reader;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public TextRowReader(JoinInput input, BufferedReader reader) {
+			super(input);
+			this.reader = reader;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public boolean next()
+		throws IOException {
+			return parse(reader.readLine(), row + 1);
+		}
+		
+		@Override
+		public void close() {
+			// the original input file's reader is owned by the caller
+		}
+	}
+	
+	/**
+	 * Temporary file holding the rows of one hash partition of a join input,
+	 * each row stored as its original row number followed by its raw line.
+	 */
+	private static class Partition {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File             file;
+		private DataOutputStream output;
+		private long             rows;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public Partition(File file)
+		throws IOException {
+			this.file = file;
+			output = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 65536));
+			rows = 0;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public void write(int row, String line)
+		throws IOException {
+			byte[] bytes = line.getBytes(UTF8);
+			output.writeInt(row);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+			rows++;
+		}
+		
+		public void close()
+		throws IOException {
+			if (output != null) {
+				output.close();
+				output = null;
+			}
+		}
+		
+		public RowReader open(JoinInput input)
+		throws IOException {
+			close();
+			return new PartitionRowReader(input, file);
+		}
+		
+		public void delete() {
+			try { close(); } catch (Throwable error) {}
+			FileUtils.deleteQuietly(file);
+		}
+	}
+	
+	/**
+	 * Reads rows back out of a temporary partition file, which is only
+	 * opened once its first row is read, so that the partitions waiting to
+	 * be joined hold no file descriptors.
+	 */
+	private static class PartitionRowReader
+	extends RowReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File            file;
+		private DataInputStream reader;
+		private byte[]          buffer;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public PartitionRowReader(JoinInput input, File file) {
+			super(input);
+			this.file = file;
+			reader = null;
+			buffer = new byte[1024];
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public boolean next()
+		throws IOException {
+			if (reader == null)
+				reader = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 65536));
+			int row;
+			try {
+				row = reader.readInt();
+			} catch (EOFException error) {
+				return parse(null, this.row);
+			}
+			int length = reader.readInt();
+			if (length > buffer.length)
+				buffer = new byte[Math.max(length, buffer.length * 2)];
+			reader.readFully(buffer, 0, length);
+			return parse(new String(buffer, 0, length, UTF8), row);
+		}
+		
+		@Override
+		public void close() {
+			if (reader != null) try {
+				reader.close();
+			} catch (Throwable error) {}
+		}
+	}
+	
+	/**
+	 * Base class for the algorithms that join tabular files, providing the
+	 * shared logic for checking, merging and writing matched rows.  Both
+	 * algorithms gather, for each join key, the group of rows sharing that
+	 * key in every input file, and each combination of one row from every
+	 * non-empty group becomes one output row.
+	 */
+	private static abstract class JoinEngine {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		protected JoinOperation        join;
+		protected JoinInput[]          inputs;
+		protected Projection           projection;
+		protected PrintWriter          output;
+		protected List<List<String[]>> groups;
+		protected String[][]           combination;
+		protected StringBuilder        line;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public JoinEngine(
+			JoinOperation join, JoinInput[] inputs, Projection projection,
+			PrintWriter output
+		) {
+			this.join = join;
+			this.inputs = inputs;
+			this.projection = projection;
+			this.output = output;
+			groups = new ArrayList<List<String[]>>(inputs.length);
+			for (int i=0; i<inputs.length; i++)
+				groups.add(new ArrayList<String[]>());
+			combination = new String[inputs.length][];
+			line = new StringBuilder();
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public abstract void join(RowReader[] readers)
+		throws IOException;
+		
+		public void cleanup() {}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		protected void clearGroups() {
+			for (List<String[]> group : groups)
+				group.clear();
+		}
+		
+		protected void writeGroups(JoinKey key, int probeRow) {
+			// find the first input files with and without rows for this key
+			int last = inputs.length - 1;
+			int present = -1;
+			int missing = -1;
+			for (int i=0; i<groups.size(); i++) {
+				if (groups.get(i).isEmpty()) {
+					if (missing < 0)
+						missing = i;
+				} else if (present < 0)
+					present = i;
+			}
+			// in a strict join, every key must appear in every file
+			if (join.type == JoinType.STRICT && missing >= 0) {
+				if (groups.get(last).isEmpty() == false)
+					throw missingKey(key, probeRow, inputs[last],
+						inputs[missing]);
+				else throw leftoverKey(key, inputs[present], inputs[missing]);
+			} else if (join.type.accepts(groups.get(0).isEmpty() == false,
+				groups.get(last).isEmpty() == false, missing < 0))
+				writeCombinations(key, 0);
+		}
+		
+		protected IllegalArgumentException duplicateKey(
+			JoinKey key, JoinInput input
+		) {
+			return new IllegalArgumentException(
+				String.format("Key \"%s\" appeared in " +
+					"two separate rows in file \"%s\".",
+					key, input.file.getAbsolutePath()));
+		}
+		
+		protected IllegalArgumentException missingKey(
+			JoinKey key, int row, JoinInput present, JoinInput missing
+		) {
+			return new IllegalArgumentException(
+				String.format("Key \"%s\" appeared in row %d of file " +
+					"\"%s\", but did not appear in file \"%s\".",
+					key, row, present.file.getAbsolutePath(),
+					missing.file.getAbsoluteFile()));
+		}
+		
+		protected IllegalArgumentException leftoverKey(
+			JoinKey key, JoinInput present, JoinInput missing
+		) {
+			return new IllegalArgumentException(
+				String.format("Key \"%s\" appeared in file " +
+					"\"%s\", but did not appear in file \"%s\".",
+					key, present.file.getAbsolutePath(),
+					missing.file.getAbsoluteFile()));
+		}
+		
+		private void writeCombinations(JoinKey key, int input) {
+			if (input == combination.length) {
+				writeRow(key);
+				return;
+			}
+			// a file with no rows for this key contributes blank columns
+			List<String[]> group = groups.get(input);
+			if (group.isEmpty()) {
+				combination[input] = null;
+				writeCombinations(key, input + 1);
+			} else for (String[] values : group) {
+				combination[input] = values;
+				writeCombinations(key, input + 1);
+			}
+		}
+		
+		private void writeRow(JoinKey key) {
+			line.setLength(0);
+			int[][] sourceInputs = projection.sourceInputs;
+			int[][] sourceColumns = projection.sourceColumns;
+			for (int i=0; i<sourceInputs.length; i++) {
+				if (i > 0)
+					line.append(join.delimiter);
+				// take each column's value from the first file with a row
+				// for this key, and verify that all other such files agree
+				int[] inputIndices = sourceInputs[i];
+				int[] columnIndices = sourceColumns[i];
+				String value = null;
+				int source = -1;
+				for (int j=0; j<inputIndices.length; j++) {
+					String[] values = combination[inputIndices[j]];
+					if (values == null)
+						continue;
+					String next = values[columnIndices[j]];
+					if (value == null) {
+						value = next;
+						source = inputIndices[j];
+					} else if (value.equals(next) == false)
+						throw new IllegalArgumentException(
+							String.format("The value of column \"%s\" " +
+							"was not consistent between rows sharing key " +
+							"\"%s\" (found \"%s\" in file \"%s\", and " +
+							"\"%s\" in file \"%s\").",
+							projection.fields.get(i), key,
+							value, inputs[source].file.getAbsolutePath(),
+							next, inputs[inputIndices[j]].file
+								.getAbsolutePath()));
+				}
+				if (value != null)
+					line.append(value);
+			}
+			// write the merged row to the output file
+			output.println(line);
+		}
+	}
+	
+	/**
+	 * In-memory chain of the rows of one build file that share a join key,
+	 * in file order.
+	 */
+	private static class BuildRow {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private String   line;
+		private BuildRow next;
+		private BuildRow last;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public BuildRow(String line) {
+			this.line = line;
+			next = null;
+			last = this;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public void append(BuildRow row) {
+			last.next = row;
+			last = row;
+		}
+	}
+	
+	/**
+	 * In-memory table entry for one join key, holding the chain of matching
+	 * rows from each build file, and whether the key has been matched by any
+	 * row of the probe file.
+	 */
+	private static class BuildEntry {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private BuildRow[] rows;
+		private boolean    matched;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public BuildEntry(int inputs) {
+			rows = new BuildRow[inputs];
+			matched = false;
+		}
+	}
+	
+	/**
+	 * Grace hash join of tabular files.  Rows of every file but the last
+	 * (the build files) are loaded into one in-memory table keyed by join
+	 * key, and rows of the last (probe) file are streamed against it.  If
+	 * the build rows exceed the memory budget, all files are instead split
+	 * by key hash into temporary partitions, so that matching rows always
+	 * land in partitions with the same index, and each set of partitions is
+	 * then joined independently in the same way.
+	 */
+	private static class HashJoin
+	extends JoinEngine {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private Map<JoinKey, BuildEntry> entries;
+		private long                    footprint;
+		private File                    tempDirectory;
+		private int                     partitionCount;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public HashJoin(
+			JoinOperation join, JoinInput[] inputs, Projection projection,
+			PrintWriter output
+		) {
+			super(join, inputs, projection, output);
+			entries = new HashMap<JoinKey, BuildEntry>();
+			footprint = 0;
+			tempDirectory = null;
+			partitionCount = 0;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public void join(RowReader[] readers)
+		throws IOException {
+			join(readers, 0);
+		}
+		
+		@Override
+		public void cleanup() {
+			if (tempDirectory != null)
+				FileUtils.deleteQuietly(tempDirectory);
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private void join(RowReader[] readers, int level)
+		throws IOException {
+			entries.clear();
+			footprint = 0;
+			int builds = readers.length - 1;
+			// load build rows until they no longer fit in memory
+			Partition[][] partitions = null;
+			for (int i=0; i<builds; i++) {
+				RowReader build = readers[i];
+				while (build.next()) {
+					if (partitions != null) {
+						partitions[i][partition(build.key, level)].write(
+							build.row, build.line);
+						continue;
+					}
+					BuildEntry entry = entries.get(build.key);
+					if (entry == null) {
+						entry = new BuildEntry(builds);
+						entries.put(build.key, entry);
+						footprint += build.key.bytes.length;
+					}
+					BuildRow row = new BuildRow(build.line);
+					if (entry.rows[i] == null)
+						entry.rows[i] = row;
+					else if (join.manyToMany)
+						entry.rows[i].append(row);
+					else throw duplicateKey(build.key, inputs[i]);
+					footprint += ROW_OVERHEAD + 2L * build.line.length();
+					// if the budget is exceeded, spill everything loaded
+					// so far and partition the remainder as it is read
+					if (footprint > join.memory &&
+						level < MAX_PARTITION_LEVEL)
+						partitions = spill(level);
+				}
+				build.close();
+			}
+			// if everything fit, stream the probe rows against the table
+			RowReader probe = readers[builds];
+			if (partitions == null) {
+				while (probe.next())
+					joinRow(probe);
+				probe.close();
+				joinUnmatchedEntries();
+				entries.clear();
+				return;
+			}
+			// otherwise partition the probe rows the same way
+			// and join each set of partitions in turn
+			try {
+				while (probe.next())
+					partitions[builds][partition(probe.key, level)].write(
+						probe.row, probe.line);
+				probe.close();
+				// close every partition before recursing, so that deeper
+				// levels do not add to this level's open files and buffers
+				for (Partition[] inputPartitions : partitions)
+					for (Partition partition : inputPartitions)
+						partition.close();
+				for (int i=0; i<PARTITIONS; i++) {
+					RowReader[] partitionReaders =
+						new RowReader[readers.length];
+					for (int j=0; j<readers.length; j++)
+						partitionReaders[j] = partitions[j][i].open(inputs[j]);
+					join(partitionReaders, level + 1);
+					for (int j=0; j<readers.length; j++)
+						partitions[j][i].delete();
+				}
+			} finally {
+				for (Partition[] inputPartitions : partitions)
+					for (Partition partition : inputPartitions)
+						partition.delete();
+			}
+		}
+		
+		private Partition[][] spill(int level)
+		throws IOException {
+			Partition[][] partitions = createPartitions(level);
+			for (Map.Entry<JoinKey, BuildEntry> entry : entries.entrySet()) {
+				int index = partition(entry.getKey(), level);
+				BuildRow[] rows = entry.getValue().rows;
+				for (int i=0; i<rows.length; i++)
+					for (BuildRow row = rows[i]; row != null; row = row.next)
+						partitions[i][index].write(0, row.line);
+			}
+			entries.clear();
+			footprint = 0;
+			return partitions;
+		}
+		
+		private void joinRow(RowReader probe) {
+			// in a strict join, each key can only be matched once
+			BuildEntry entry = null;
+			if (join.type == JoinType.STRICT)
+				entry = entries.remove(probe.key);
+			else entry = entries.get(probe.key);
+			loadGroups(entry);
+			groups.get(inputs.length - 1).add(probe.values);
+			if (entry != null)
+				entry.matched = true;
+			writeGroups(probe.key, probe.row);
+		}
+		
+		private void joinUnmatchedEntries() {
+			// handle keys left over from the build
+			// files that weren't in the probe file
+			for (Map.Entry<JoinKey, BuildEntry> entry : entries.entrySet()) {
+				if (entry.getValue().matched)
+					continue;
+				loadGroups(entry.getValue());
+				writeGroups(entry.getKey(), 0);
+			}
+		}
+		
+		private void loadGroups(BuildEntry entry) {
+			clearGroups();
+			if (entry == null)
+				return;
+			for (int i=0; i<entry.rows.length; i++)
+				for (BuildRow row = entry.rows[i]; row != null; row = row.next)
+					groups.get(i).add(row.line.split(join.delimiter));
+		}
+		
+		private Partition[][] createPartitions(int level)
+		throws IOException {
+			// keep all partition files in one temporary directory next to
+			// the output file, since the system temp space may be small
+			if (tempDirectory == null) {
+				File parent =
+					join.outputFile.getAbsoluteFile().getParentFile();
+				tempDirectory = Files.createTempDirectory(
+					parent.toPath(), "join").toFile();
+			}
+			Partition[][] partitions = new Partition[inputs.length][];
+			for (int i=0; i<partitions.length; i++) {
+				partitions[i] = new Partition[PARTITIONS];
+				for (int j=0; j<PARTITIONS; j++)
+					partitions[i][j] = new Partition(new File(tempDirectory,
+						String.format("%d_%d_%d.part", partitionCount, i, j)));
+			}
+			partitionCount++;
+			return partitions;
+		}
+		
+		private static int partition(JoinKey key, int level) {
+			// remix the key's hash differently at each level, so that a
+			// partition that is still too large splits apart when recursed
+			int hash = key.hash ^ (level * 0x9E3779B9);
+			hash *= 0x85EBCA6B;
+			hash ^= hash >>> 13;
+			hash *= 0xC2B2AE35;
+			hash ^= hash >>> 16;
+			return (hash & Integer.MAX_VALUE) % PARTITIONS;
+		}
+	}
+	
+	/**
+	 * Streaming merge join of tabular files that are all already sorted by
+	 * join key.  The files are advanced in step, so only the rows sharing
+	 * the current smallest key are held in memory, and the key order of
+	 * each file is verified as it is read, so that an unsorted input fails
+	 * as soon as its first out-of-order row is seen.
+	 */
+	private static class MergeJoin
+	extends JoinEngine {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private double[][] numbers;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public MergeJoin(
+			JoinOperation join, JoinInput[] inputs, Projection projection,
+			PrintWriter output
+		) {
+			super(join, inputs, projection, output);
+			numbers = new double[inputs.length][];
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public void join(RowReader[] readers)
+		throws IOException {
+			int last = readers.length - 1;
+			boolean[] more = new boolean[readers.length];
+			for (int i=0; i<readers.length; i++)
+				more[i] = advance(readers[i], i);
+			while (true) {
+				// find the smallest key among the current rows
+				int smallest = -1;
+				for (int i=0; i<readers.length; i++)
+					if (more[i] && (smallest < 0 ||
+						compare(readers[i].key, numbers[i],
+							readers[smallest].key, numbers[smallest]) < 0))
+						smallest = i;
+				if (smallest < 0)
+					break;
+				JoinKey smallestKey = readers[smallest].key;
+				double[] keyNumbers = numbers[smallest];
+				// gather each file's consecutive rows that sort equal to
+				// that key; in numeric order these may hold several keys
+				// (e.g. "1" and "1.0") in any order, but rows are only
+				// joined with rows of the very same key, as in a hash join
+				Map<JoinKey, KeyRun> run =
+					new LinkedHashMap<JoinKey, KeyRun>();
+				for (int i=0; i<readers.length; i++) {
+					while (more[i] && compare(readers[i].key, numbers[i],
+						smallestKey, keyNumbers) == 0) {
+						JoinKey key = readers[i].key;
+						KeyRun keyRun = run.get(key);
+						if (keyRun == null) {
+							keyRun = new KeyRun(readers.length);
+							run.put(key, keyRun);
+						}
+						List<String[]> group = keyRun.groups.get(i);
+						if (group.isEmpty() == false) {
+							if (i < last && join.manyToMany == false)
+								throw duplicateKey(key, inputs[i]);
+							// in a strict join, each key
+							// can only be matched once
+							else if (i == last &&
+								join.type == JoinType.STRICT)
+								throw missingKey(key, readers[i].row,
+									inputs[i], inputs[0]);
+						} else if (i == last)
+							keyRun.probeRow = readers[i].row;
+						group.add(readers[i].values);
+						more[i] = advance(readers[i], i);
+					}
+				}
+				for (Map.Entry<JoinKey, KeyRun> entry : run.entrySet()) {
+					clearGroups();
+					for (int i=0; i<readers.length; i++)
+						groups.get(i).addAll(entry.getValue().groups.get(i));
+					writeGroups(entry.getKey(), entry.getValue().probeRow);
+				}
+			}
+		}
+		
+		/*====================================================================
+		 * Convenience classes
+		 *====================================================================*/
+		/**
+		 * Struct to hold each input file's rows for one of a run of keys
+		 * that sort equal, along with the row of the last input file in
+		 * which the key first appeared.
+		 */
+		private static class KeyRun {
+			/*================================================================
+			 * Properties
+			 *================================================================*/
+			private List<List<String[]>> groups;
+			private int                  probeRow;
+			
+			/*================================================================
+			 * Constructors
+			 *================================================================*/
+			public KeyRun(int inputs) {
+				groups = new ArrayList<List<String[]>>(inputs);
+				for (int i=0; i<inputs; i++)
+					groups.add(new ArrayList<String[]>());
+				probeRow = -1;
+			}
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private boolean advance(RowReader reader, int index)
+		throws IOException {
+			JoinKey previous = reader.key;
+			double[] previousNumbers = numbers[index];
+			if (reader.next() == false)
+				return false;
+			numbers[index] = parseNumbers(reader);
+			if (previous != null && compare(
+				previous, previousNumbers, reader.key, numbers[index]) > 0)
+				throw unsorted(reader, previous);
+			return true;
+		}
+		
+		private double[] parseNumbers(RowReader reader) {
+			if (join.order != KeyOrder.NUMERIC)
+				return null;
+			int[] keys = reader.input.keys;
+			double[] numbers = new double[keys.length];
+			for (int i=0; i<keys.length; i++) {
+				String value = reader.values[keys[i]];
+				try {
+					numbers[i] = Double.parseDouble(value.trim());
+				} catch (NumberFormatException error) {
+					throw new IllegalArgumentException(
+						String.format("Key column \"%s\" in row %d of file " +
+							"\"%s\" has non-numeric value \"%s\", but " +
+							"numeric key order was specified.",
+							reader.input.fields.get(keys[i]), reader.row,
+							reader.input.file.getAbsolutePath(), value));
+				}
+			}
+			return numbers;
+		}
+		
+		private int compare(
+			JoinKey key1, double[] numbers1, JoinKey key2, double[] numbers2
+		) {
+			if (join.order == KeyOrder.NUMERIC) {
+				for (int i=0; i<numbers1.length; i++) {
+					int comparison = Double.compare(numbers1[i], numbers2[i]);
+					if (comparison != 0)
+						return comparison;
+				}
+				return 0;
+			}
+			// compare encoded keys as unsigned bytes, which orders
+			// UTF-8 strings by code point one column at a time
+			byte[] bytes1 = key1.bytes;
+			byte[] bytes2 = key2.bytes;
+			int length = Math.min(bytes1.length, bytes2.length);
+			for (int i=0; i<length; i++) {
+				int comparison = (bytes1[i] & 0xFF) - (bytes2[i] & 0xFF);
+				if (comparison != 0)
+					return comparison;
+			}
+			return bytes1.length - bytes2.length;
+		}
+		
+		private IllegalArgumentException unsorted(
+			RowReader reader, JoinKey previous
+		) {
+			return new IllegalArgumentException(
+				String.format("Row %d of file \"%s\" is out of order: key " +
+					"\"%s\" follows key \"%s\", but input files must be " +
+					"sorted in ascending %s order of their key columns.",
+					reader.row, reader.input.file.getAbsolutePath(),
+					reader.key, previous,
+					join.order.name().toLowerCase()));
 		}
 	}
 	
@@ -252,11 +1230,14 @@ public class JoinTables
 	private static JoinOperation extractArguments(String[] args) {
 		if (args == null || args.length < 1)
 			return null;
-		File inputFile1 = null;
-		File inputFile2 = null;
+		List<File> inputFiles = new ArrayList<File>();
 		File outputFile = null;
-		String keys = null;
+		List<String> keys = new ArrayList<String>();
 		String delimiter = null;
+		String memory = null;
+		String order = null;
+		String type = null;
+		String manyToMany = null;
 		for (int i=0; i<args.length; i++) {
 			String argument = args[i];
 			if (argument == null)
@@ -267,23 +1248,39 @@ public class JoinTables
 					return null;
 				String value = args[i];
 				if (argument.equals("-input")) {
-					inputFile1 = new File(value);
+					inputFiles.add(new File(value));
 					i++;
 					if (i >= args.length)
 						return null;
-					inputFile2 = new File(args[i]);
+					inputFiles.add(new File(args[i]));
+					// any further values before the next
+					// argument name are more input files
+					while (i + 1 < args.length &&
+						args[i + 1].startsWith("-") == false) {
+						i++;
+						inputFiles.add(new File(args[i]));
+					}
 				} else if (argument.equals("-output"))
 					outputFile = new File(value);
 				else if (argument.equals("-keys"))
-					keys = value;
+					keys.add(value);
 				else if (argument.equals("-separator"))
 					delimiter = value;
+				else if (argument.equals("-memory"))
+					memory = value;
+				else if (argument.equals("-sorted"))
+					order = value;
+				else if (argument.equals("-type"))
+					type = value;
+				else if (argument.equals("-manyToMany"))
+					manyToMany = value;
 				else return null;
 			}
 		}
 		try {
 			return new JoinOperation(
-				inputFile1, inputFile2, outputFile, keys, delimiter);
+				inputFiles, outputFile, keys, delimiter, memory, order, type,
+				manyToMany);
 		} catch (Throwable error) {
 			System.err.println(error.getMessage());
 			return null;
@@ -1,12 +1,31 @@
 package edu.ucsd.workflow;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -19,9 +38,14 @@ public class MergePepNovo
 		"\n\t-tool   mergePepNovo" +
 		"\n\t-config <ConfigFileDirectory>" +
 		"\n\t-result <RawPepNovoResultDirectory>" +
-		"\n\t-output <OutputFile>";
-	private static final Pattern PEPNOVO_HEADER_PATTERN = Pattern.compile(
-		">>\\s+([+-]?\\d+)\\s+([+-]?\\d+)\\s+([+-]?\\d+)\\s+(.*)");
+		"\n\t-output <OutputFile>" +
+		"\n\t[-threads <NumberOfThreads>] (result files are parsed this " +
+		"many at a time, and always written in order of filename; " +
+		"default 1)" +
+		"\n\t[-format tsv|sqlite|columnar] (default tsv; \"sqlite\" " +
+		"pipes typed rows straight into a new SQLite database via the " +
+		"sqlite3 command line, and \"columnar\" writes a typed binary " +
+		"file with one block of columns per result file)";
 	public static final String[] PEPNOVO_NATIVE_FIELDS = new String[]{
 		"#Index", "RnkScr", "PnvScr", "N-Gap",
 		"C-Gap", "[M+H]", "Charge", "Sequence"
@@ -29,6 +53,25 @@ public class MergePepNovo
 	public static final String[] PEPNOVO_COMPUTED_FIELDS = new String[]{
 		"SpectrumFile", "Index", "Scan", "Title"
 	};
+	private static final String LINE_SEPARATOR =
+		System.getProperty("line.separator");
+	// number of parsed result files each thread may hold ahead of output
+	private static final int RESULTS_PER_THREAD = 4;
+	// SQLite will only tolerate insert statements with a
+	// maximum of 500 rows each
+	private static final int SQLITE_INSERT_ROWS = 500;
+	// leading bytes of every columnar output file, and its format version
+	private static final byte[] COLUMNAR_MAGIC =
+		new byte[]{ 'P', 'N', 'V', 'C' };
+	private static final int COLUMNAR_VERSION = 1;
+	private static enum OutputFormat { TSV, SQLITE, COLUMNAR }
+	private static enum FieldType { INTEGER, REAL, TEXT }
+	// value types of the computed fields followed by the native fields
+	private static final FieldType[] PEPNOVO_FIELD_TYPES = new FieldType[]{
+		FieldType.TEXT, FieldType.INTEGER, FieldType.INTEGER, FieldType.TEXT,
+		FieldType.INTEGER, FieldType.REAL, FieldType.REAL, FieldType.REAL,
+		FieldType.REAL, FieldType.REAL, FieldType.INTEGER, FieldType.TEXT
+	};
 	
 	/*========================================================================
 	 * Public interface methods
@@ -37,10 +80,9 @@ public class MergePepNovo
 		MergePepNovoOperation merge = extractArguments(args);
 		if (merge == null)
 			die(USAGE);
-		PrintWriter output = null;
+		HitWriter output = null;
+		ExecutorService executor = null;
 		try {
-			// write global header line to output file
-			output = new PrintWriter(merge.outputFile);
 			// prepare native PepNovo header line separately, since it
 			// will be needed later to verify each block's field sub-header
 			StringBuffer nativeHeader = new StringBuffer();
@@ -57,131 +99,89 @@ public class MergePepNovo
 				header.append("\t");
 			}
 			header.append(nativeHeader.toString());
-			output.println(header.toString());
-			// iterate over all the raw PepNovo result files, first extracting
-			// the input spectrum filename from the matching PepNovo config file
-			// and then parsing the result file into the merged output file
-			for (File result : merge.resultDirectory.listFiles()) {
-				// retrieve this result file's matching config file;
-				// by convention, PepNovo config files are named
-				// "<index>.cfg", and PepNovo result files have
-				// the same base name as their input config file
-				File config = new File(merge.configDirectory, String.format(
-					"%s.cfg", FilenameUtils.getBaseName(result.getName())));
-				if (config == null || config.canRead() == false)
-					die(String.format("No matching input config file " +
-						"could be found for PepNovo result file \"%s\"",
-						result.getAbsolutePath()));
-				// read config file, extract spectrum filename
-				BufferedReader reader = null;
-				String spectrumFilename = null;
-				try {
-					reader = new BufferedReader(new FileReader(config));
-					String line = null;
-					while ((line = reader.readLine()) != null) {
-						// if this is the config file's spectrum file line,
-						// extract the filename; by convention, it is
-						// prefixed with the string "spectra,"
-						if (line.startsWith("spectra,")) {
-							spectrumFilename =
-								FilenameUtils.getName(line.substring(8));
-							break;
-						}
+			// open output file in the requested format, and write its header
+			if (merge.format == OutputFormat.SQLITE)
+				output = new SQLiteHitWriter(merge.outputFile);
+			else if (merge.format == OutputFormat.COLUMNAR)
+				output = new ColumnarHitWriter(merge.outputFile);
+			else output = new TSVHitWriter(
+				merge.outputFile, header.toString());
+			// with more than one thread, parse files in a shared pool;
+			// otherwise, each file is simply parsed when it is submitted
+			if (merge.threads > 1)
+				executor = Executors.newFixedThreadPool(merge.threads);
+			// start extracting the input spectrum filename from every
+			// PepNovo config file once, up front
+			Map<String, FutureTask<String>> spectrumFilenames =
+				readSpectrumFilenames(merge.configDirectory, executor);
+			// iterate over all the raw PepNovo result files in name order,
+			// parsing a bounded number of them ahead into separate buffers,
+			// and then writing each file's buffer to the output file in turn
+			File[] results = merge.resultDirectory.listFiles();
+			Arrays.sort(results);
+			Deque<FutureTask<ParsedResult>> pending =
+				new ArrayDeque<FutureTask<ParsedResult>>();
+			int submitted = 0;
+			int written = 0;
+			while (written < results.length) {
+				while (submitted < results.length &&
+					pending.size() < merge.threads * RESULTS_PER_THREAD) {
+					File result = results[submitted++];
+					// retrieve this result file's matching config file;
+					// by convention, PepNovo config files are named
+					// "<index>.cfg", and PepNovo result files have
+					// the same base name as their input config file
+					File config = new File(merge.configDirectory,
+						String.format("%s.cfg",
+							FilenameUtils.getBaseName(result.getName())));
+					FutureTask<String> configTask =
+						spectrumFilenames.get(config.getName());
+					if (configTask == null)
+						die(String.format("No matching input config file " +
+							"could be found for PepNovo result file \"%s\"",
+							result.getAbsolutePath()));
+					String spectrumFilename = null;
+					try {
+						spectrumFilename = configTask.get();
+					} catch (ExecutionException error) {
+						die(String.format(
+							"Could not read PepNovo config file \"%s\"",
+							config.getAbsolutePath()), error.getCause());
 					}
-				} catch (Throwable error) {
-					die(String.format(
-						"Could not read PepNovo config file \"%s\"",
-						config.getAbsolutePath()), error);
-				} finally {
-					try { reader.close(); } catch (Throwable error) {}
+					if (spectrumFilename == null)
+						die(String.format("Could not extract spectrum " +
+							"filename from PepNovo config file \"%s\"",
+							config.getAbsolutePath()));
+					pending.add(submit(new ResultParser(result,
+						spectrumFilename, nativeHeader.toString(),
+						output.newBuffer()), executor));
 				}
-				if (spectrumFilename == null)
-					die(String.format("Could not extract spectrum " +
-						"filename from PepNovo config file \"%s\"",
-						config.getAbsolutePath()));
-				// read PepNovo result file, parse out ID blocks
+				// write the next result file's rows, in order
+				File result = results[written++];
+				FutureTask<ParsedResult> task = pending.poll();
+				ParsedResult parsed = null;
 				try {
-					reader = new BufferedReader(new FileReader(result));
-					String line = null;
-					int linesRead = 0;
-					while ((line = reader.readLine()) != null) {
-						linesRead++;
-						// search for the beginning of the next valid block
-						if (line.trim().equals(""))
-							continue;
-						Matcher matcher = PEPNOVO_HEADER_PATTERN.matcher(line);
-						if (matcher.matches() == false) {
-							System.out.println(String.format("Warning [" +
-								"PepNovo result file \"%s\", line %d]: " +
-								"expected a block header, but found " +
-								"line \"%s\" instead.",
-								result.getAbsolutePath(), linesRead, line));
-							continue;
-						}
-						// parse out header properties
-						String index = matcher.group(2);
-						String scan = matcher.group(3);
-						String title = matcher.group(4);
-						// parse out second header line
-						line = reader.readLine();
-						if (line == null)
-							break;
-						linesRead++;
-						// the second header should be a comment, starting
-						// with "#", and it should match the native header
-						// string; otherwise, it's an invalid block
-						if (line.startsWith("#") == false ||
-							line.equals(nativeHeader.toString()) == false) {
-							System.out.println(String.format("Warning [" +
-								"PepNovo result file \"%s\", line %d]: " +
-								"expected a valid block field sub-header " +
-								"(\"%s\"), but found line \"%s\" instead.",
-								result.getAbsolutePath(), linesRead,
-								nativeHeader.toString(), line));
-							continue;
-						}
-						// parse out each PSM line from this block
-						while ((line = reader.readLine()) != null) {
-							linesRead++;
-							if (line.trim().equals(""))
-								break;
-							String[] row = line.split("\\t");
-							// verify this line
-							if (row.length != PEPNOVO_NATIVE_FIELDS.length)
-								die(String.format("Error [PepNovo result " +
-									"file \"%s\", line %d]: expected ID row " +
-									"\"%s\" to contain %d fields, but found " +
-									"%d instead",
-									result.getAbsolutePath(), linesRead, line,
-									PEPNOVO_NATIVE_FIELDS.length, row.length));
-							// build tab-separated ID row for this PSM
-							StringBuffer hit =
-								new StringBuffer(spectrumFilename);
-							hit.append("\t");
-							hit.append(index);
-							hit.append("\t");
-							hit.append(scan);
-							hit.append("\t");
-							hit.append(title);
-							for (String value : row) {
-								hit.append("\t");
-								hit.append(value);
-							}
-							// write row to output file
-							output.println(hit.toString());
-						}
-					}
-				} catch (Throwable error) {
-					die(String.format(
+					parsed = task.get();
+				} catch (ExecutionException error) {
+					// PepNovo result file formatting errors
+					// are reported without a stack trace
+					if (error.getCause() instanceof IllegalArgumentException)
+						die(error.getCause().getMessage());
+					else die(String.format(
 						"Could not parse PepNovo result file \"%s\"",
-						result.getAbsolutePath()), error);
-				} finally {
-					try { reader.close(); } catch (Throwable error) {}
+						result.getAbsolutePath()), error.getCause());
 				}
+				for (String warning : parsed.warnings)
+					System.out.println(warning);
+				output.write(parsed.hits);
 			}
+			output.close();
+			output = null;
 		} catch (Throwable error) {
 			die(null, error);
 		} finally {
+			if (executor != null)
+				executor.shutdownNow();
 			try { output.close(); } catch (Throwable error) {}
 		}
 	}
@@ -198,13 +198,16 @@ public class MergePepNovo
 		 *====================================================================*/
 		private File configDirectory;
 		private File resultDirectory;
-		private File outputFile;
+		private File         outputFile;
+		private int          threads;
+		private OutputFormat format;
 		
 		/*====================================================================
 		 * Constructors
 		 *====================================================================*/
 		public MergePepNovoOperation(
-			File configDirectory, File resultDirectory, File outputFile
+			File configDirectory, File resultDirectory, File outputFile,
+			String threads, String format
 		) throws IOException {
 			// validate config file directory
 			if (configDirectory == null)
@@ -247,18 +250,767 @@ public class MergePepNovo
 				throw new IllegalArgumentException(
 					String.format("Output file \"%s\" must be writable.",
 						outputFile.getAbsolutePath()));
+			// set number of parsing threads (default 1)
+			if (threads == null)
+				this.threads = 1;
+			else try {
+				this.threads = Integer.parseInt(threads.trim());
+				if (this.threads <= 0)
+					throw new NumberFormatException();
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(
+					String.format("Number of threads \"%s\" must be a " +
+						"positive integer.", threads));
+			}
+			// set output format (default TSV)
+			if (format == null)
+				this.format = OutputFormat.TSV;
+			else try {
+				this.format = OutputFormat.valueOf(
+					format.trim().toUpperCase());
+			} catch (IllegalArgumentException error) {
+				throw new IllegalArgumentException(
+					String.format("Output format \"%s\" must be either " +
+						"\"tsv\", \"sqlite\" or \"columnar\".", format));
+			}
+		}
+	}
+	
+	/**
+	 * Struct to hold the output hits and warnings of one parsed PepNovo
+	 * result file, until it is its turn to be written.
+	 */
+	private static class ParsedResult {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private HitBuffer    hits;
+		private List<String> warnings;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public ParsedResult(HitBuffer hits) {
+			this.hits = hits;
+			warnings = new ArrayList<String>();
+		}
+	}
+	
+	/**
+	 * Task to parse the ID blocks of one raw PepNovo result file into
+	 * merged output rows.
+	 */
+	private static class ResultParser
+	implements Callable<ParsedResult> {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File   result;
+		private String spectrumFilename;
+		private String nativeHeader;
+		private HitBuffer hits;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public ResultParser(
+			File result, String spectrumFilename, String nativeHeader,
+			HitBuffer hits
+		) {
+			this.result = result;
+			this.spectrumFilename = spectrumFilename;
+			this.nativeHeader = nativeHeader;
+			this.hits = hits;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public ParsedResult call()
+		throws IOException {
+			ParsedResult parsed = new ParsedResult(hits);
+			String[] headerFields = new String[4];
+			// read PepNovo result file, parse out ID blocks
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new FileReader(result));
+				String line = null;
+				int linesRead = 0;
+				while ((line = reader.readLine()) != null) {
+					linesRead++;
+					// search for the beginning of the next valid block
+					if (line.trim().equals(""))
+						continue;
+					if (parseBlockHeader(line, headerFields) == false) {
+						parsed.warnings.add(String.format("Warning [" +
+							"PepNovo result file \"%s\", line %d]: " +
+							"expected a block header, but found " +
+							"line \"%s\" instead.",
+							result.getAbsolutePath(), linesRead, line));
+						continue;
+					}
+					// parse out header properties
+					String index = headerFields[1];
+					String scan = headerFields[2];
+					String title = headerFields[3];
+					// parse out second header line
+					line = reader.readLine();
+					if (line == null)
+						break;
+					linesRead++;
+					// the second header should be a comment, starting
+					// with "#", and it should match the native header
+					// string; otherwise, it's an invalid block
+					if (line.startsWith("#") == false ||
+						line.equals(nativeHeader) == false) {
+						parsed.warnings.add(String.format("Warning [" +
+							"PepNovo result file \"%s\", line %d]: " +
+							"expected a valid block field sub-header " +
+							"(\"%s\"), but found line \"%s\" instead.",
+							result.getAbsolutePath(), linesRead,
+							nativeHeader, line));
+						continue;
+					}
+					// parse out each PSM line from this block
+					while ((line = reader.readLine()) != null) {
+						linesRead++;
+						if (line.trim().equals(""))
+							break;
+						// verify this line
+						int fields = 1;
+						for (int i=0; i<line.length(); i++)
+							if (line.charAt(i) == '\t')
+								fields++;
+						// trailing empty fields are not counted,
+						// the same as with String.split
+						for (int i=line.length()-1;
+							i >= 0 && line.charAt(i) == '\t'; i--)
+							fields--;
+						if (fields != PEPNOVO_NATIVE_FIELDS.length)
+							throw new IllegalArgumentException(
+								String.format("Error [PepNovo result " +
+								"file \"%s\", line %d]: expected ID row " +
+								"\"%s\" to contain %d fields, but found " +
+								"%d instead",
+								result.getAbsolutePath(), linesRead, line,
+								PEPNOVO_NATIVE_FIELDS.length, fields));
+						// add this PSM to the output
+						try {
+							hits.add(spectrumFilename, index, scan, title,
+								line);
+						} catch (IllegalArgumentException error) {
+							throw new IllegalArgumentException(
+								String.format("Error [PepNovo result " +
+								"file \"%s\", line %d]: ID row \"%s\" " +
+								"could not be stored as typed values: %s",
+								result.getAbsolutePath(), linesRead, line,
+								error.getMessage()));
+						}
+					}
+				}
+			} finally {
+				try { reader.close(); } catch (Throwable error) {}
+			}
+			return parsed;
+		}
+	}
+	
+	/**
+	 * Destination for merged PepNovo hits in one of the supported output
+	 * formats.  Each result file's hits are first collected into a separate
+	 * buffer, which may be filled on any thread, and then the buffers are
+	 * written to the output one at a time, in order.
+	 */
+	private static abstract class HitWriter {
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public abstract HitBuffer newBuffer();
+		
+		public abstract void write(HitBuffer buffer)
+		throws IOException;
+		
+		public abstract void close()
+		throws IOException;
+	}
+	
+	/**
+	 * Buffer of merged PepNovo hits parsed from a single result file.
+	 */
+	private static abstract class HitBuffer {
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public abstract void add(
+			String spectrumFilename, String index, String scan, String title,
+			String row
+		) throws IOException;
+	}
+	
+	/**
+	 * Writer for the original merged tab-separated text format.
+	 */
+	private static class TSVHitWriter
+	extends HitWriter {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private PrintWriter output;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public TSVHitWriter(File outputFile, String header)
+		throws IOException {
+			output = new PrintWriter(outputFile);
+			output.println(header);
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public HitBuffer newBuffer() {
+			return new TSVHitBuffer();
+		}
+		
+		@Override
+		public void write(HitBuffer buffer) {
+			output.write(((TSVHitBuffer)buffer).rows.toString());
+		}
+		
+		@Override
+		public void close()
+		throws IOException {
+			output.close();
+			if (output.checkError())
+				throw new IOException("Could not write merged TSV file.");
+		}
+	}
+	
+	private static class TSVHitBuffer
+	extends HitBuffer {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private StringBuilder rows = new StringBuilder();
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public void add(
+			String spectrumFilename, String index, String scan, String title,
+			String row
+		) {
+			// build tab-separated ID row for this PSM
+			rows.append(spectrumFilename).append('\t');
+			rows.append(index).append('\t');
+			rows.append(scan).append('\t');
+			rows.append(title).append('\t');
+			rows.append(row, 0, trimTrailingTabs(row));
+			rows.append(LINE_SEPARATOR);
+		}
+	}
+	
+	/**
+	 * Buffer that converts each hit's fields to their declared types
+	 * before handing them to the concrete output format.
+	 */
+	private static abstract class TypedHitBuffer
+	extends HitBuffer {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private String[] values = new String[PEPNOVO_FIELD_TYPES.length];
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public void add(
+			String spectrumFilename, String index, String scan, String title,
+			String row
+		) throws IOException {
+			values[0] = spectrumFilename;
+			values[1] = index;
+			values[2] = scan;
+			values[3] = title;
+			// the parser has already verified the native field count
+			int start = 0;
+			for (int i=PEPNOVO_COMPUTED_FIELDS.length; i<values.length; i++) {
+				int end = row.indexOf('\t', start);
+				if (end < 0)
+					end = row.length();
+				values[i] = row.substring(start, end);
+				start = Math.min(end + 1, row.length());
+			}
+			// parse all values before adding any of them,
+			// so that a rejected row leaves no partial output
+			long[] integers = new long[values.length];
+			double[] reals = new double[values.length];
+			for (int i=0; i<values.length; i++) {
+				try {
+					if (PEPNOVO_FIELD_TYPES[i] == FieldType.INTEGER)
+						integers[i] = Long.parseLong(values[i]);
+					else if (PEPNOVO_FIELD_TYPES[i] == FieldType.REAL)
+						reals[i] = Double.parseDouble(values[i]);
+				} catch (NumberFormatException error) {
+					throw new IllegalArgumentException(String.format(
+						"expected field \"%s\" to contain %s number, " +
+						"but found \"%s\" instead", getFieldName(i),
+						PEPNOVO_FIELD_TYPES[i] == FieldType.INTEGER ?
+							"an integer" : "a real", values[i]));
+				}
+			}
+			startRow();
+			for (int i=0; i<values.length; i++) {
+				if (PEPNOVO_FIELD_TYPES[i] == FieldType.INTEGER)
+					addInteger(i, integers[i]);
+				else if (PEPNOVO_FIELD_TYPES[i] == FieldType.REAL)
+					addReal(i, reals[i]);
+				else addText(i, values[i]);
+			}
+			endRow();
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		protected abstract void startRow()
+		throws IOException;
+		
+		protected abstract void addInteger(int column, long value)
+		throws IOException;
+		
+		protected abstract void addReal(int column, double value)
+		throws IOException;
+		
+		protected abstract void addText(int column, String value)
+		throws IOException;
+		
+		protected abstract void endRow()
+		throws IOException;
+	}
+	
+	/**
+	 * Writer that pipes SQL statements straight into the sqlite3 command
+	 * line, creating a typed "Result" table in a new SQLite database
+	 * without any intermediate TSV or SQL commands file.
+	 */
+	private static class SQLiteHitWriter
+	extends HitWriter {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File          databaseFile;
+		private Process       process;
+		private Writer        input;
+		private StringBuilder console;
+		private Thread        consoleReader;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public SQLiteHitWriter(File databaseFile)
+		throws IOException {
+			this.databaseFile = databaseFile;
+			ProcessBuilder builder = new ProcessBuilder();
+			builder.command(
+				"sqlite3", "-batch", databaseFile.getAbsolutePath());
+			builder.redirectErrorStream(true);
+			process = builder.start();
+			input = new BufferedWriter(new OutputStreamWriter(
+				process.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+			// collect console output concurrently, so that
+			// sqlite3 can never block on a full output pipe
+			console = new StringBuilder();
+			consoleReader = new Thread(new Runnable() {
+				public void run() {
+					BufferedReader reader = new BufferedReader(
+						new InputStreamReader(process.getInputStream()));
+					try {
+						String line = null;
+						while ((line = reader.readLine()) != null)
+							synchronized (console) {
+								console.append(line).append(LINE_SEPARATOR);
+							}
+					} catch (IOException error) {
+					} finally {
+						try { reader.close(); } catch (Throwable error) {}
+					}
+				}
+			});
+			consoleReader.setDaemon(true);
+			consoleReader.start();
+			// the database is brand new, so there is no need to sync it
+			// until it is complete; the journal mode is left alone, since
+			// setting it prints the new mode, and any console output is
+			// taken as an error
+			input.write("PRAGMA synchronous = OFF;\n");
+			input.write("BEGIN TRANSACTION;\n");
+			input.write("CREATE TABLE Result\n(");
+			for (int i=0; i<PEPNOVO_FIELD_TYPES.length; i++) {
+				if (i > 0)
+					input.write(",\n");
+				input.write(String.format("\"%s\" %s",
+					getFieldName(i), PEPNOVO_FIELD_TYPES[i].name()));
+			}
+			input.write(");\n");
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public HitBuffer newBuffer() {
+			return new SQLiteHitBuffer();
+		}
+		
+		@Override
+		public void write(HitBuffer buffer)
+		throws IOException {
+			SQLiteHitBuffer statements = (SQLiteHitBuffer)buffer;
+			if (statements.rows <= 0)
+				return;
+			input.append(statements.sql);
+			input.write(";\n");
+		}
+		
+		@Override
+		public void close()
+		throws IOException {
+			int exitValue = 0;
+			try {
+				input.write("COMMIT;\n");
+				input.close();
+				exitValue = process.waitFor();
+				consoleReader.join();
+			} catch (InterruptedException error) {
+				throw new IOException(error);
+			} finally {
+				process.destroy();
+			}
+			String output = null;
+			synchronized (console) {
+				output = console.toString();
+			}
+			// there should be no console output from sqlite3
+			// if the database file was successfully created
+			if (exitValue != 0 || output.trim().isEmpty() == false)
+				throw new IOException(String.format(
+					"Failed to generate SQLite result database \"%s\": " +
+					"sqlite3 returned an exit code of %d, with console " +
+					"output \"%s\"", databaseFile.getAbsolutePath(),
+					exitValue, output.trim()));
+		}
+	}
+	
+	private static class SQLiteHitBuffer
+	extends TypedHitBuffer {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private StringBuilder sql = new StringBuilder();
+		private int           rows = 0;
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		@Override
+		protected void startRow() {
+			if (rows % SQLITE_INSERT_ROWS == 0) {
+				if (rows > 0)
+					sql.append(";\n");
+				sql.append("INSERT INTO Result VALUES\n(");
+			} else sql.append(",\n(");
+		}
+		
+		@Override
+		protected void addInteger(int column, long value) {
+			if (column > 0)
+				sql.append(',');
+			sql.append(value);
+		}
+		
+		@Override
+		protected void addReal(int column, double value) {
+			if (column > 0)
+				sql.append(',');
+			// SQL has no literals for non-finite values
+			if (Double.isNaN(value))
+				sql.append("NULL");
+			else if (Double.isInfinite(value))
+				sql.append(value > 0 ? "9e999" : "-9e999");
+			else sql.append(value);
+		}
+		
+		@Override
+		protected void addText(int column, String value) {
+			if (column > 0)
+				sql.append(',');
+			sql.append('\'');
+			for (int i=0; i<value.length(); i++) {
+				char character = value.charAt(i);
+				if (character == '\'')
+					sql.append('\'');
+				sql.append(character);
+			}
+			sql.append('\'');
+		}
+		
+		@Override
+		protected void endRow() {
+			sql.append(')');
+			rows++;
+		}
+	}
+	
+	/**
+	 * Writer for a simple typed binary columnar format, laid out as:
+	 * <ul>
+	 * <li>the magic bytes "PNVC", an int format version, and an int column
+	 * count, followed by each column's type byte (0 = 64-bit integer,
+	 * 1 = 64-bit IEEE double, 2 = length-prefixed UTF-8 text) and name
+	 * (as written by {@link DataOutputStream#writeUTF(String)})</li>
+	 * <li>one block per non-empty PepNovo result file, holding an int row
+	 * count, and then each column's byte length and values in turn, so
+	 * that unwanted columns can be skipped without decoding them</li>
+	 * <li>an int row count of 0, and then the long total number of rows</li>
+	 * </ul>
+	 * All numbers are big-endian.
+	 */
+	private static class ColumnarHitWriter
+	extends HitWriter {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private DataOutputStream output;
+		private long             totalRows;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public ColumnarHitWriter(File outputFile)
+		throws IOException {
+			output = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(outputFile), 1 << 16));
+			output.write(COLUMNAR_MAGIC);
+			output.writeInt(COLUMNAR_VERSION);
+			output.writeInt(PEPNOVO_FIELD_TYPES.length);
+			for (int i=0; i<PEPNOVO_FIELD_TYPES.length; i++) {
+				output.writeByte(PEPNOVO_FIELD_TYPES[i].ordinal());
+				output.writeUTF(getFieldName(i));
+			}
+			totalRows = 0;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public HitBuffer newBuffer() {
+			return new ColumnarHitBuffer();
+		}
+		
+		@Override
+		public void write(HitBuffer buffer)
+		throws IOException {
+			ColumnarHitBuffer block = (ColumnarHitBuffer)buffer;
+			if (block.rows <= 0)
+				return;
+			output.writeInt(block.rows);
+			for (ByteArrayOutputStream column : block.bytes) {
+				output.writeInt(column.size());
+				column.writeTo(output);
+			}
+			totalRows += block.rows;
+		}
+		
+		@Override
+		public void close()
+		throws IOException {
+			output.writeInt(0);
+			output.writeLong(totalRows);
+			output.close();
+		}
+	}
+	
+	private static class ColumnarHitBuffer
+	extends TypedHitBuffer {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private ByteArrayOutputStream[] bytes;
+		private DataOutputStream[]      columns;
+		private int                     rows;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public ColumnarHitBuffer() {
+			bytes = new ByteArrayOutputStream[PEPNOVO_FIELD_TYPES.length];
+			columns = new DataOutputStream[PEPNOVO_FIELD_TYPES.length];
+			for (int i=0; i<bytes.length; i++) {
+				bytes[i] = new ByteArrayOutputStream();
+				columns[i] = new DataOutputStream(bytes[i]);
+			}
+			rows = 0;
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		@Override
+		protected void startRow() {}
+		
+		@Override
+		protected void addInteger(int column, long value)
+		throws IOException {
+			columns[column].writeLong(value);
+		}
+		
+		@Override
+		protected void addReal(int column, double value)
+		throws IOException {
+			columns[column].writeDouble(value);
+		}
+		
+		@Override
+		protected void addText(int column, String value)
+		throws IOException {
+			byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+			columns[column].writeInt(encoded.length);
+			columns[column].write(encoded);
+		}
+		
+		@Override
+		protected void endRow() {
+			rows++;
 		}
 	}
 	
 	/*========================================================================
 	 * Convenience methods
 	 *========================================================================*/
+	private static Map<String, FutureTask<String>> readSpectrumFilenames(
+		File configDirectory, ExecutorService executor
+	) {
+		// map each readable config file's name to the task reading its
+		// spectrum filename; errors are only reported if a result file
+		// actually needs that config file
+		Map<String, FutureTask<String>> spectrumFilenames =
+			new HashMap<String, FutureTask<String>>();
+		for (final File config : configDirectory.listFiles()) {
+			if (config.getName().endsWith(".cfg") == false ||
+				config.canRead() == false)
+				continue;
+			spectrumFilenames.put(config.getName(),
+				submit(new Callable<String>() {
+					public String call()
+					throws IOException {
+						return readSpectrumFilename(config);
+					}
+				}, executor));
+		}
+		return spectrumFilenames;
+	}
+	
+	private static String readSpectrumFilename(File config)
+	throws IOException {
+		// read config file, extract spectrum filename
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(config));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				// if this is the config file's spectrum file line,
+				// extract the filename; by convention, it is
+				// prefixed with the string "spectra,"
+				if (line.startsWith("spectra,"))
+					return FilenameUtils.getName(line.substring(8));
+			}
+			return null;
+		} finally {
+			try { reader.close(); } catch (Throwable error) {}
+		}
+	}
+	
+	private static <T> FutureTask<T> submit(
+		Callable<T> callable, ExecutorService executor
+	) {
+		FutureTask<T> task = new FutureTask<T>(callable);
+		if (executor == null)
+			task.run();
+		else executor.execute(task);
+		return task;
+	}
+	
+	private static boolean parseBlockHeader(String line, String[] fields) {
+		// a block header is ">>" followed by three whitespace-separated
+		// integers and then a title, i.e. the regular expression
+		// ">>\s+([+-]?\d+)\s+([+-]?\d+)\s+([+-]?\d+)\s+(.*)"
+		if (line.startsWith(">>") == false)
+			return false;
+		int position = 2;
+		for (int i=0; i<3; i++) {
+			int start = skipWhitespace(line, position);
+			if (start == position)
+				return false;
+			int end = start;
+			if (end < line.length() &&
+				(line.charAt(end) == '+' || line.charAt(end) == '-'))
+				end++;
+			int digits = end;
+			while (end < line.length() &&
+				line.charAt(end) >= '0' && line.charAt(end) <= '9')
+				end++;
+			if (end == digits)
+				return false;
+			fields[i] = line.substring(start, end);
+			position = end;
+		}
+		int start = skipWhitespace(line, position);
+		if (start == position)
+			return false;
+		fields[3] = line.substring(start);
+		return true;
+	}
+	
+	private static int skipWhitespace(String line, int position) {
+		while (position < line.length()) {
+			char character = line.charAt(position);
+			if (character != ' ' && character != '\t' &&
+				character != '\n' && character != '\u000B' &&
+				character != '\f' && character != '\r')
+				break;
+			position++;
+		}
+		return position;
+	}
+	
+	private static String getFieldName(int field) {
+		if (field < PEPNOVO_COMPUTED_FIELDS.length)
+			return PEPNOVO_COMPUTED_FIELDS[field];
+		else return PEPNOVO_NATIVE_FIELDS[
+			field - PEPNOVO_COMPUTED_FIELDS.length];
+	}
+	
+	private static int trimTrailingTabs(String line) {
+		int end = line.length();
+		while (end > 0 && line.charAt(end - 1) == '\t')
+			end--;
+		return end;
+	}
+	
 	private static MergePepNovoOperation extractArguments(String[] args) {
 		if (args == null || args.length < 1)
 			return null;
 		File configDirectory = null;
 		File resultDirectory = null;
 		File outputFile = null;
+		String threads = null;
+		String format = null;
 		for (int i=0; i<args.length; i++) {
 			String argument = args[i];
 			if (argument == null)
@@ -274,12 +1026,17 @@ public class MergePepNovo
 					resultDirectory = new File(value);
 				else if (argument.equals("-output"))
 					outputFile = new File(value);
+				else if (argument.equals("-threads"))
+					threads = value;
+				else if (argument.equals("-format"))
+					format = value;
 				else return null;
 			}
 		}
 		try {
 			return new MergePepNovoOperation(
-				configDirectory, resultDirectory, outputFile);
+				configDirectory, resultDirectory, outputFile, threads,
+				format);
 		} catch (Throwable error) {
 			System.err.println(error.getMessage());
 			return null;
@@ -1,222 +1,1236 @@
-package edu.ucsd.workflow;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Set;
-import java.util.HashSet;
-
-public class RemoveRedundantTSVRows
-{
-	/*========================================================================
-	 * Constants
-	 *========================================================================*/
-	private static final String USAGE = "java -jar CCMSWorkflowUtils.jar" +
-		"\n\t-input <InputFile> (TSV file with header)" +
-		"\n\t-output <OutputFile> (Input file with redundant rows removed)" +
-		"\n\t-columns <ColumnHeaders> (Comma-separated list of columns " +
-		"for which only the first row per unique combination of these " +
-		"columns should be retained)";
-
-	/*========================================================================
-	 * Public interface methods
-	 *========================================================================*/
-	public static void main(String[] args) {
-		RemoveRedundantTSVRowsOperation removeRedundantTSVRows = extractArguments(args);
-		if (removeRedundantTSVRows == null)
-			die(USAGE);
-		// remove redundant rows in the TSV
-		BufferedReader input = null;
-		PrintWriter output = null;
-		Throwable thrownError = null;
-		int linesInInputFile = 1;
-		int linesInOutputFile = 1;
-		try {
-			input = new BufferedReader(new FileReader(
-				removeRedundantTSVRows.inputFile));
-			// set up output file writer
-			output = new PrintWriter(removeRedundantTSVRows.outputFile);
-			System.out.println(String.format(
-				"Writing the non-redundant rows in file \"%s\" to output file \"%s\".",
-				removeRedundantTSVRows.inputFile,
-				removeRedundantTSVRows.outputFile));
-			// read header
-			String headerStr = input.readLine();
-			List<String> header = new ArrayList<String>(
-				Arrays.asList(headerStr.trim().split("\t")));
-			String columnsStr = "";
-			Set<List<String>> uniqueLineIDs = new HashSet<List<String>>();
-			for (int i=0; i<header.size(); i++) {
-				header.set(i, header.get(i).trim());
-			}
-			for (int i=0; i<removeRedundantTSVRows.columns.size(); i++) {
-				String column = removeRedundantTSVRows.columns.get(i);
-				if (header.contains(column) == false) {
-					throw new IllegalArgumentException(
-						String.format("Column \"%s\" was not found in input header.",
-						column));
-				}
-				columnsStr += column + ", ";
-			}
-			if (columnsStr.endsWith(", "))
-				columnsStr = columnsStr.substring(0, columnsStr.length() - ", ".length());
-			System.out.println(String.format(
-				"Retaining the first row in input file per unique combination of " +
-				"the following columns: %s", columnsStr));
-			output.println(headerStr);
-			// read the remaining lines, and write the non-redundant ones to the output file
-			String lineStr = null;
-			while ((lineStr = input.readLine()) != null) {
-				linesInInputFile++;
-				String[] line = lineStr.trim().split("\t");
-				List<String> uniqueLineID = new ArrayList<String>();
-				for (int i=0; i<line.length; i++) {
-					if (removeRedundantTSVRows.columns.contains(
-						header.get(i))) {
-						uniqueLineID.add(line[i]);
-					}
-				}
-				if (uniqueLineIDs.contains(uniqueLineID) == false) {
-					linesInOutputFile++;
-					output.println(lineStr);
-					uniqueLineIDs.add(uniqueLineID);
-				}
-			}
-			// flush the output stream and report result
-			output.flush();
-			System.out.println(String.format(
-				"\n------------------\nJob completed.\nLines in input file: %d\n" +
-				"Lines in output file: %d",
-				linesInInputFile, linesInOutputFile));
-
-
-		} catch (Throwable error) {
-			thrownError = error;
-		} finally {
-			if (input != null) try {
-				input.close();
-			} catch (Throwable error) {}
-			if (output != null) try {
-				output.close();
-			} catch (Throwable error) {}
-			if (thrownError != null) {
-				die(null, thrownError);
-			}
-		}
-
-	}
-
-	/*========================================================================
-	 * Convenience classes
-	 *========================================================================*/
-	/**
-	 * Struct to maintain context data for each merge operation.
-	 */
-	private static class RemoveRedundantTSVRowsOperation {
-		/*====================================================================
-		 * Properties
-		 *====================================================================*/
-		private File inputFile;
-		private File outputFile;
-		private List<String> columns;
-		
-		/*====================================================================
-		 * Constructors
-		 *====================================================================*/
-		public RemoveRedundantTSVRowsOperation(
-			File inputFile, File outputFile, List<String> columns
-		) throws IOException {
-			// validate input file
-			if (inputFile == null)
-				throw new NullPointerException(
-					"Input file cannot be null.");
-			else if (inputFile.isFile() == false)
-				throw new IllegalArgumentException(
-					String.format("Input file \"%s\" must be a file.",
-						inputFile.getAbsolutePath()));
-			else if (inputFile.canRead() == false)
-				throw new IllegalArgumentException(
-					String.format("Input file \"%s\" must be readable.",
-						inputFile.getAbsolutePath()));
-			this.inputFile = inputFile;
-			// validate output file
-			if (outputFile == null)
-				throw new NullPointerException("Output file cannot be null.");
-			else if (outputFile.isDirectory())
-				throw new IllegalArgumentException(
-					String.format("Output file \"%s\" " +
-						"must be a normal (non-directory) file.",
-						outputFile.getAbsolutePath()));
-			this.outputFile = outputFile;
-			// attempt to create output file and test its writeability
-			if (outputFile.createNewFile() == false ||
-				outputFile.canWrite() == false)
-				throw new IllegalArgumentException(
-					String.format("Output file \"%s\" must be writable.",
-						outputFile.getAbsolutePath()));
-			// set header columns
-			this.columns = columns;
-		}
-	}
-
-	/*========================================================================
-	 * Convenience methods
-	 *========================================================================*/
-	private static RemoveRedundantTSVRowsOperation extractArguments(String[] args) {
-		if (args == null || args.length < 1)
-			return null;
-		File inputFile = null;
-		File outputFile = null;
-		List<String> columns = null;
-		for (int i=0; i<args.length; i++) {
-			String argument = args[i];
-			if (argument == null)
-				return null;
-			else {
-				i++;
-				if (i >= args.length)
-					return null;
-				String value = args[i];
-				if (argument.equals("-input"))
-					inputFile = new File(value);
-				else if (argument.equals("-output"))
-					outputFile = new File(value);
-				else if (argument.equals("-columns")) {
-					columns = new ArrayList<String>(
-						Arrays.asList(value.trim().split(",")));
-					for (int j=0; j<columns.size(); j++) {
-						columns.set(j, columns.get(j).trim());
-					}
-				}
-				else return null;
-			}
-		}
-		try {
-			return new RemoveRedundantTSVRowsOperation(inputFile, outputFile, columns);
-		} catch (Throwable error) {
-			System.err.println(error.getMessage());
-			return null;
-		}
-	}
-	
-	private static void die(String message) {
-		die(message, null);
-	}
-	
-	private static void die(String message, Throwable error) {
-		if (message == null)
-			message = "There was an error removing redundant TSV rows";
-		if (error == null)
-			message += ".";
-		else message += ":";
-		System.err.println(message);
-		if (error != null)
-			error.printStackTrace();
-		System.exit(1);
-	}
-}
+package edu.ucsd.workflow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.ucsd.util.CommonUtils;
+
+public class RemoveRedundantTSVRows
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	private static final String USAGE = "java -jar CCMSWorkflowUtils.jar" +
+		"\n\t-input <InputFile> (TSV file with header)" +
+		"\n\t-output <OutputFile> (Input file with redundant rows removed)" +
+		"\n\t-columns <ColumnHeaders> (Comma-separated list of columns " +
+		"for which only the first row per unique combination of these " +
+		"columns should be retained)" +
+		"\n\t[-exact true|false] (Unique rows are tracked by a 128-bit " +
+		"hash of their column values; if true, the full values are also " +
+		"kept in a temporary file next to the output file, and checked " +
+		"whenever two rows' hashes match; default false)" +
+		"\n\t[-mode hash|external] (hash keeps the unique rows' hashes in " +
+		"memory; external instead sorts every row's column values on disk, " +
+		"using bounded memory however many unique rows there are, and is " +
+		"always exact; default hash)" +
+		"\n\t[-memory <Megabytes>] (memory budget for sorting in external " +
+		"mode, beyond which sorted runs are written to temporary files next " +
+		"to the output file; default one quarter of the maximum heap size)" +
+		"\n\t[-keep first|best] (first retains the first row per unique " +
+		"combination; best retains the row with the best value in the -by " +
+		"column, ties going to the first such row, and reads the input file " +
+		"a second time to write the retained rows in their original order; " +
+		"default first)" +
+		"\n\t[-by <ColumnHeader>] (Numeric score column compared to find " +
+		"the best row per unique combination)" +
+		"\n\t[-order asc|desc] (Whether the lowest or the highest score is " +
+		"best; default desc)";
+	private static final byte[] NO_KEY = new byte[0];
+	// length of the sortable score appended to keys in external mode
+	private static final int SCORE_LENGTH = 8;
+	private static enum DedupMode { HASH, EXTERNAL }
+	private static enum KeepMode { FIRST, BEST }
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	public static void main(String[] args) {
+		RemoveRedundantTSVRowsOperation removeRedundantTSVRows = extractArguments(args);
+		if (removeRedundantTSVRows == null)
+			die(USAGE);
+		// remove redundant rows in the TSV
+		BufferedReader input = null;
+		PrintWriter output = null;
+		KeyStore keyStore = null;
+		File tempDirectory = null;
+		Throwable thrownError = null;
+		int linesInInputFile = 1;
+		int linesInOutputFile = 1;
+		try {
+			input = new BufferedReader(new FileReader(
+				removeRedundantTSVRows.inputFile));
+			// set up output file writer
+			output = new PrintWriter(removeRedundantTSVRows.outputFile);
+			System.out.println(String.format(
+				"Writing the non-redundant rows in file \"%s\" to output file \"%s\".",
+				removeRedundantTSVRows.inputFile,
+				removeRedundantTSVRows.outputFile));
+			// read header, splitting it on every tab just as data rows are
+			// scanned, so that an empty first column keeps them aligned
+			String headerStr = input.readLine();
+			List<String> header = new ArrayList<String>(
+				Arrays.asList(headerStr.split("\t", -1)));
+			String columnsStr = "";
+			for (int i=0; i<header.size(); i++) {
+				header.set(i, header.get(i).trim());
+			}
+			// resolve the key columns to header indices once, in the order
+			// they were specified, so that each row's key follows that order
+			int[] keyColumns = new int[removeRedundantTSVRows.columns.size()];
+			for (int i=0; i<removeRedundantTSVRows.columns.size(); i++) {
+				String column = removeRedundantTSVRows.columns.get(i);
+				keyColumns[i] = header.indexOf(column);
+				if (keyColumns[i] < 0) {
+					throw new IllegalArgumentException(
+						String.format("Column \"%s\" was not found in input header.",
+						column));
+				}
+				columnsStr += column + ", ";
+			}
+			// resolve the score column, if the best row is being retained
+			boolean best = removeRedundantTSVRows.keep == KeepMode.BEST;
+			int scoreColumn = -1;
+			if (best) {
+				scoreColumn = header.indexOf(removeRedundantTSVRows.scoreColumn);
+				if (scoreColumn < 0) {
+					throw new IllegalArgumentException(
+						String.format("Column \"%s\" was not found in input header.",
+						removeRedundantTSVRows.scoreColumn));
+				}
+			}
+			KeyScanner scanner = new KeyScanner(keyColumns, scoreColumn);
+			if (columnsStr.endsWith(", "))
+				columnsStr = columnsStr.substring(0, columnsStr.length() - ", ".length());
+			if (best)
+				System.out.println(String.format(
+					"Retaining the row in input file with the %s value of column " +
+					"\"%s\" per unique combination of the following columns: %s",
+					removeRedundantTSVRows.descending ? "highest" : "lowest",
+					removeRedundantTSVRows.scoreColumn, columnsStr));
+			else System.out.println(String.format(
+				"Retaining the first row in input file per unique combination of " +
+				"the following columns: %s", columnsStr));
+			output.println(headerStr);
+			String lineStr = null;
+			RecordReader retainedLines = null;
+			if (removeRedundantTSVRows.mode == DedupMode.EXTERNAL) {
+				tempDirectory = Files.createTempDirectory(
+					removeRedundantTSVRows.outputFile.getAbsoluteFile()
+						.getParentFile().toPath(), "dedup").toFile();
+				// sort the key and line number of every row on disk, each
+				// key followed by its row's score if the best is retained
+				ExternalSorter uniqueLineIDs = new ExternalSorter(
+					tempDirectory, "keys", removeRedundantTSVRows.memory);
+				while ((lineStr = input.readLine()) != null) {
+					linesInInputFile++;
+					int uniqueLineIDLength = scanner.scan(lineStr);
+					if (best)
+						uniqueLineIDLength = scanner.append(getSortableScore(
+							parseScore(scanner.value(lineStr), linesInInputFile,
+								removeRedundantTSVRows.scoreColumn),
+							removeRedundantTSVRows.descending));
+					uniqueLineIDs.add(
+						scanner.key, uniqueLineIDLength, linesInInputFile);
+				}
+				// the first line number of each key in sorted order is
+				// the row to keep; sort those back into line order
+				ExternalSorter sortedLines = new ExternalSorter(
+					tempDirectory, "lines", removeRedundantTSVRows.memory);
+				RecordReader sortedLineIDs = uniqueLineIDs.sort();
+				byte[] previousLineID = null;
+				while (sortedLineIDs.next()) {
+					byte[] uniqueLineID = sortedLineIDs.record.key;
+					if (previousLineID == null || isSameKey(previousLineID,
+						uniqueLineID, best ? SCORE_LENGTH : 0) == false)
+						sortedLines.add(NO_KEY, 0, sortedLineIDs.record.line);
+					previousLineID = uniqueLineID;
+				}
+				sortedLineIDs.close();
+				retainedLines = sortedLines.sort();
+			} else {
+				if (removeRedundantTSVRows.exact)
+					keyStore = new KeyStore(removeRedundantTSVRows.outputFile);
+				if (best) {
+					// track the line number and score of the best row per key
+					KeySet uniqueLineIDs = new KeySet(keyStore, true);
+					long[] bestLines = new long[1024];
+					double[] bestScores = new double[1024];
+					int uniqueLineIDCount = 0;
+					while ((lineStr = input.readLine()) != null) {
+						linesInInputFile++;
+						int uniqueLineIDLength = scanner.scan(lineStr);
+						double score = parseScore(scanner.value(lineStr),
+							linesInInputFile, removeRedundantTSVRows.scoreColumn);
+						int index = uniqueLineIDs.index(
+							scanner.key, uniqueLineIDLength);
+						if (index == uniqueLineIDCount) {
+							if (index == bestLines.length) {
+								bestLines = Arrays.copyOf(bestLines, index * 2);
+								bestScores = Arrays.copyOf(bestScores, index * 2);
+							}
+							uniqueLineIDCount++;
+						} else if (removeRedundantTSVRows.descending ?
+							score <= bestScores[index] :
+							score >= bestScores[index])
+							continue;
+						bestLines[index] = linesInInputFile;
+						bestScores[index] = score;
+					}
+					bestScores = null;
+					long[] lines = Arrays.copyOf(bestLines, uniqueLineIDCount);
+					bestLines = null;
+					Arrays.sort(lines);
+					retainedLines = new LineArrayReader(lines);
+				} else {
+					KeySet uniqueLineIDs = new KeySet(keyStore);
+					// read the remaining lines, and write the non-redundant ones to the output file
+					while ((lineStr = input.readLine()) != null) {
+						linesInInputFile++;
+						int uniqueLineIDLength = scanner.scan(lineStr);
+						if (uniqueLineIDs.add(scanner.key, uniqueLineIDLength)) {
+							linesInOutputFile++;
+							output.println(lineStr);
+						}
+					}
+				}
+			}
+			if (retainedLines != null) {
+				// read the input file again, and write the retained rows
+				// to the output file in their original order
+				input.close();
+				input = new BufferedReader(new FileReader(
+					removeRedundantTSVRows.inputFile));
+				input.readLine();
+				long line = 1;
+				boolean more = retainedLines.next();
+				while (more && (lineStr = input.readLine()) != null) {
+					line++;
+					if (retainedLines.record.line == line) {
+						linesInOutputFile++;
+						output.println(lineStr);
+						more = retainedLines.next();
+					}
+				}
+				retainedLines.close();
+			}
+			// flush the output stream and report result
+			output.flush();
+			System.out.println(String.format(
+				"\n------------------\nJob completed.\nLines in input file: %d\n" +
+				"Lines in output file: %d",
+				linesInInputFile, linesInOutputFile));
+		
+		
+		} catch (Throwable error) {
+			thrownError = error;
+		} finally {
+			if (input != null) try {
+				input.close();
+			} catch (Throwable error) {}
+			if (output != null) try {
+				output.close();
+			} catch (Throwable error) {}
+			if (keyStore != null)
+				keyStore.delete();
+			if (tempDirectory != null)
+				FileUtils.deleteQuietly(tempDirectory);
+			if (thrownError != null) {
+				die(null, thrownError);
+			}
+		}
+	
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Struct to maintain context data for each merge operation.
+	 */
+	private static class RemoveRedundantTSVRowsOperation {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File inputFile;
+		private File outputFile;
+		private List<String> columns;
+		private boolean exact;
+		private DedupMode mode;
+		private long memory;
+		private KeepMode keep;
+		private String scoreColumn;
+		private boolean descending;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public RemoveRedundantTSVRowsOperation(
+			File inputFile, File outputFile, List<String> columns,
+			String exact, String mode, String memory, String keep,
+			String scoreColumn, String order
+		) throws IOException {
+			// validate input file
+			if (inputFile == null)
+				throw new NullPointerException(
+					"Input file cannot be null.");
+			else if (inputFile.isFile() == false)
+				throw new IllegalArgumentException(
+					String.format("Input file \"%s\" must be a file.",
+						inputFile.getAbsolutePath()));
+			else if (inputFile.canRead() == false)
+				throw new IllegalArgumentException(
+					String.format("Input file \"%s\" must be readable.",
+						inputFile.getAbsolutePath()));
+			this.inputFile = inputFile;
+			// validate output file
+			if (outputFile == null)
+				throw new NullPointerException("Output file cannot be null.");
+			else if (outputFile.isDirectory())
+				throw new IllegalArgumentException(
+					String.format("Output file \"%s\" " +
+						"must be a normal (non-directory) file.",
+						outputFile.getAbsolutePath()));
+			this.outputFile = outputFile;
+			// attempt to create output file and test its writeability
+			if (outputFile.createNewFile() == false ||
+				outputFile.canWrite() == false)
+				throw new IllegalArgumentException(
+					String.format("Output file \"%s\" must be writable.",
+						outputFile.getAbsolutePath()));
+			// set header columns
+			this.columns = columns;
+			// set exact key verification flag (default false)
+			if (exact == null)
+				this.exact = false;
+			else {
+				Boolean parsed = CommonUtils.parseBooleanColumn(exact);
+				if (parsed == null)
+					throw new IllegalArgumentException(
+						"Exact flag must be a boolean string value.");
+				this.exact = parsed;
+			}
+			// set dedup mode (default hash)
+			if (mode == null)
+				this.mode = DedupMode.HASH;
+			else try {
+				this.mode = DedupMode.valueOf(mode.trim().toUpperCase());
+			} catch (IllegalArgumentException error) {
+				throw new IllegalArgumentException(
+					String.format("Mode \"%s\" must be either " +
+						"\"hash\" or \"external\".", mode));
+			}
+			// set memory budget (default one quarter of the maximum heap)
+			if (memory == null)
+				this.memory = Runtime.getRuntime().maxMemory() / 4;
+			else try {
+				this.memory = Long.parseLong(memory) * 1024L * 1024L;
+				if (this.memory <= 0)
+					throw new NumberFormatException();
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(
+					String.format("Memory budget \"%s\" must be a positive " +
+						"integer number of megabytes.", memory));
+			}
+			// set which row to keep per key (default first)
+			if (keep == null)
+				this.keep = KeepMode.FIRST;
+			else try {
+				this.keep = KeepMode.valueOf(keep.trim().toUpperCase());
+			} catch (IllegalArgumentException error) {
+				throw new IllegalArgumentException(
+					String.format("Keep mode \"%s\" must be either " +
+						"\"first\" or \"best\".", keep));
+			}
+			// set score column, if the best row per key is kept
+			if (this.keep == KeepMode.BEST && scoreColumn == null)
+				throw new IllegalArgumentException("A score column must be " +
+					"specified with -by to keep the best row per key.");
+			this.scoreColumn = scoreColumn == null ? null : scoreColumn.trim();
+			// set score order (default descending)
+			if (order == null || order.trim().equalsIgnoreCase("desc"))
+				this.descending = true;
+			else if (order.trim().equalsIgnoreCase("asc"))
+				this.descending = false;
+			else throw new IllegalArgumentException(
+				String.format("Score order \"%s\" must be either " +
+					"\"asc\" or \"desc\".", order));
+		}
+	}
+	
+	/**
+	 * Extracts the key columns of each row directly from its line into a
+	 * reusable UTF-8 byte buffer, without splitting the line or allocating
+	 * any strings.  Each column value is terminated by a tab, which cannot
+	 * occur within a value, so that every distinct combination of column
+	 * values produces a distinct key.  Columns missing from the end of a
+	 * short row are treated as empty.
+	 */
+	private static class KeyScanner {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private int[]  columns;
+		// additional column whose value is also extracted, or -1 if none
+		private int    valueColumn;
+		// start and end offsets of each field up to the last needed column
+		private int[]  starts;
+		private int[]  ends;
+		private int    fields;
+		private byte[] key;
+		private int    length;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public KeyScanner(int[] columns) {
+			this(columns, -1);
+		}
+		
+		public KeyScanner(int[] columns, int valueColumn) {
+			this.columns = columns;
+			this.valueColumn = valueColumn;
+			int fields = valueColumn + 1;
+			for (int column : columns)
+				fields = Math.max(fields, column + 1);
+			starts = new int[fields];
+			ends = new int[fields];
+			key = new byte[256];
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		/**
+		 * Encodes the key of the given row into this scanner's key buffer,
+		 * and returns the encoded length.
+		 */
+		public int scan(String line) {
+			// locate the fields of the line, only as far as needed
+			fields = 0;
+			int position = 0;
+			while (fields < starts.length) {
+				int tab = line.indexOf('\t', position);
+				starts[fields] = position;
+				ends[fields] = tab < 0 ? line.length() : tab;
+				fields++;
+				if (tab < 0)
+					break;
+				position = tab + 1;
+			}
+			// copy the key columns, in key order
+			length = 0;
+			for (int column : columns) {
+				if (column < fields)
+					append(line, starts[column], ends[column]);
+				else ensureCapacity(length + 1);
+				key[length++] = '\t';
+			}
+			return length;
+		}
+		
+		/**
+		 * Returns the value column of the row last passed to scan, which
+		 * must be the same line.
+		 */
+		public String value(String line) {
+			if (valueColumn < fields)
+				return line.substring(starts[valueColumn], ends[valueColumn]);
+			else return "";
+		}
+		
+		/**
+		 * Appends the given value to the current key as eight big-endian
+		 * bytes, and returns the new encoded length.
+		 */
+		public int append(long value) {
+			ensureCapacity(length + 8);
+			for (int i=56; i>=0; i-=8)
+				key[length++] = (byte)(value >>> i);
+			return length;
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private void append(String line, int start, int end) {
+			// a UTF-16 char never needs more than three bytes of UTF-8
+			ensureCapacity(length + (end - start) * 3 + 1);
+			for (int i=start; i<end; i++) {
+				char character = line.charAt(i);
+				if (character < 0x80)
+					key[length++] = (byte)character;
+				else if (character < 0x800) {
+					key[length++] = (byte)(0xC0 | (character >> 6));
+					key[length++] = (byte)(0x80 | (character & 0x3F));
+				} else if (Character.isHighSurrogate(character) &&
+					i + 1 < end &&
+					Character.isLowSurrogate(line.charAt(i + 1))) {
+					int codePoint =
+						Character.toCodePoint(character, line.charAt(++i));
+					key[length++] = (byte)(0xF0 | (codePoint >> 18));
+					key[length++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+					key[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+					key[length++] = (byte)(0x80 | (codePoint & 0x3F));
+				} else {
+					key[length++] = (byte)(0xE0 | (character >> 12));
+					key[length++] = (byte)(0x80 | ((character >> 6) & 0x3F));
+					key[length++] = (byte)(0x80 | (character & 0x3F));
+				}
+			}
+		}
+		
+		private void ensureCapacity(int capacity) {
+			if (capacity > key.length)
+				key = Arrays.copyOf(key, Math.max(capacity, key.length * 2));
+		}
+	}
+	
+	/**
+	 * Set of unique row keys, stored as 128-bit MurmurHash3 values in a
+	 * primitive open-addressing table.  Each key costs a fixed 16 bytes per
+	 * table slot regardless of its length, rather than the hundreds of bytes
+	 * taken by a list of strings in a hash set.  If a key store is provided,
+	 * each key's full bytes are also written to it, and are compared against
+	 * whenever two hashes match, so that hash collisions cannot cause a
+	 * unique row to be dropped.
+	 */
+	private static class KeySet {
+		/*====================================================================
+		 * Constants
+		 *====================================================================*/
+		private static final int INITIAL_CAPACITY = 1 << 16;
+		// largest power-of-two slot count whose hash pairs fit in one array
+		private static final int MAXIMUM_CAPACITY = 1 << 29;
+		
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		// two longs per slot; a slot holding two zeros is empty
+		private long[]   hashes;
+		// key store offset of each slot's key, if keys are being verified
+		private long[]   offsets;
+		// order in which each slot's key was added, if keys are indexed
+		private int[]    indices;
+		private boolean  indexed;
+		private int      capacity;
+		private int      size;
+		private KeyStore store;
+		private long     hash1;
+		private long     hash2;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public KeySet(KeyStore store) {
+			this(store, false);
+		}
+		
+		public KeySet(KeyStore store, boolean indexed) {
+			this.store = store;
+			this.indexed = indexed;
+			allocate(INITIAL_CAPACITY);
+			size = 0;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		/**
+		 * Adds the first length bytes of the given key to this set, and
+		 * returns true if the key was not already present.
+		 */
+		public boolean add(byte[] key, int length)
+		throws IOException {
+			int slot = find(key, length);
+			if (slot < 0)
+				return false;
+			insert(slot, key, length);
+			return true;
+		}
+		
+		/**
+		 * Returns the index of the first length bytes of the given key in
+		 * this set, i.e. the number of keys added before it, adding it if it
+		 * was not already present.  Only supported by indexed sets.
+		 */
+		public int index(byte[] key, int length)
+		throws IOException {
+			int slot = find(key, length);
+			if (slot < 0)
+				return indices[-slot - 1];
+			int index = size;
+			insert(slot, key, length);
+			return index;
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private int find(byte[] key, int length)
+		throws IOException {
+			// returns the slot holding the key as a negative number
+			// (-slot - 1), or else the empty slot where it belongs
+			hash(key, length);
+			int mask = capacity - 1;
+			int slot = (int)hash1 & mask;
+			while (hashes[slot * 2] != 0 || hashes[slot * 2 + 1] != 0) {
+				if (hashes[slot * 2] == hash1 &&
+					hashes[slot * 2 + 1] == hash2 &&
+					(store == null || store.matches(offsets[slot], key, length)))
+					return -slot - 1;
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		private void insert(int slot, byte[] key, int length)
+		throws IOException {
+			hashes[slot * 2] = hash1;
+			hashes[slot * 2 + 1] = hash2;
+			if (store != null)
+				offsets[slot] = store.append(key, length);
+			if (indexed)
+				indices[slot] = size;
+			size++;
+			// keep the table at most three quarters full
+			if (size > capacity - (capacity >> 2))
+				grow();
+		}
+		
+		private void allocate(int capacity) {
+			this.capacity = capacity;
+			hashes = new long[capacity * 2];
+			if (store != null)
+				offsets = new long[capacity];
+			if (indexed)
+				indices = new int[capacity];
+		}
+		
+		private void grow() {
+			if (capacity >= MAXIMUM_CAPACITY)
+				throw new IllegalStateException(String.format(
+					"Too many unique rows (%d) to track in memory.", size));
+			long[] oldHashes = hashes;
+			long[] oldOffsets = offsets;
+			int[] oldIndices = indices;
+			int oldCapacity = capacity;
+			allocate(capacity * 2);
+			int mask = capacity - 1;
+			for (int i=0; i<oldCapacity; i++) {
+				long value1 = oldHashes[i * 2];
+				long value2 = oldHashes[i * 2 + 1];
+				if (value1 == 0 && value2 == 0)
+					continue;
+				int slot = (int)value1 & mask;
+				while (hashes[slot * 2] != 0 || hashes[slot * 2 + 1] != 0)
+					slot = (slot + 1) & mask;
+				hashes[slot * 2] = value1;
+				hashes[slot * 2 + 1] = value2;
+				if (oldOffsets != null)
+					offsets[slot] = oldOffsets[i];
+				if (oldIndices != null)
+					indices[slot] = oldIndices[i];
+			}
+		}
+		
+		private void hash(byte[] key, int length) {
+			// MurmurHash3 x64 128-bit, seed 0
+			final long c1 = 0x87c37b91114253d5L;
+			final long c2 = 0x4cf5ad432745937fL;
+			long h1 = 0;
+			long h2 = 0;
+			int blocks = length >>> 4;
+			for (int i=0; i<blocks; i++) {
+				long k1 = getLong(key, i * 16);
+				long k2 = getLong(key, i * 16 + 8);
+				k1 *= c1;
+				k1 = Long.rotateLeft(k1, 31);
+				k1 *= c2;
+				h1 ^= k1;
+				h1 = Long.rotateLeft(h1, 27);
+				h1 += h2;
+				h1 = h1 * 5 + 0x52dce729;
+				k2 *= c2;
+				k2 = Long.rotateLeft(k2, 33);
+				k2 *= c1;
+				h2 ^= k2;
+				h2 = Long.rotateLeft(h2, 31);
+				h2 += h1;
+				h2 = h2 * 5 + 0x38495ab5;
+			}
+			// mix in the remaining 0-15 bytes
+			int tail = blocks * 16;
+			int remaining = length - tail;
+			long k1 = 0;
+			long k2 = 0;
+			for (int i=remaining-1; i>=8; i--)
+				k2 = (k2 << 8) | (key[tail + i] & 0xFFL);
+			for (int i=Math.min(remaining, 8)-1; i>=0; i--)
+				k1 = (k1 << 8) | (key[tail + i] & 0xFFL);
+			if (remaining > 8) {
+				k2 *= c2;
+				k2 = Long.rotateLeft(k2, 33);
+				k2 *= c1;
+				h2 ^= k2;
+			}
+			if (remaining > 0) {
+				k1 *= c1;
+				k1 = Long.rotateLeft(k1, 31);
+				k1 *= c2;
+				h1 ^= k1;
+			}
+			h1 ^= length;
+			h2 ^= length;
+			h1 += h2;
+			h2 += h1;
+			h1 = mix(h1);
+			h2 = mix(h2);
+			h1 += h2;
+			h2 += h1;
+			// reserve the all-zero hash to mark empty slots
+			if (h1 == 0 && h2 == 0)
+				h2 = 1;
+			hash1 = h1;
+			hash2 = h2;
+		}
+		
+		private static long getLong(byte[] bytes, int offset) {
+			long value = 0;
+			for (int i=7; i>=0; i--)
+				value = (value << 8) | (bytes[offset + i] & 0xFFL);
+			return value;
+		}
+		
+		private static long mix(long value) {
+			value ^= value >>> 33;
+			value *= 0xff51afd7ed558ccdL;
+			value ^= value >>> 33;
+			value *= 0xc4ceb9fe1a85ec53L;
+			value ^= value >>> 33;
+			return value;
+		}
+	}
+	
+	/**
+	 * Append-only temporary file of the full bytes of each unique row key,
+	 * read back only to verify that two keys with the same hash are equal.
+	 */
+	private static class KeyStore {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File             file;
+		private DataOutputStream writer;
+		private RandomAccessFile reader;
+		private long             written;
+		private long             flushed;
+		private byte[]           buffer;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public KeyStore(File outputFile)
+		throws IOException {
+			// keep the key file next to the output file,
+			// since the system temp space may be small
+			file = File.createTempFile("keys", ".tmp",
+				outputFile.getAbsoluteFile().getParentFile());
+			writer = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 65536));
+			reader = new RandomAccessFile(file, "r");
+			written = 0;
+			flushed = 0;
+			buffer = new byte[1024];
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public long append(byte[] key, int length)
+		throws IOException {
+			long offset = written;
+			writer.writeInt(length);
+			writer.write(key, 0, length);
+			written += 4 + length;
+			return offset;
+		}
+		
+		public boolean matches(long offset, byte[] key, int length)
+		throws IOException {
+			// make sure the stored key has actually reached the file
+			if (offset >= flushed) {
+				writer.flush();
+				flushed = written;
+			}
+			reader.seek(offset);
+			if (reader.readInt() != length)
+				return false;
+			if (length > buffer.length)
+				buffer = new byte[Math.max(length, buffer.length * 2)];
+			reader.readFully(buffer, 0, length);
+			for (int i=0; i<length; i++)
+				if (buffer[i] != key[i])
+					return false;
+			return true;
+		}
+		
+		public void delete() {
+			try { writer.close(); } catch (Throwable error) {}
+			try { reader.close(); } catch (Throwable error) {}
+			FileUtils.deleteQuietly(file);
+		}
+	}
+	
+	/**
+	 * Row key and line number pair, ordered by key and then by line number,
+	 * so that the first occurrence of each key sorts ahead of its repeats.
+	 */
+	private static class SortRecord
+	implements Comparable<SortRecord> {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private byte[] key;
+		private long   line;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public SortRecord(byte[] key, long line) {
+			this.key = key;
+			this.line = line;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public int compareTo(SortRecord other) {
+			// compare keys as unsigned bytes
+			int length = Math.min(key.length, other.key.length);
+			for (int i=0; i<length; i++) {
+				int comparison = (key[i] & 0xFF) - (other.key[i] & 0xFF);
+				if (comparison != 0)
+					return comparison;
+			}
+			if (key.length != other.key.length)
+				return key.length - other.key.length;
+			else return Long.compare(line, other.line);
+		}
+	}
+	
+	/**
+	 * Cursor over a sorted sequence of records.
+	 */
+	private static abstract class RecordReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		protected SortRecord record;
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public abstract boolean next()
+		throws IOException;
+		
+		public void close() {}
+	}
+	
+	/**
+	 * Reads records from an in-memory list that has already been sorted.
+	 */
+	private static class ListRecordReader
+	extends RecordReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private Iterator<SortRecord> records;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public ListRecordReader(List<SortRecord> records) {
+			this.records = records.iterator();
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public boolean next() {
+			if (records.hasNext())
+				record = records.next();
+			else record = null;
+			return record != null;
+		}
+	}
+	
+	/**
+	 * Reads records back out of a temporary sorted run file, which is
+	 * deleted once it has been read.
+	 */
+	private static class RunRecordReader
+	extends RecordReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File            file;
+		private DataInputStream input;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public RunRecordReader(File file)
+		throws IOException {
+			this.file = file;
+			input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 65536));
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public boolean next()
+		throws IOException {
+			int length;
+			try {
+				length = input.readInt();
+			} catch (EOFException error) {
+				record = null;
+				return false;
+			}
+			byte[] key = new byte[length];
+			input.readFully(key);
+			record = new SortRecord(key, input.readLong());
+			return true;
+		}
+		
+		@Override
+		public void close() {
+			try { input.close(); } catch (Throwable error) {}
+			FileUtils.deleteQuietly(file);
+		}
+	}
+	
+	/**
+	 * Reads line numbers from an in-memory sorted array, as keyless records.
+	 */
+	private static class LineArrayReader
+	extends RecordReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private long[] lines;
+		private int    position;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public LineArrayReader(long[] lines) {
+			this.lines = lines;
+			position = 0;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public boolean next() {
+			if (position < lines.length)
+				record = new SortRecord(NO_KEY, lines[position++]);
+			else record = null;
+			return record != null;
+		}
+	}
+	
+	/**
+	 * Merges any number of sorted record readers into one sorted sequence.
+	 */
+	private static class MergeRecordReader
+	extends RecordReader {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private PriorityQueue<RecordReader> readers;
+		private RecordReader                current;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public MergeRecordReader(List<RecordReader> sources)
+		throws IOException {
+			readers = new PriorityQueue<RecordReader>(
+				Math.max(1, sources.size()), new Comparator<RecordReader>() {
+					public int compare(
+						RecordReader reader1, RecordReader reader2
+					) {
+						return reader1.record.compareTo(reader2.record);
+					}
+				});
+			for (RecordReader source : sources) {
+				if (source.next())
+					readers.add(source);
+				else source.close();
+			}
+			current = null;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		@Override
+		public boolean next()
+		throws IOException {
+			// advance the reader that supplied the previous record
+			if (current != null) {
+				if (current.next())
+					readers.add(current);
+				else current.close();
+			}
+			current = readers.poll();
+			if (current == null)
+				record = null;
+			else record = current.record;
+			return record != null;
+		}
+		
+		@Override
+		public void close() {
+			if (current != null)
+				current.close();
+			for (RecordReader reader : readers)
+				reader.close();
+			readers.clear();
+		}
+	}
+	
+	/**
+	 * External merge sort of records.  Records are buffered in memory until
+	 * they exceed the memory budget, and each full buffer is then sorted and
+	 * written to a temporary run file.  The runs are finally merged back
+	 * together, in batches if there are too many to read at once.
+	 */
+	private static class ExternalSorter {
+		/*====================================================================
+		 * Constants
+		 *====================================================================*/
+		// maximum number of run files read at the same time
+		private static final int MAX_MERGE_RUNS = 64;
+		// approximate fixed heap cost of each in-memory record
+		private static final long RECORD_OVERHEAD = 64L;
+		
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File             directory;
+		private String           name;
+		private long             memory;
+		private List<SortRecord> records;
+		private long             footprint;
+		private List<File>       runs;
+		private int              runCount;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public ExternalSorter(File directory, String name, long memory) {
+			this.directory = directory;
+			this.name = name;
+			this.memory = memory;
+			records = new ArrayList<SortRecord>();
+			footprint = 0;
+			runs = new ArrayList<File>();
+			runCount = 0;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public void add(byte[] key, int length, long line)
+		throws IOException {
+			records.add(new SortRecord(Arrays.copyOf(key, length), line));
+			footprint += RECORD_OVERHEAD + length;
+			if (footprint > memory) {
+				Collections.sort(records);
+				runs.add(writeRun(new ListRecordReader(records)));
+				records = new ArrayList<SortRecord>();
+				footprint = 0;
+			}
+		}
+		
+		public RecordReader sort()
+		throws IOException {
+			// merge runs in batches until the rest can be merged at once,
+			// along with the records still in memory
+			while (runs.size() >= MAX_MERGE_RUNS) {
+				List<RecordReader> batch = new ArrayList<RecordReader>();
+				for (File run : runs.subList(0, MAX_MERGE_RUNS))
+					batch.add(new RunRecordReader(run));
+				runs.subList(0, MAX_MERGE_RUNS).clear();
+				runs.add(writeRun(new MergeRecordReader(batch)));
+			}
+			Collections.sort(records);
+			List<RecordReader> sources = new ArrayList<RecordReader>();
+			for (File run : runs)
+				sources.add(new RunRecordReader(run));
+			runs.clear();
+			sources.add(new ListRecordReader(records));
+			return new MergeRecordReader(sources);
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private File writeRun(RecordReader reader)
+		throws IOException {
+			File run = new File(directory,
+				String.format("%s_%d.run", name, runCount++));
+			DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run), 65536));
+			try {
+				while (reader.next()) {
+					output.writeInt(reader.record.key.length);
+					output.write(reader.record.key);
+					output.writeLong(reader.record.line);
+				}
+			} finally {
+				reader.close();
+				output.close();
+			}
+			return run;
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	private static RemoveRedundantTSVRowsOperation extractArguments(String[] args) {
+		if (args == null || args.length < 1)
+			return null;
+		File inputFile = null;
+		File outputFile = null;
+		List<String> columns = null;
+		String exact = null;
+		String mode = null;
+		String memory = null;
+		String keep = null;
+		String scoreColumn = null;
+		String order = null;
+		for (int i=0; i<args.length; i++) {
+			String argument = args[i];
+			if (argument == null)
+				return null;
+			else {
+				i++;
+				if (i >= args.length)
+					return null;
+				String value = args[i];
+				if (argument.equals("-input"))
+					inputFile = new File(value);
+				else if (argument.equals("-output"))
+					outputFile = new File(value);
+				else if (argument.equals("-columns")) {
+					columns = new ArrayList<String>(
+						Arrays.asList(value.trim().split(",")));
+					for (int j=0; j<columns.size(); j++) {
+						columns.set(j, columns.get(j).trim());
+					}
+				}
+				else if (argument.equals("-exact"))
+					exact = value;
+				else if (argument.equals("-mode"))
+					mode = value;
+				else if (argument.equals("-memory"))
+					memory = value;
+				else if (argument.equals("-keep"))
+					keep = value;
+				else if (argument.equals("-by"))
+					scoreColumn = value;
+				else if (argument.equals("-order"))
+					order = value;
+				else return null;
+			}
+		}
+		try {
+			return new RemoveRedundantTSVRowsOperation(
+				inputFile, outputFile, columns, exact, mode, memory, keep,
+				scoreColumn, order);
+		} catch (Throwable error) {
+			System.err.println(error.getMessage());
+			return null;
+		}
+	}
+	
+	private static double parseScore(String value, int line, String column) {
+		try {
+			double score = Double.parseDouble(value.trim());
+			if (Double.isNaN(score))
+				throw new NumberFormatException();
+			return score;
+		} catch (NumberFormatException error) {
+			throw new IllegalArgumentException(
+				String.format("Line %d of the input file has non-numeric value " +
+					"\"%s\" in score column \"%s\".", line, value, column));
+		}
+	}
+	
+	private static long getSortableScore(double score, boolean descending) {
+		// map the score's bits so that, compared as unsigned integers, they
+		// order the same way as the scores themselves (treating -0 as 0)
+		long bits = Double.doubleToLongBits(score + 0.0);
+		if (bits < 0)
+			bits = ~bits;
+		else bits ^= Long.MIN_VALUE;
+		return descending ? ~bits : bits;
+	}
+	
+	private static boolean isSameKey(byte[] key1, byte[] key2, int suffix) {
+		// compare two keys, ignoring a fixed-length suffix of each
+		if (key1.length != key2.length)
+			return false;
+		for (int i=0; i<key1.length-suffix; i++)
+			if (key1[i] != key2[i])
+				return false;
+		return true;
+	}
+	
+	private static void die(String message) {
+		die(message, null);
+	}
+	
+	private static void die(String message, Throwable error) {
+		if (message == null)
+			message = "There was an error removing redundant TSV rows";
+		if (error == null)
+			message += ".";
+		else message += ":";
+		System.err.println(message);
+		if (error != null)
+			error.printStackTrace();
+		System.exit(1);
+	}
+}
@@ -1,14 +1,26 @@
 package edu.ucsd.workflow;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import edu.ucsd.util.FileIOUtils;
+import org.apache.commons.io.FileUtils;
+
+import edu.ucsd.util.FASTAIndex;
+import edu.ucsd.util.LineScanner;
 
 public class ShuffleFASTA
 {
@@ -18,8 +30,28 @@ public class ShuffleFASTA
 	private static final String USAGE = "java -jar CCMSWorkflowUtils.jar" +
 		"\n\t-tool shuffleFasta" +
 		"\n\t-input <FastaFile>" +
-		"\n\t-output <OutputFile>";
+		"\n\t-output <OutputFile>" +
+		"\n\t[-strategy reverse|shuffle|pseudoReverse] (default reverse; " +
+		"\"pseudoReverse\" reverses each tryptic peptide while keeping " +
+		"its C-terminal K/R in place)" +
+		"\n\t[-seed <RandomSeed>] (shuffles are seeded per protein from " +
+		"this and the protein's header, so output is reproducible; " +
+		"default 0)" +
+		"\n\t[-threads <NumberOfThreads>] (default 1)" +
+		"\n\t[-index <FastaIndexFile>] (\".fai\" index of all target " +
+		"and decoy records in the output file)";
 	private static final String DECOY_PREFIX = "XXX";
+	private static final byte[] DECOY_PREFIX_BYTES = DECOY_PREFIX.getBytes();
+	private static final byte[] DECOY_HEADER_BYTES =
+		(">" + DECOY_PREFIX + "_").getBytes();
+	private static final byte[] LINE_SEPARATOR =
+		System.getProperty("line.separator").getBytes();
+	private static final int BUFFER_SIZE = 1 << 16;
+	// decoys beyond this many bytes are spilled to a temporary file
+	private static final int MAX_DECOY_MEMORY = 1 << 26;
+	// approximate number of bytes of FASTA records processed per task
+	private static final int BATCH_SIZE = 1 << 20;
+	private static enum DecoyStrategy { REVERSE, SHUFFLE, PSEUDOREVERSE }
 	
 	/*========================================================================
 	 * Public interface methods
@@ -28,74 +60,128 @@ public class ShuffleFASTA
 		FASTAShuffle shuffle = extractArguments(args);
 		if (shuffle == null)
 			die(USAGE);
-		// read input file, reverse FASTA sequences and write to output file
-		BufferedReader input = null;
-		PrintWriter output = null;
+		// stream input file through to output file in a single pass,
+		// collecting its FASTA records into batches whose decoys are
+		// generated in parallel, and then written in their original
+		// order to a side buffer that is appended after all the
+		// original content
+		InputStream input = null;
+		OutputStream output = null;
+		DecoyBuffer decoys = null;
+		ForkJoinPool pool = null;
+		Throwable thrownError = null;
 		try {
-			// first copy the contents of the input file to the output file
-			if (FileIOUtils.copyFile(shuffle.input, shuffle.output) == false)
-				die("Error copying contents of input FASTA file");
-			// set up input file reader
-			input = new BufferedReader(new FileReader(shuffle.input));
-			// set up output file writer
-			output = new PrintWriter(
-				new BufferedWriter(new FileWriter(shuffle.output, true)));
-			// add a line break to separate unshuffled content from shuffled
-			output.println();
-			// read and reverse sequences one by one from input file
-			String line = null;
-			StringBuffer sequence = null;
+			input = new FileInputStream(shuffle.input);
+			output = new BufferedOutputStream(
+				new FileOutputStream(shuffle.output), BUFFER_SIZE);
+			decoys = new DecoyBuffer(shuffle.output);
+			if (shuffle.threads > 1)
+				pool = new ForkJoinPool(shuffle.threads);
+			Deque<ForkJoinTask<DecoyBatch>> pending =
+				new ArrayDeque<ForkJoinTask<DecoyBatch>>();
+			DecoyBatch batch = newBatch(shuffle);
+			LineScanner lines = new LineScanner(input);
+			// if requested, index each record as it is written to the output
+			// file; decoys are indexed relative to the start of the buffer
+			FASTAIndex.Builder targetIndex = null;
+			FASTAIndex decoyIndex = null;
+			if (shuffle.index != null) {
+				targetIndex = new FASTAIndex.Builder();
+				decoyIndex = new FASTAIndex();
+			}
+			long outputLength = 0;
+			boolean inRecord = false;
 			// If sequence is already reversed, don't write the reversed
 			// version of that
 			boolean prevProteinIsDecoy = false;
-			while (true) {
-				line = input.readLine();
-				if (line == null) {
-					// if a previous sequence is still being processed,
-					// reverse it and write it to the output file
-					if (
-						sequence != null && sequence.length() > 0 &&
-						(!prevProteinIsDecoy)
-					) {
-						writeReversedSequence(sequence, output);
+			while (lines.next()) {
+				byte[] line = lines.getBuffer();
+				int lineStart = lines.getStart();
+				int lineEnd = lines.getEnd();
+				// copy the line through to the output file unchanged
+				output.write(line, lineStart, lineEnd - lineStart);
+				output.write(LINE_SEPARATOR);
+				if (lineEnd > lineStart && line[lineStart] == '>') {
+					// hand off each full batch at a record boundary, and
+					// write out finished batches once enough are pending
+					if (batch.size() >= BATCH_SIZE) {
+						pending.add(submit(batch, pool));
+						batch = newBatch(shuffle);
+						while (pending.size() > shuffle.threads * 4)
+							pending.poll().join().writeTo(decoys, decoyIndex);
 					}
-					break;
-				} else if (line.startsWith(">")) {
 					// process the FASTA comment line to
 					// insert the proper decoy prefix
-					line = line.substring(1).trim();
-					// if a previous sequence is still being processed,
-					// reverse it and write it to the output file
-					if (
-						sequence != null && sequence.length() > 0 &&
-						(!prevProteinIsDecoy)
-					) {
-						writeReversedSequence(sequence, output);
-					}
-					prevProteinIsDecoy = line.startsWith(DECOY_PREFIX);
-					line = ">" + DECOY_PREFIX + "_" + line;
-					// start a new sequence
-					sequence = new StringBuffer();
-					// write new comment line to output file
-					if (!prevProteinIsDecoy) {
-						output.println(line);
-					}
-				} else if (line.trim().equals("") == false) {
-					if (sequence == null)
+					int start = trimStart(line, lineStart + 1, lineEnd);
+					int end = trimEnd(line, start, lineEnd);
+					prevProteinIsDecoy =
+						startsWith(line, start, end, DECOY_PREFIX_BYTES);
+					inRecord = true;
+					// start a new record in the current batch
+					if (!prevProteinIsDecoy)
+						batch.addHeader(line, start, end);
+				} else {
+					int start = trimStart(line, lineStart, lineEnd);
+					int end = trimEnd(line, start, lineEnd);
+					if (start < end && inRecord == false)
 						die("Bad FASTA file: sequence text encountered " +
 							"before a valid comment line");
-					else sequence.append(line.trim());
+					else if (start < end && !prevProteinIsDecoy)
+						batch.addSequence(line, start, end);
+				}
+				// a record whose sequence lines differ in width is valid
+				// FASTA, but cannot be indexed; the decoys are still written
+				if (targetIndex != null) try {
+					targetIndex.addLine(line, lineStart, lineEnd,
+						outputLength, LINE_SEPARATOR.length);
+				} catch (IllegalArgumentException error) {
+					System.err.println(String.format(
+						"Could not index output file [%s], so no index " +
+						"will be written: %s",
+						shuffle.output.getAbsolutePath(), error.getMessage()));
+					targetIndex = null;
+					decoyIndex = null;
+					shuffle.index.delete();
 				}
+				outputLength += lineEnd - lineStart + LINE_SEPARATOR.length;
+			}
+			// process the last batch, and write out all pending batches
+			pending.add(submit(batch, pool));
+			while (pending.isEmpty() == false)
+				pending.poll().join().writeTo(decoys, decoyIndex);
+			// add a line break to separate unshuffled content from shuffled
+			output.write(LINE_SEPARATOR);
+			outputLength += LINE_SEPARATOR.length;
+			decoys.appendTo(output);
+			// write the index of all target and decoy records
+			if (targetIndex != null) {
+				FASTAIndex index = targetIndex.finish();
+				index.addAll(decoyIndex, outputLength);
+				index.write(shuffle.index);
 			}
 		} catch (Throwable error) {
-			die(null, error);
+			thrownError = error;
 		} finally {
 			if (input != null) try {
 				input.close();
 			} catch (Throwable error) {}
 			if (output != null) try {
 				output.close();
-			} catch (Throwable error) {}
+			} catch (Throwable error) {
+				if (thrownError == null)
+					thrownError = error;
+			}
+			if (decoys != null)
+				decoys.close();
+			if (pool != null)
+				pool.shutdownNow();
+		}
+		// never leave a partially written output file or index behind
+		if (thrownError != null) {
+			shuffle.output.delete();
+			if (shuffle.index != null)
+				shuffle.index.delete();
+			die(null, thrownError);
 		}
 	}
 	
@@ -110,14 +196,20 @@ public class ShuffleFASTA
 		/*====================================================================
 		 * Properties
 		 *====================================================================*/
-		private File input;
-		private File output;
+		private File          input;
+		private File          output;
+		private DecoyStrategy strategy;
+		private long          seed;
+		private int           threads;
+		private File          index;
 		
 		/*====================================================================
 		 * Constructors
 		 *====================================================================*/
-		public FASTAShuffle(File input, File output)
-		throws IOException {
+		public FASTAShuffle(
+			File input, File output, String strategy, String seed,
+			String threads, File index
+		) throws IOException {
 			// validate input file
 			if (input == null)
 				throw new NullPointerException(
@@ -142,6 +234,269 @@ public class ShuffleFASTA
 					String.format("Output file \"%s\" must be writable.",
 						output.getAbsolutePath()));
 			this.output = output;
+			// set decoy generation strategy (default reverse)
+			if (strategy == null)
+				this.strategy = DecoyStrategy.REVERSE;
+			else try {
+				this.strategy =
+					DecoyStrategy.valueOf(strategy.toUpperCase());
+			} catch (IllegalArgumentException error) {
+				throw new IllegalArgumentException(
+					String.format("Decoy strategy \"%s\" must be either " +
+						"\"reverse\", \"shuffle\" or \"pseudoReverse\".",
+						strategy));
+			}
+			// set random seed for shuffling (default 0)
+			if (seed == null)
+				this.seed = 0L;
+			else try {
+				this.seed = Long.parseLong(seed);
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(
+					String.format("Random seed \"%s\" must be an integer.",
+						seed));
+			}
+			// set number of decoy generation threads (default 1)
+			if (threads == null)
+				this.threads = 1;
+			else try {
+				this.threads = Integer.parseInt(threads);
+				if (this.threads <= 0)
+					throw new NumberFormatException();
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(
+					String.format("Number of threads \"%s\" must be a " +
+						"positive integer.", threads));
+			}
+			// validate index file, if one was requested
+			if (index != null && (index.isDirectory() ||
+				(index.exists() && index.canWrite() == false)))
+				throw new IllegalArgumentException(
+					String.format("Index file \"%s\" must be writable.",
+						index.getAbsolutePath()));
+			this.index = index;
+		}
+	}
+	
+	/**
+	 * Batch of consecutive target FASTA records whose decoys are generated
+	 * together by a single task.  Each record's header and sequence are
+	 * copied into one shared array, and the decoys are then written to a
+	 * second array, ready to be appended to the decoy buffer.
+	 */
+	private static class DecoyBatch
+	implements Callable<DecoyBatch> {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private DecoyStrategy strategy;
+		private long          seed;
+		private byte[]        data;
+		private int           length;
+		// header start, sequence start and sequence end of each record;
+		// the header ends where the sequence starts
+		private int[]         records;
+		private int           count;
+		private byte[]        decoys;
+		private int           decoysLength;
+		// decoy records, relative to the start of the batch, if indexed
+		private FASTAIndex    index;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public DecoyBatch(DecoyStrategy strategy, long seed, boolean indexed) {
+			this.strategy = strategy;
+			this.seed = seed;
+			data = new byte[BUFFER_SIZE];
+			length = 0;
+			records = new int[3 * 64];
+			count = 0;
+			decoys = null;
+			decoysLength = 0;
+			index = indexed ? new FASTAIndex() : null;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public void addHeader(byte[] line, int start, int end) {
+			if (3 * count + 3 > records.length)
+				records = Arrays.copyOf(records, records.length * 2);
+			records[3 * count] = length;
+			append(line, start, end);
+			records[3 * count + 1] = length;
+			records[3 * count + 2] = length;
+			count++;
+		}
+		
+		public void addSequence(byte[] line, int start, int end) {
+			append(line, start, end);
+			records[3 * count - 1] = length;
+		}
+		
+		public int size() {
+			return length;
+		}
+		
+		public DecoyBatch call() {
+			// each decoy adds a prefix and up to two line separators
+			decoys = new byte[length + count *
+				(DECOY_HEADER_BYTES.length + 2 * LINE_SEPARATOR.length)];
+			decoysLength = 0;
+			for (int i=0; i<count; i++) {
+				int header = records[3 * i];
+				int start = records[3 * i + 1];
+				int end = records[3 * i + 2];
+				// write new comment line with the proper decoy prefix
+				write(DECOY_HEADER_BYTES, 0, DECOY_HEADER_BYTES.length);
+				write(data, header, start);
+				write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+				if (index != null) {
+					// the decoy sequence is written on a single line
+					int length = end - start;
+					index.add(getDecoyName(header, start), length,
+						decoysLength, length,
+						length > 0 ? length + LINE_SEPARATOR.length : 0);
+				}
+				if (start == end)
+					continue;
+				// write the sequence's decoy, generated in place
+				if (strategy == DecoyStrategy.SHUFFLE)
+					shuffle(data, start, end,
+						new SplittableRandom(getSeed(data, header, start)));
+				else if (strategy == DecoyStrategy.PSEUDOREVERSE)
+					pseudoReverse(data, start, end);
+				else reverse(data, start, end);
+				write(data, start, end);
+				write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+			}
+			data = null;
+			return this;
+		}
+		
+		public void writeTo(DecoyBuffer buffer, FASTAIndex index)
+		throws IOException {
+			if (index != null)
+				index.addAll(this.index, buffer.size());
+			buffer.write(decoys, 0, decoysLength);
+		}
+		
+		/*====================================================================
+		 * Convenience methods
+		 *====================================================================*/
+		private void append(byte[] line, int start, int end) {
+			int size = end - start;
+			if (length + size > data.length)
+				data = Arrays.copyOf(
+					data, Math.max(data.length * 2, length + size));
+			System.arraycopy(line, start, data, length, size);
+			length += size;
+		}
+		
+		private void write(byte[] bytes, int start, int end) {
+			System.arraycopy(bytes, start, decoys, decoysLength, end - start);
+			decoysLength += end - start;
+		}
+		
+		private String getDecoyName(int start, int end) {
+			// same as FASTAIndex.getName for the decoy's header line
+			int nameEnd = start;
+			while (nameEnd < end && (data[nameEnd] & 0xFF) > ' ')
+				nameEnd++;
+			return DECOY_PREFIX + "_" + new String(
+				data, start, nameEnd - start, StandardCharsets.UTF_8);
+		}
+		
+		private long getSeed(byte[] header, int start, int end) {
+			// FNV-1a hash of the protein's header, so that each protein
+			// is always shuffled the same way, regardless of its position
+			// in the file or the thread that processes it
+			long hash = 0xcbf29ce484222325L;
+			for (int i=start; i<end; i++) {
+				hash ^= header[i] & 0xFF;
+				hash *= 0x100000001b3L;
+			}
+			return hash ^ seed;
+		}
+	}
+	
+	/**
+	 * Side buffer for decoy records, which can only be written after all of
+	 * the original records.  Decoys are kept in memory up to a fixed limit,
+	 * and are then spilled to a temporary file next to the output file.
+	 */
+	private static class DecoyBuffer {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private File         outputFile;
+		private byte[]       buffer;
+		private int          length;
+		// total number of bytes written, in memory or spilled
+		private long         size;
+		private File         spillFile;
+		private OutputStream spill;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public DecoyBuffer(File outputFile) {
+			this.outputFile = outputFile;
+			buffer = new byte[BUFFER_SIZE];
+			length = 0;
+			size = 0;
+			spillFile = null;
+			spill = null;
+		}
+		
+		/*====================================================================
+		 * Public interface methods
+		 *====================================================================*/
+		public void write(byte[] bytes, int offset, int count)
+		throws IOException {
+			size += count;
+			if (spill == null && length + count > buffer.length) {
+				if (length + count <= MAX_DECOY_MEMORY)
+					buffer = Arrays.copyOf(buffer, Math.min(MAX_DECOY_MEMORY,
+						Math.max(buffer.length * 2, length + count)));
+				else {
+					spillFile = File.createTempFile(
+						outputFile.getName(), ".decoys",
+						outputFile.getAbsoluteFile().getParentFile());
+					spill = new BufferedOutputStream(
+						new FileOutputStream(spillFile), BUFFER_SIZE);
+					spill.write(buffer, 0, length);
+					buffer = null;
+				}
+			}
+			if (spill != null)
+				spill.write(bytes, offset, count);
+			else {
+				System.arraycopy(bytes, offset, buffer, length, count);
+				length += count;
+			}
+		}
+		
+		public long size() {
+			return size;
+		}
+		
+		public void appendTo(OutputStream output)
+		throws IOException {
+			if (spill == null)
+				output.write(buffer, 0, length);
+			else {
+				spill.close();
+				Files.copy(spillFile.toPath(), output);
+			}
+		}
+		
+		public void close() {
+			if (spill != null) try {
+				spill.close();
+			} catch (Throwable error) {}
+			FileUtils.deleteQuietly(spillFile);
 		}
 	}
 	
@@ -153,6 +508,10 @@ public class ShuffleFASTA
 			return null;
 		File input = null;
 		File output = null;
+		String strategy = null;
+		String seed = null;
+		String threads = null;
+		File index = null;
 		for (int i=0; i<args.length; i++) {
 			String argument = args[i];
 			if (argument == null)
@@ -166,24 +525,97 @@ public class ShuffleFASTA
 					input = new File(value);
 				else if (argument.equals("-output"))
 					output = new File(value);
+				else if (argument.equals("-strategy"))
+					strategy = value;
+				else if (argument.equals("-seed"))
+					seed = value;
+				else if (argument.equals("-threads"))
+					threads = value;
+				else if (argument.equals("-index"))
+					index = new File(value);
 				else return null;
 			}
 		}
 		try {
-			return new FASTAShuffle(input, output);
+			return new FASTAShuffle(
+				input, output, strategy, seed, threads, index);
 		} catch (Throwable error) {
 			System.err.println(error.getMessage());
 			return null;
 		}
 	}
 	
-	private static void writeReversedSequence(
-		StringBuffer sequence, PrintWriter output
+	private static DecoyBatch newBatch(FASTAShuffle shuffle) {
+		return new DecoyBatch(
+			shuffle.strategy, shuffle.seed, shuffle.index != null);
+	}
+	
+	private static ForkJoinTask<DecoyBatch> submit(
+		DecoyBatch batch, ForkJoinPool pool
+	) {
+		// with no pool, the batch is simply processed right away
+		ForkJoinTask<DecoyBatch> task = ForkJoinTask.adapt(batch);
+		if (pool == null)
+			task.invoke();
+		else pool.execute(task);
+		return task;
+	}
+	
+	private static void reverse(byte[] sequence, int start, int end) {
+		for (int i=start, j=end-1; i<j; i++, j--) {
+			byte residue = sequence[i];
+			sequence[i] = sequence[j];
+			sequence[j] = residue;
+		}
+	}
+	
+	private static void pseudoReverse(byte[] sequence, int start, int end) {
+		// reverse each tryptic peptide, leaving its C-terminal K/R
+		// (and so every cleavage site) where it was
+		int peptide = start;
+		for (int i=start; i<end; i++) {
+			if (sequence[i] == 'K' || sequence[i] == 'R') {
+				reverse(sequence, peptide, i);
+				peptide = i + 1;
+			}
+		}
+		reverse(sequence, peptide, end);
+	}
+	
+	private static void shuffle(
+		byte[] sequence, int start, int end, SplittableRandom random
+	) {
+		// Fisher-Yates shuffle
+		for (int i=end-1; i>start; i--) {
+			int j = start + random.nextInt(i - start + 1);
+			byte residue = sequence[i];
+			sequence[i] = sequence[j];
+			sequence[j] = residue;
+		}
+	}
+	
+	private static int trimStart(byte[] line, int start, int end) {
+		// same whitespace as String.trim()
+		while (start < end && (line[start] & 0xFF) <= ' ')
+			start++;
+		return start;
+	}
+	
+	private static int trimEnd(byte[] line, int start, int end) {
+		while (end > start && (line[end - 1] & 0xFF) <= ' ')
+			end--;
+		return end;
+	}
+	
+	private static boolean startsWith(
+		byte[] line, int start, int end, byte[] prefix
 	) {
-		if (sequence == null || output == null)
-			return;
-		sequence = sequence.reverse();
-		output.println(sequence.toString());
+		if (end - start < prefix.length)
+			return false;
+		for (int i=0; i<prefix.length; i++)
+			if (line[start + i] != prefix[i])
+				return false;
+		return true;
 	}
 	
 	private static void die(String message) {
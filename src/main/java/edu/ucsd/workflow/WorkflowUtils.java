@@ -18,7 +18,8 @@ public class WorkflowUtils
 		"Please indicate a valid tool to invoke.";
 	public static enum Tool {
 		MERGE, JOINTABLES, COPYCOLLECTION, COPYCOLLECTIONTOUSERSPACE,
-		FILTERCOLLECTION, SELECTFIRST, SHUFFLEFASTA, MERGEPEPNOVO;
+		FILTERCOLLECTION, SELECTFIRST, SHUFFLEFASTA, MERGEPEPNOVO,
+		DIGESTFASTA;
 		public String toString() {
 			return this.name().toLowerCase();
 		}
@@ -62,6 +63,9 @@ public class WorkflowUtils
 			case MERGEPEPNOVO:
 				MergePepNovo.main(args);
 				break;
+			case DIGESTFASTA:
+				DigestFASTA.main(args);
+				break;
 			default:
 				System.err.println(String.format(BAD_TOOL, tool.toString()));
 				die();
@@ -0,0 +1,263 @@
+package edu.ucsd.workflow.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import edu.ucsd.util.FileHasher;
+
+public class BenchmarkHashing
+{
+	/*========================================================================
+	 * Constants
+	 *========================================================================*/
+	private static final String USAGE = "java -cp CCMSWorkflowUtils.jar " +
+		"edu.ucsd.workflow.test.BenchmarkHashing" +
+		"\n\t-file        <File> (may be given more than once; typically " +
+		"raw files of 1 to 10 GB)" +
+		"\n\t[-algorithms <Algorithm>,...] (default MD5,SHA-256,CRC32C, or " +
+		"CRC32 in place of CRC32C before Java 9)" +
+		"\n\t[-buffer     <Megabytes>] (FileHasher buffer size; default 4)" +
+		"\n\t[-repeat     <Count>] (default 3; the first run over a file " +
+		"may read it from disk, and later runs from the page cache)" +
+		"\n\nEach file is hashed with the old FileIOUtils.getMD5Hash loop " +
+		"(a 1 KB stream buffer, and one Integer.toHexString per byte), with " +
+		"FileHasher one algorithm per pass, and with FileHasher all " +
+		"algorithms in one pass; the time and throughput of each are " +
+		"printed as a tab-separated table";
+	private static final String[] RESULT_FIELDS = new String[]{
+		"File", "Method", "Algorithms", "Run", "Seconds", "MB/s"
+	};
+	private static final int LEGACY_BUFFER_SIZE = 1024;
+	
+	/*========================================================================
+	 * Public interface methods
+	 *========================================================================*/
+	public static void main(String[] args) {
+		BenchmarkHashingOperation benchmark = extractArguments(args);
+		if (benchmark == null)
+			die(USAGE);
+		System.out.println(join(RESULT_FIELDS));
+		try {
+			for (File file : benchmark.files) {
+				for (int run=1; run<=benchmark.repeat; run++) {
+					// old MD5 loop
+					long start = System.nanoTime();
+					String legacy = legacyMD5Hash(file);
+					report(file, "legacy", "MD5", run, start);
+					// one algorithm per pass
+					String md5 = null;
+					start = System.nanoTime();
+					for (String algorithm : benchmark.algorithms) {
+						String value = new FileHasher(benchmark.bufferSize,
+							algorithm).hash(file).get(algorithm);
+						if (algorithm.equalsIgnoreCase("MD5"))
+							md5 = value;
+					}
+					report(file, "separate",
+						String.join(",", benchmark.algorithms), run, start);
+					// all algorithms in one pass
+					start = System.nanoTime();
+					Map<String, String> values =
+						new FileHasher(benchmark.bufferSize,
+							benchmark.algorithms).hash(file);
+					report(file, "combined",
+						String.join(",", benchmark.algorithms), run, start);
+					// every method must agree on the file's MD5 hash
+					for (Map.Entry<String, String> value : values.entrySet())
+						if (value.getKey().equalsIgnoreCase("MD5") &&
+							(value.getValue().equals(legacy) == false ||
+							value.getValue().equals(md5) == false))
+							die(String.format("Hashing methods disagree " +
+								"on the MD5 hash of file \"%s\"",
+								file.getAbsolutePath()));
+				}
+			}
+		} catch (Throwable error) {
+			die(null, error);
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience classes
+	 *========================================================================*/
+	/**
+	 * Struct to maintain context data for each hashing benchmark.
+	 */
+	private static class BenchmarkHashingOperation {
+		/*====================================================================
+		 * Properties
+		 *====================================================================*/
+		private Collection<File> files;
+		private String[]         algorithms;
+		private int              bufferSize;
+		private int              repeat;
+		
+		/*====================================================================
+		 * Constructors
+		 *====================================================================*/
+		public BenchmarkHashingOperation(
+			Collection<File> files, String algorithms, String buffer,
+			String repeat
+		) {
+			// validate files to hash
+			if (files == null || files.isEmpty())
+				throw new IllegalArgumentException(
+					"At least one file to hash must be specified.");
+			for (File file : files) {
+				if (file.isFile() == false)
+					throw new IllegalArgumentException(String.format(
+						"File \"%s\" must be a regular file.",
+						file.getAbsolutePath()));
+				else if (file.canRead() == false)
+					throw new IllegalArgumentException(String.format(
+						"File \"%s\" must be readable.",
+						file.getAbsolutePath()));
+			}
+			this.files = files;
+			// set algorithms, checking that each is supported
+			if (algorithms != null)
+				this.algorithms = algorithms.split(",");
+			else try {
+				new FileHasher(FileHasher.CRC32C_ALGORITHM);
+				this.algorithms = new String[]{
+					"MD5", "SHA-256", FileHasher.CRC32C_ALGORITHM };
+			} catch (IllegalArgumentException error) {
+				this.algorithms = new String[]{
+					"MD5", "SHA-256", FileHasher.CRC32_ALGORITHM };
+			}
+			new FileHasher(this.algorithms);
+			// set buffer size (default 4 MB)
+			this.bufferSize = FileHasher.DEFAULT_BUFFER_SIZE;
+			if (buffer != null) try {
+				int megabytes = Integer.parseInt(buffer);
+				if (megabytes <= 0 || megabytes > 1024)
+					throw new NumberFormatException();
+				this.bufferSize = megabytes << 20;
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(String.format(
+					"Buffer size \"%s\" must be a whole number of megabytes " +
+					"from 1 to 1024.", buffer));
+			}
+			// set number of runs over each file (default 3)
+			this.repeat = 3;
+			if (repeat != null) try {
+				this.repeat = Integer.parseInt(repeat);
+				if (this.repeat <= 0)
+					throw new NumberFormatException();
+			} catch (NumberFormatException error) {
+				throw new IllegalArgumentException(String.format(
+					"Repeat count \"%s\" must be a positive integer.",
+					repeat));
+			}
+		}
+	}
+	
+	/*========================================================================
+	 * Convenience methods
+	 *========================================================================*/
+	/**
+	 * Computes a file's MD5 hash exactly as FileIOUtils.getMD5Hash
+	 * did before it was backed by FileHasher.
+	 */
+	private static String legacyMD5Hash(File file)
+	throws Exception {
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(file);
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] data = new byte[LEGACY_BUFFER_SIZE];
+			int bytesRead = 0;
+			while ((bytesRead = input.read(data)) != -1)
+				digest.update(data, 0, bytesRead);
+			byte[] bytes = digest.digest();
+			StringBuffer result = new StringBuffer(bytes.length * 2);
+			for (int i=0; i<bytes.length; i++) {
+				String hex = Integer.toHexString(0xff & bytes[i]);
+				if (hex.length() == 1)
+					result.append("0");
+				result.append(hex);
+			}
+			return result.toString();
+		} finally {
+			try { input.close(); }
+			catch (Throwable error) {}
+		}
+	}
+	
+	private static void report(
+		File file, String method, String algorithms, int run, long start
+	) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(join(new String[]{
+			file.getPath(), method, algorithms, Integer.toString(run),
+			String.format("%.3f", seconds),
+			String.format("%.1f", file.length() / 1e6 / seconds)
+		}));
+	}
+	
+	private static String join(String[] fields) {
+		StringBuilder line = new StringBuilder();
+		for (String field : fields) {
+			if (line.length() > 0)
+				line.append("\t");
+			line.append(field);
+		}
+		return line.toString();
+	}
+	
+	private static BenchmarkHashingOperation extractArguments(String[] args) {
+		if (args == null || args.length < 1)
+			return null;
+		Collection<File> files = new LinkedHashSet<File>();
+		String algorithms = null;
+		String buffer = null;
+		String repeat = null;
+		for (int i=0; i<args.length; i++) {
+			String argument = args[i];
+			if (argument == null)
+				return null;
+			else {
+				i++;
+				if (i >= args.length)
+					return null;
+				String value = args[i];
+				if (argument.equals("-file"))
+					files.add(new File(value));
+				else if (argument.equals("-algorithms"))
+					algorithms = value;
+				else if (argument.equals("-buffer"))
+					buffer = value;
+				else if (argument.equals("-repeat"))
+					repeat = value;
+				else return null;
+			}
+		}
+		try {
+			return new BenchmarkHashingOperation(
+				files, algorithms, buffer, repeat);
+		} catch (Throwable error) {
+			System.err.println(error.getMessage());
+			return null;
+		}
+	}
+	
+	private static void die(String message) {
+		die(message, null);
+	}
+	
+	private static void die(String message, Throwable error) {
+		if (message == null)
+			message = "There was an error benchmarking file hashing";
+		if (error == null)
+			message += ".";
+		else message += ":";
+		System.err.println(message);
+		if (error != null)
+			error.printStackTrace();
+		System.exit(1);
+	}
+}